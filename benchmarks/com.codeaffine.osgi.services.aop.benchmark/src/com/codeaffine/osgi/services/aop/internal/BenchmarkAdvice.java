@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+
+public class BenchmarkAdvice {
+  private final Object fallback;
+  private long invocations;
+
+  public BenchmarkAdvice( Object fallback ) {
+    this.fallback = fallback;
+  }
+
+  public void beforeServe( Object parameter ) {
+    invocations++;
+  }
+
+  public void afterServe( Object parameter ) {
+    invocations++;
+  }
+
+  public void beforeCompute( int value,
+                             long other,
+                             double factor,
+                             boolean negate )
+  {
+    invocations++;
+  }
+
+  public void afterCompute( int value,
+                            long other,
+                            double factor,
+                            boolean negate )
+  {
+    invocations++;
+  }
+
+  public Object onExceptionFail( Object parameter, Exception exception ) {
+    invocations++;
+    return fallback;
+  }
+
+  public long getInvocations() {
+    return invocations;
+  }
+}
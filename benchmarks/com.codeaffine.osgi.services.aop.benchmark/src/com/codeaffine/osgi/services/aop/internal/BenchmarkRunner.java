@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// runs all benchmarks unless JMH options are given
+public class BenchmarkRunner {
+
+  public static void main( String[] args )
+    throws RunnerException, CommandLineOptionException
+  {
+    Options options = new OptionsBuilder()
+      .parent( new CommandLineOptions( args ) )
+      .include( BenchmarkRunner.class.getPackage().getName() + ".*Benchmark" )
+      .addProfiler( GCProfiler.class )
+      .build();
+    new Runner( options ).run();
+  }
+}
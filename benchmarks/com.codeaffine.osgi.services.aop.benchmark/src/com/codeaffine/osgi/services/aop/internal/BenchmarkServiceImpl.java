@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+
+public class BenchmarkServiceImpl implements BenchmarkService {
+  static final IllegalStateException PROBLEM
+    = new IllegalStateException( "benchmark" )
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  };
+
+  @Override
+  public Object serve( Object parameter ) {
+    return parameter;
+  }
+
+  @Override
+  public long compute( int value, long other, double factor, boolean negate ) {
+    long result = ( long )( ( value + other ) * factor );
+    return negate ? -result : result;
+  }
+
+  @Override
+  public Object fail( Object parameter ) {
+    throw PROBLEM;
+  }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@Threads( Threads.MAX )
+public class ConcurrentDispatchBenchmark {
+
+  @Benchmark
+  public Object serveDirect( ProxiedServices services ) {
+    return services.direct.serve( services.parameter );
+  }
+
+  @Benchmark
+  public Object serveProxied( ProxiedServices services ) {
+    return services.proxy.serve( services.parameter );
+  }
+
+  @Benchmark
+  public Object failProxied( ProxiedServices services ) {
+    return services.proxy.fail( services.parameter );
+  }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.ServiceReference;
+
+import com.codeaffine.osgi.services.aop.JoinPointDefinition;
+
+
+// lookups while another thread changes definitions of the same type
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ProviderLookupBenchmark {
+  private static final int LOOKUP_THREADS = 3;
+
+  @State( Scope.Thread )
+  public static class DefinitionCursor {
+    int index;
+  }
+
+  @Benchmark
+  @Threads( LOOKUP_THREADS )
+  public Collection<ServiceReference<?>> lookup( ProviderRegistry registry ) {
+    return registry.find();
+  }
+
+  @Benchmark
+  @Group( "definitionChange" )
+  @GroupThreads( LOOKUP_THREADS )
+  public Collection<ServiceReference<?>> lookupWhileDefinitionsChange(
+    ProviderRegistry registry )
+  {
+    return registry.find();
+  }
+
+  @Benchmark
+  @Group( "definitionChange" )
+  @GroupThreads( 1 )
+  public void changeDefinition( ProviderRegistry registry,
+                                DefinitionCursor cursor )
+  {
+    JoinPointDefinition<?> definition = registry.definitions[ cursor.index ];
+    cursor.index = ( cursor.index + 1 ) % registry.definitions.length;
+    registry.proxyProvider.addJoinPointDefinition( definition );
+    registry.proxyProvider.removeJoinPointDefinition( definition );
+  }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentContext;
+
+import com.codeaffine.osgi.services.aop.JoinPoint;
+import com.codeaffine.osgi.services.aop.JoinPointDefinition;
+import com.codeaffine.osgi.services.aop.JoinPointFactory;
+
+
+// an activated proxy provider on top of a stubbed framework
+@State( Scope.Benchmark )
+public class ProviderRegistry {
+  static final int DEFINITION_COUNT = 16;
+
+  ProxyProvider proxyProvider;
+  JoinPointDefinition<?>[] definitions;
+  String serviceName;
+  private ServiceReference<?> reference;
+
+  @Setup
+  public void setUp() {
+    serviceName = BenchmarkService.class.getName();
+    reference = stub( ServiceReference.class, stub( Bundle.class, null ) );
+    Bundle bundle = stub( Bundle.class, null );
+    BundleContext bundleContext = stub( BundleContext.class, bundle );
+    proxyProvider = new ProxyProvider();
+    proxyProvider.activate( stub( ComponentContext.class, bundleContext ) );
+    proxyProvider.addJoinPointDefinition( createDefinition() );
+    definitions = new JoinPointDefinition<?>[ DEFINITION_COUNT ];
+    for( int i = 0; i < definitions.length; i++ ) {
+      definitions[ i ] = createDefinition();
+    }
+  }
+
+  Collection<ServiceReference<?>> find() {
+    Collection<ServiceReference<?>> result
+      = new ArrayList<ServiceReference<?>>( 1 );
+    result.add( reference );
+    proxyProvider.find( null, serviceName, null, false, result );
+    return result;
+  }
+
+  private static JoinPointDefinition<BenchmarkService> createDefinition() {
+    return new JoinPointDefinition<BenchmarkService>() {
+      private final JoinPointFactory<BenchmarkService> factory
+        = new JoinPointFactory<BenchmarkService>( BenchmarkService.class,
+                                                  this );
+
+      @Override
+      public JoinPointFactory<BenchmarkService> getJoinPointFactory() {
+        return factory;
+      }
+
+      @Override
+      public void register( JoinPoint<BenchmarkService> joinPoint ) {
+      }
+    };
+  }
+
+  // answers methods returning a type of the given value with it
+  @SuppressWarnings( "unchecked" )
+  private static <T> T stub( Class<T> type, final Object value ) {
+    ClassLoader loader = ProviderRegistry.class.getClassLoader();
+    InvocationHandler handler = new InvocationHandler() {
+      @Override
+      public Object invoke( Object proxy, Method method, Object[] args ) {
+        Class<?> returnType = method.getReturnType();
+        Object result = null;
+        if( method.getName().equals( "equals" ) ) {
+          result = Boolean.valueOf( proxy == args[ 0 ] );
+        } else if( method.getName().equals( "hashCode" ) ) {
+          result = Integer.valueOf( System.identityHashCode( proxy ) );
+        } else if( value != null && returnType.isInstance( value ) ) {
+          result = value;
+        } else if( returnType == boolean.class ) {
+          result = Boolean.FALSE;
+        } else if( returnType == long.class ) {
+          result = Long.valueOf( 0 );
+        } else if( returnType == int.class ) {
+          result = Integer.valueOf( 0 );
+        }
+        return result;
+      }
+    };
+    Class<?>[] interfaces = new Class<?>[] { type };
+    return ( T )Proxy.newProxyInstance( loader, interfaces, handler );
+  }
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+@State( Scope.Benchmark )
+public class ProxiedServices {
+  static final String ENGINE_REFLECTIVE = "reflective";
+  static final String ENGINE_GENERATED = "generated";
+
+  @Param( { ENGINE_REFLECTIVE, ENGINE_GENERATED } )
+  public String engine;
+  @Param( { "0", "1", "8" } )
+  public int adviceCount;
+
+  BenchmarkService direct;
+  BenchmarkService proxy;
+  Object parameter;
+  Object fallback;
+
+  @Setup
+  public void setUp() {
+    parameter = new Object();
+    fallback = new Object();
+    direct = new BenchmarkServiceImpl();
+    proxy = createProxy( direct );
+  }
+
+  private BenchmarkService createProxy( BenchmarkService service ) {
+    JoinPointImpl<BenchmarkService> joinPoint = createJoinPoint();
+    ProxyInvocationHandler invocationHandler
+      = new ProxyInvocationHandler( BenchmarkService.class, service );
+    invocationHandler.setJoinPoint( joinPoint );
+    ProxyFactory proxyFactory = createProxyFactory();
+    Object result
+      = proxyFactory.createProxy( BenchmarkService.class, invocationHandler );
+    return ( BenchmarkService )result;
+  }
+
+  private JoinPointImpl<BenchmarkService> createJoinPoint() {
+    JoinPointImpl<BenchmarkService> result
+      = new JoinPointImpl<BenchmarkService>( BenchmarkService.class );
+    for( int i = 0; i < adviceCount; i++ ) {
+      BenchmarkAdvice advice = new BenchmarkAdvice( fallback );
+      result.scheduleBefore( advice ).serve( result.any( Object.class ) );
+      result.scheduleAfter( advice ).serve( result.any( Object.class ) );
+      result.scheduleBefore( advice ).compute( 0, 0L, 0D, false );
+      result.scheduleAfter( advice ).compute( 0, 0L, 0D, false );
+    }
+    BenchmarkAdvice exceptionAdvice = new BenchmarkAdvice( fallback );
+    Object anyValue = result.any( Object.class );
+    result.scheduleOnException( exceptionAdvice ).fail( anyValue );
+    return result;
+  }
+
+  private ProxyFactory createProxyFactory() {
+    ProxyFactory result = new ReflectiveProxyFactory();
+    if( ENGINE_GENERATED.equals( engine ) ) {
+      result = new GeneratedProxyFactory( result );
+    }
+    return result;
+  }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codeaffine.osgi.services.aop.internal.concurrent.Stripes;
+
+
+// decides which calls execute a sampled advice
+public abstract class AdviceSampler {
+
+  public static Interval everyNth( int interval ) {
+    return new Interval( interval );
+  }
+
+  public static Probability withProbability( double probability ) {
+    return new Probability( probability );
+  }
+
+  public abstract boolean sample();
+
+  // each stripe samples its own nth call
+  public static class Interval extends AdviceSampler {
+    private static final int STRIPE_COUNT = Stripes.count( Stripes.MAX_COUNT );
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray counters;
+    private volatile int interval;
+
+    Interval( int interval ) {
+      this.counters = new AtomicLongArray( STRIPE_COUNT * PADDING );
+      setInterval( interval );
+    }
+
+    public int getInterval() {
+      return interval;
+    }
+
+    public void setInterval( int interval ) {
+      if( interval < 1 ) {
+        String message = "Interval must be positive: " + interval;
+        throw new IllegalArgumentException( message );
+      }
+      this.interval = interval;
+    }
+
+    @Override
+    public boolean sample() {
+      int stripe = ( int )Thread.currentThread().getId() & ( STRIPE_COUNT - 1 );
+      return counters.getAndIncrement( stripe * PADDING ) % interval == 0;
+    }
+  }
+
+  // samples each call with the given probability
+  public static class Probability extends AdviceSampler {
+    private volatile double probability;
+
+    Probability( double probability ) {
+      setProbability( probability );
+    }
+
+    public double getProbability() {
+      return probability;
+    }
+
+    public void setProbability( double probability ) {
+      if( probability < 0 || probability > 1 ) {
+        String message = "Probability must be within [0, 1]: " + probability;
+        throw new IllegalArgumentException( message );
+      }
+      this.probability = probability;
+    }
+
+    @Override
+    public boolean sample() {
+      double threshold = probability;
+      boolean result = threshold >= 1;
+      if( !result && threshold > 0 ) {
+        result = ThreadLocalRandom.current().nextDouble() < threshold;
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codeaffine.osgi.services.aop.internal.concurrent.BundleResources;
+import com.codeaffine.osgi.services.aop.internal.concurrent.WorkerThreads;
+
+
+// runs asynchronous advices in batches off the caller's thread
+public class AsyncAdviceExecutor {
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final int DEFAULT_BATCH_SIZE = 64;
+  private static final String WORKER_NAME = "Async Advice Executor";
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+  public enum OverflowPolicy {
+    BLOCK, CALLER_RUNS, DISCARD, DISCARD_OLDEST
+  }
+
+  private final Executor executor;
+  private final BlockingQueue<Runnable> queue;
+  private final int batchSize;
+  private final OverflowPolicy overflowPolicy;
+  private final AtomicBoolean drainScheduled;
+  private final AtomicLong discardedCount;
+  private final Runnable drainer;
+  private volatile Thread drainingThread;
+
+  public AsyncAdviceExecutor() {
+    this( DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, OverflowPolicy.BLOCK );
+  }
+
+  public AsyncAdviceExecutor( int capacity,
+                              int batchSize,
+                              OverflowPolicy overflowPolicy )
+  {
+    this( new Worker(), capacity, batchSize, overflowPolicy );
+  }
+
+  public AsyncAdviceExecutor( Executor executor,
+                              int capacity,
+                              int batchSize,
+                              OverflowPolicy overflowPolicy )
+  {
+    if( batchSize < 1 ) {
+      String message = "Batch size must be positive: " + batchSize;
+      throw new IllegalArgumentException( message );
+    }
+    this.executor = executor;
+    this.queue = new ArrayBlockingQueue<Runnable>( capacity );
+    this.batchSize = batchSize;
+    this.overflowPolicy = overflowPolicy;
+    this.drainScheduled = new AtomicBoolean();
+    this.discardedCount = new AtomicLong();
+    this.drainer = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+  }
+
+  public static AsyncAdviceExecutor getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  public void execute( Runnable task ) {
+    if( !queue.offer( task ) ) {
+      handleOverflow( task );
+    }
+    scheduleDrain();
+  }
+
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  public long getDiscardedCount() {
+    return discardedCount.get();
+  }
+
+  private void handleOverflow( Runnable task ) {
+    switch( overflowPolicy ) {
+      case BLOCK:
+        enqueueBlocking( task );
+      break;
+      case CALLER_RUNS:
+        runTask( task );
+      break;
+      case DISCARD_OLDEST:
+        while( !queue.offer( task ) ) {
+          if( queue.poll() != null ) {
+            discardedCount.incrementAndGet();
+          }
+        }
+      break;
+      default:
+        discardedCount.incrementAndGet();
+      break;
+    }
+  }
+
+  private void enqueueBlocking( Runnable task ) {
+    // an advice on the drain task would wait for itself
+    if( drainingThread == Thread.currentThread() ) {
+      runTask( task );
+      return;
+    }
+    // make sure the queue gets drained while waiting for free capacity
+    scheduleDrain();
+    try {
+      queue.put( task );
+    } catch( InterruptedException interrupted ) {
+      Thread.currentThread().interrupt();
+      discardedCount.incrementAndGet();
+    }
+  }
+
+  private void scheduleDrain() {
+    if( !queue.isEmpty() && drainScheduled.compareAndSet( false, true ) ) {
+      try {
+        executor.execute( drainer );
+      } catch( RejectedExecutionException rejected ) {
+        drainScheduled.set( false );
+        throw rejected;
+      }
+    }
+  }
+
+  // runs one batch at a time, so a shared executor is not blocked
+  private void drain() {
+    List<Runnable> batch = new ArrayList<Runnable>( batchSize );
+    int index = 0;
+    drainingThread = Thread.currentThread();
+    try {
+      queue.drainTo( batch, batchSize );
+      while( index < batch.size() ) {
+        runTask( batch.get( index++ ) );
+      }
+    } finally {
+      drainingThread = null;
+      requeue( batch.subList( index, batch.size() ) );
+      drainScheduled.set( false );
+      scheduleDrain();
+    }
+  }
+
+  // tasks not run because of an error are left to the next drain
+  private void requeue( List<Runnable> tasks ) {
+    for( Runnable task : tasks ) {
+      if( !queue.offer( task ) ) {
+        discardedCount.incrementAndGet();
+      }
+    }
+  }
+
+  private static void runTask( Runnable task ) {
+    try {
+      task.run();
+    } catch( RuntimeException problem ) {
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException( thread, problem );
+    }
+  }
+
+  // released with the bundle and recreated on demand
+  private static class Worker implements Executor {
+    private ThreadPoolExecutor pool;
+
+    @Override
+    public synchronized void execute( Runnable command ) {
+      if( pool == null ) {
+        pool = createPool();
+        BundleResources.register( new Runnable() {
+          @Override
+          public void run() {
+            release();
+          }
+        } );
+      }
+      pool.execute( command );
+    }
+
+    synchronized void release() {
+      if( pool != null ) {
+        pool.shutdown();
+        pool = null;
+      }
+    }
+
+    private static ThreadPoolExecutor createPool() {
+      ThreadPoolExecutor result
+        = new ThreadPoolExecutor( 1,
+                                  1,
+                                  WORKER_KEEP_ALIVE_SECONDS,
+                                  TimeUnit.SECONDS,
+                                  new LinkedBlockingQueue<Runnable>(),
+                                  WorkerThreads.createFactory( WORKER_NAME ) );
+      result.allowCoreThreadTimeOut( true );
+      return result;
+    }
+  }
+
+  private static class DefaultHolder {
+    static final AsyncAdviceExecutor INSTANCE = new AsyncAdviceExecutor();
+  }
+}
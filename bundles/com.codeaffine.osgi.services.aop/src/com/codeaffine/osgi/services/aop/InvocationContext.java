@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import java.lang.reflect.Method;
+
+
+// only valid during the advised call, instances are reused
+public interface InvocationContext {
+  Method getMethod();
+  Object getTarget();
+  Object[] getArguments();
+  long getStartTime();
+  Object getAttribute( Object key );
+  void setAttribute( Object key, Object value );
+}
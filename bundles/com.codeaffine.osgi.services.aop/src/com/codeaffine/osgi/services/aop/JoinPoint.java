@@ -16,6 +16,12 @@ public interface JoinPoint<T> {
   <P> P any( Class<P> paramType );
   
   T scheduleBefore( Object advice );
+  T scheduleBefore( Object advice, AdviceSampler sampler );
   T scheduleAfter( Object advice );
+  T scheduleAfter( Object advice, AdviceSampler sampler );
+  T scheduleAfterAsync( Object advice );
+  T scheduleAfterAsync( Object advice, AsyncAdviceExecutor executor );
   T scheduleOnException( Object advice );
+  T scheduleAround( Interceptor interceptor );
+  void scheduleAround( Pointcut pointcut, Interceptor interceptor );
 }
\ No newline at end of file
@@ -10,25 +10,72 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop;
 
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
 import com.codeaffine.osgi.services.aop.internal.JoinPointImpl;
 
 
 public class JoinPointFactory<T> {
   private Class<T> serviceType;
   private JoinPointDefinition<T> proxyDefinition;
+  private Filter filter;
+  private volatile JoinPoint<T> joinPoint;
+
+  public JoinPointFactory( Class<T> serviceType,
+                           JoinPointDefinition<T> proxyDefinition )
+  {
+    this( serviceType, proxyDefinition, null );
+  }
 
-  public JoinPointFactory( Class<T> serviceType, JoinPointDefinition<T> proxyDefinition ) {
+  // only services whose properties match the given LDAP filter are advised
+  public JoinPointFactory( Class<T> serviceType,
+                           JoinPointDefinition<T> proxyDefinition,
+                           String filter )
+  {
     this.serviceType = serviceType;
     this.proxyDefinition = proxyDefinition;
+    this.filter = createFilter( filter );
   }
   
   public Class<T> getServiceType() {
     return serviceType;
   }
+
+  public Filter getFilter() {
+    return filter;
+  }
   
   public JoinPoint<T> create() {
     JoinPoint<T> result = new JoinPointImpl<T>( serviceType );
     proxyDefinition.register( result );
     return result;
   }
+
+  // the advice plan is shared by all proxies of the type
+  public JoinPoint<T> getJoinPoint() {
+    JoinPoint<T> result = joinPoint;
+    if( result == null ) {
+      synchronized( this ) {
+        if( joinPoint == null ) {
+          joinPoint = create();
+        }
+        result = joinPoint;
+      }
+    }
+    return result;
+  }
+
+  private static Filter createFilter( String filter ) {
+    Filter result = null;
+    if( filter != null ) {
+      try {
+        result = FrameworkUtil.createFilter( filter );
+      } catch( InvalidSyntaxException invalidSyntax ) {
+        throw new IllegalArgumentException( invalidSyntax );
+      }
+    }
+    return result;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.regex.Pattern;
+
+
+// evaluated once when the interceptor is scheduled
+public abstract class Pointcut {
+
+  public abstract boolean matches( Method method );
+
+  public static Pointcut all() {
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return true;
+      }
+    };
+  }
+
+  // '*' matches any sequence of characters, '?' a single character
+  public static Pointcut named( String wildcard ) {
+    StringBuilder regex = new StringBuilder();
+    for( String part : wildcard.split( "(?=[*?])|(?<=[*?])" ) ) {
+      if( "*".equals( part ) ) {
+        regex.append( ".*" );
+      } else if( "?".equals( part ) ) {
+        regex.append( "." );
+      } else if( part.length() > 0 ) {
+        regex.append( Pattern.quote( part ) );
+      }
+    }
+    return matching( regex.toString() );
+  }
+
+  public static Pointcut matching( String regex ) {
+    final Pattern pattern = Pattern.compile( regex );
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return pattern.matcher( method.getName() ).matches();
+      }
+    };
+  }
+
+  public static Pointcut annotatedWith(
+    final Class<? extends Annotation> annotationType )
+  {
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return method.isAnnotationPresent( annotationType );
+      }
+    };
+  }
+
+  public Pointcut and( final Pointcut other ) {
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return Pointcut.this.matches( method ) && other.matches( method );
+      }
+    };
+  }
+
+  public Pointcut or( final Pointcut other ) {
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return Pointcut.this.matches( method ) || other.matches( method );
+      }
+    };
+  }
+
+  public Pointcut not() {
+    return new Pointcut() {
+      @Override
+      public boolean matches( Method method ) {
+        return !Pointcut.this.matches( method );
+      }
+    };
+  }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.codeaffine.osgi.services.aop.internal.concurrent.BundleResources;
+import com.codeaffine.osgi.services.aop.internal.concurrent.WorkerThreads;
+
+
+// created on first use and released with the bundle, recreated on later use
+class AspectExecutors {
+  static final int MAX_WORKER_COUNT = 256;
+  private static final String WORKER_NAME = "Aspect Worker";
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+  private static final Executor DEFAULT = new Executor() {
+    @Override
+    public void execute( Runnable command ) {
+      getExecutor().execute( command );
+    }
+  };
+
+  private static volatile ThreadPoolExecutor executor;
+  private static volatile TimerWheel timerWheel;
+  private static boolean releaseRegistered;
+
+  static Executor getDefault() {
+    return DEFAULT;
+  }
+
+  static ThreadPoolExecutor getExecutor() {
+    ThreadPoolExecutor result = executor;
+    if( result == null ) {
+      result = createExecutor();
+    }
+    return result;
+  }
+
+  static TimerWheel getTimerWheel() {
+    TimerWheel result = timerWheel;
+    if( result == null ) {
+      result = createTimerWheel();
+    }
+    return result;
+  }
+
+  static synchronized void release() {
+    if( executor != null ) {
+      executor.shutdown();
+      executor = null;
+    }
+    if( timerWheel != null ) {
+      timerWheel.stop();
+      timerWheel = null;
+    }
+    releaseRegistered = false;
+  }
+
+  private static synchronized ThreadPoolExecutor createExecutor() {
+    if( executor == null ) {
+      registerRelease();
+      ThreadPoolExecutor created
+        = new ThreadPoolExecutor( MAX_WORKER_COUNT,
+                                  MAX_WORKER_COUNT,
+                                  WORKER_KEEP_ALIVE_SECONDS,
+                                  TimeUnit.SECONDS,
+                                  new LinkedBlockingQueue<Runnable>(),
+                                  WorkerThreads.createFactory( WORKER_NAME ) );
+      created.allowCoreThreadTimeOut( true );
+      executor = created;
+    }
+    return executor;
+  }
+
+  private static synchronized TimerWheel createTimerWheel() {
+    if( timerWheel == null ) {
+      registerRelease();
+      long tick = TimerWheel.DEFAULT_TICK_MILLIS;
+      timerWheel = new TimerWheel( tick, TimeUnit.MILLISECONDS );
+    }
+    return timerWheel;
+  }
+
+  private static void registerRelease() {
+    if( !releaseRegistered ) {
+      releaseRegistered = true;
+      BundleResources.register( new Runnable() {
+        @Override
+        public void run() {
+          release();
+        }
+      } );
+    }
+  }
+
+  private AspectExecutors() {
+    // prevent instance creation
+  }
+}
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+import com.codeaffine.osgi.services.aop.RestrictedInterceptor;
+
+
+// calls still buffered when a service goes away are delivered unless flushed
+public class BatchingInterceptor implements RestrictedInterceptor {
+  private final String batchMethodName;
+  private final int maxBatchSize;
+  private final long maxDelay;
+  private final Executor executor;
+  private final TimerWheel timerWheel;
+  private final ConcurrentMap<TargetKey, Buffer> buffers;
+
+  public BatchingInterceptor( String batchMethodName,
+                              int maxBatchSize,
+                              long maxDelay,
+                              TimeUnit unit )
+  {
+    this( batchMethodName,
+          maxBatchSize,
+          maxDelay,
+          unit,
+          AspectExecutors.getDefault() );
+  }
+
+  public BatchingInterceptor( String batchMethodName,
+                              int maxBatchSize,
+                              long maxDelay,
+                              TimeUnit unit,
+                              Executor executor )
+  {
+    this( batchMethodName, maxBatchSize, maxDelay, unit, executor, null );
+  }
+
+  // a null timer wheel stands for the shared one, which is looked up per call
+  BatchingInterceptor( String batchMethodName,
+                       int maxBatchSize,
+                       long maxDelay,
+                       TimeUnit unit,
+                       Executor executor,
+                       TimerWheel timerWheel )
+  {
+    if( maxBatchSize < 1 ) {
+      String message = "Maximum batch size must be positive: " + maxBatchSize;
+      throw new IllegalArgumentException( message );
+    }
+    if( maxDelay < 1 ) {
+      String message = "Maximum delay must be positive: " + maxDelay;
+      throw new IllegalArgumentException( message );
+    }
+    this.batchMethodName = batchMethodName;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelay = unit.toNanos( maxDelay );
+    this.executor = executor;
+    this.timerWheel = timerWheel;
+    this.buffers = new ConcurrentHashMap<TargetKey, Buffer>();
+  }
+
+  @Override
+  public void checkMethod( Method method ) {
+    if( method.getReturnType() != void.class ) {
+      String pattern = "Only void methods can be batched: ''{0}''.";
+      String message = MessageFormat.format( pattern, method.getName() );
+      throw new IllegalStateException( message );
+    }
+  }
+
+  @Override
+  public Object intercept( Invocation invocation ) throws Exception {
+    Object[] args = invocation.getArguments();
+    Object call = args != null && args.length == 1 ? args[ 0 ] : args;
+    boolean added = false;
+    while( !added ) {
+      added = getBuffer( invocation ).add( call );
+    }
+    return null;
+  }
+
+  public void flush() {
+    for( Buffer buffer : buffers.values() ) {
+      boolean flushed = true;
+      while( flushed ) {
+        flushed = buffer.flushBatch();
+      }
+    }
+  }
+
+  public int getBufferedCount() {
+    int result = 0;
+    for( Buffer buffer : buffers.values() ) {
+      result += buffer.getSize();
+    }
+    return result;
+  }
+
+  private TimerWheel getTimerWheel() {
+    TimerWheel result = timerWheel;
+    if( result == null ) {
+      result = AspectExecutors.getTimerWheel();
+    }
+    return result;
+  }
+
+  private Buffer getBuffer( Invocation invocation )
+    throws NoSuchMethodException
+  {
+    TargetKey key = new TargetKey( invocation.getTarget() );
+    Buffer result = buffers.get( key );
+    if( result == null ) {
+      Method method = invocation.getMethod();
+      Buffer created = new Buffer( key, findBatchMethod( method, key.target ) );
+      result = buffers.putIfAbsent( key, created );
+      if( result == null ) {
+        result = created;
+      }
+    }
+    return result;
+  }
+
+  private Method findBatchMethod( Method method, Object target )
+    throws NoSuchMethodException
+  {
+    checkMethod( method );
+    Method result;
+    try {
+      Class<?> serviceType = method.getDeclaringClass();
+      result = serviceType.getMethod( batchMethodName, List.class );
+    } catch( NoSuchMethodException notOnServiceType ) {
+      result = target.getClass().getMethod( batchMethodName, List.class );
+      result.setAccessible( true );
+    }
+    return result;
+  }
+
+  // retired buffers have a negative size
+  private class Buffer implements Runnable, TimerWheel.Timeout {
+    private final TargetKey key;
+    private final Method batchMethod;
+    private final Queue<Object> calls;
+    private final AtomicInteger size;
+    private final AtomicBoolean flushScheduled;
+    private final AtomicBoolean timerScheduled;
+
+    Buffer( TargetKey key, Method batchMethod ) {
+      this.key = key;
+      this.batchMethod = batchMethod;
+      this.calls = new ConcurrentLinkedQueue<Object>();
+      this.size = new AtomicInteger();
+      this.flushScheduled = new AtomicBoolean();
+      this.timerScheduled = new AtomicBoolean();
+    }
+
+    boolean add( Object call ) {
+      int count = reserve();
+      if( count > 0 ) {
+        calls.add( call );
+        if( count >= maxBatchSize ) {
+          scheduleFlush();
+        } else {
+          scheduleTimer();
+        }
+      }
+      return count > 0;
+    }
+
+    int getSize() {
+      return Math.max( 0, size.get() );
+    }
+
+    @Override
+    public boolean isDone() {
+      return false;
+    }
+
+    @Override
+    public void expire() {
+      timerScheduled.set( false );
+      scheduleFlush();
+    }
+
+    @Override
+    public void run() {
+      try {
+        flushBatch();
+      } finally {
+        flushScheduled.set( false );
+        int count = size.get();
+        if( count >= maxBatchSize ) {
+          scheduleFlush();
+        } else if( count > 0 ) {
+          scheduleTimer();
+        } else if( size.compareAndSet( 0, -1 ) ) {
+          buffers.remove( key, this );
+        }
+      }
+    }
+
+    // serializes the batches of a target, calls not queued yet are left over
+    synchronized boolean flushBatch() {
+      List<Object> batch = new ArrayList<Object>( maxBatchSize );
+      Object call = calls.poll();
+      while( call != null ) {
+        batch.add( call );
+        call = batch.size() < maxBatchSize ? calls.poll() : null;
+      }
+      if( !batch.isEmpty() ) {
+        size.addAndGet( -batch.size() );
+        invokeBatchMethod( batch );
+      }
+      return !batch.isEmpty();
+    }
+
+    private int reserve() {
+      int result = 0;
+      boolean reserved = false;
+      while( !reserved ) {
+        int current = size.get();
+        if( current < 0 ) {
+          reserved = true;
+        } else {
+          result = current + 1;
+          reserved = size.compareAndSet( current, result );
+        }
+      }
+      return result;
+    }
+
+    private void scheduleFlush() {
+      if(    !flushScheduled.get()
+          && flushScheduled.compareAndSet( false, true ) )
+      {
+        executor.execute( this );
+      }
+    }
+
+    private void scheduleTimer() {
+      if(    !timerScheduled.get()
+          && timerScheduled.compareAndSet( false, true ) )
+      {
+        getTimerWheel().schedule( this, System.nanoTime() + maxDelay );
+      }
+    }
+
+    private void invokeBatchMethod( List<Object> batch ) {
+      try {
+        batchMethod.invoke( key.target, batch );
+      } catch( InvocationTargetException failure ) {
+        report( failure.getCause() );
+      } catch( IllegalAccessException shouldNotHappen ) {
+        throw new IllegalStateException( shouldNotHappen );
+      } catch( RuntimeException problem ) {
+        report( problem );
+      }
+    }
+
+    private void report( Throwable problem ) {
+      Thread thread = Thread.currentThread();
+      UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+      handler.uncaughtException( thread, problem );
+    }
+  }
+
+  // services may implement equals by value
+  private static class TargetKey {
+    final Object target;
+
+    TargetKey( Object target ) {
+      this.target = target;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode( target );
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+      return obj instanceof TargetKey && ( ( TargetKey )obj ).target == target;
+    }
+  }
+}
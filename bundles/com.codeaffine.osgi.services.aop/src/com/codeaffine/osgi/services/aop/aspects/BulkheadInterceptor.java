@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.text.MessageFormat;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+import com.codeaffine.osgi.services.aop.internal.concurrent.Stripes;
+
+
+// the limit is shared by all methods an instance is scheduled for
+public class BulkheadInterceptor implements Interceptor {
+  private static final int PADDING = 16;
+
+  private final int maxConcurrentCalls;
+  private final long maxWait;
+  private final int stripeCount;
+  private final AtomicIntegerArray permits;
+  private final AtomicLong rejectedCount;
+  private final AtomicLong waiterCount;
+  private final ReentrantLock lock;
+  private final Condition released;
+
+  public BulkheadInterceptor( int maxConcurrentCalls ) {
+    this( maxConcurrentCalls, 0, TimeUnit.NANOSECONDS );
+  }
+
+  public BulkheadInterceptor( int maxConcurrentCalls,
+                              long maxWait,
+                              TimeUnit unit )
+  {
+    if( maxConcurrentCalls < 1 ) {
+      String message
+        = "Maximum concurrent calls must be positive: " + maxConcurrentCalls;
+      throw new IllegalArgumentException( message );
+    }
+    if( maxWait < 0 ) {
+      String message = "Maximum wait must not be negative: " + maxWait;
+      throw new IllegalArgumentException( message );
+    }
+    this.maxConcurrentCalls = maxConcurrentCalls;
+    this.maxWait = unit.toNanos( maxWait );
+    this.stripeCount = Stripes.count( maxConcurrentCalls );
+    this.permits = createPermits( maxConcurrentCalls, stripeCount );
+    this.rejectedCount = new AtomicLong();
+    this.waiterCount = new AtomicLong();
+    this.lock = new ReentrantLock();
+    this.released = lock.newCondition();
+  }
+
+  @Override
+  public Object intercept( Invocation invocation ) throws Exception {
+    int stripe = acquire( invocation );
+    try {
+      return invocation.proceed();
+    } finally {
+      release( stripe );
+    }
+  }
+
+  public int getMaxConcurrentCalls() {
+    return maxConcurrentCalls;
+  }
+
+  public int getActiveCount() {
+    int available = 0;
+    for( int i = 0; i < stripeCount; i++ ) {
+      available += permits.get( i * PADDING );
+    }
+    return maxConcurrentCalls - available;
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  private int acquire( Invocation invocation ) {
+    int result = tryAcquire();
+    if( result == -1 && maxWait > 0 ) {
+      result = awaitPermit();
+    }
+    if( result == -1 ) {
+      rejectedCount.incrementAndGet();
+      String pattern = "Concurrency limit of {0} exceeded by call of ''{1}''.";
+      String methodName = invocation.getMethod().getName();
+      String limit = String.valueOf( maxConcurrentCalls );
+      Object[] arguments = new Object[] { limit, methodName };
+      String message = MessageFormat.format( pattern, arguments );
+      throw new RejectedExecutionException( message );
+    }
+    return result;
+  }
+
+  private int tryAcquire() {
+    int home = ( int )Thread.currentThread().getId() & ( stripeCount - 1 );
+    int result = -1;
+    for( int i = 0; result == -1 && i < stripeCount; i++ ) {
+      int stripe = ( home + i ) & ( stripeCount - 1 );
+      if( tryAcquire( stripe * PADDING ) ) {
+        result = stripe;
+      }
+    }
+    return result;
+  }
+
+  private boolean tryAcquire( int index ) {
+    int available = permits.get( index );
+    while(    available > 0
+           && !permits.compareAndSet( index, available, available - 1 ) )
+    {
+      available = permits.get( index );
+    }
+    return available > 0;
+  }
+
+  // waiters register first, a release leaves a permit or signals
+  private int awaitPermit() {
+    int result = -1;
+    waiterCount.incrementAndGet();
+    lock.lock();
+    try {
+      long remaining = maxWait;
+      result = tryAcquire();
+      while( result == -1 && remaining > 0 ) {
+        remaining = released.awaitNanos( remaining );
+        result = tryAcquire();
+      }
+    } catch( InterruptedException interrupted ) {
+      Thread.currentThread().interrupt();
+    } finally {
+      lock.unlock();
+      waiterCount.decrementAndGet();
+    }
+    return result;
+  }
+
+  private void release( int stripe ) {
+    permits.incrementAndGet( stripe * PADDING );
+    if( waiterCount.get() > 0 ) {
+      lock.lock();
+      try {
+        released.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // the permits of all stripes sum up to the limit
+  private static AtomicIntegerArray createPermits( int maxConcurrentCalls,
+                                                   int stripeCount )
+  {
+    AtomicIntegerArray result = new AtomicIntegerArray( stripeCount * PADDING );
+    for( int i = 0; i < stripeCount; i++ ) {
+      int remainder = i < maxConcurrentCalls % stripeCount ? 1 : 0;
+      result.set( i * PADDING, maxConcurrentCalls / stripeCount + remainder );
+    }
+    return result;
+  }
+}
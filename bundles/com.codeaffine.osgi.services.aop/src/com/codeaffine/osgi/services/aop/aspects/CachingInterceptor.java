@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class CachingInterceptor implements Interceptor {
+  private static final int MAX_SEGMENT_COUNT = 16;
+
+  private final Segment[] segments;
+  private final ReferenceQueue<Object> releasedTargets;
+  private final long timeToLive;
+
+  public CachingInterceptor( int maximumSize ) {
+    this( maximumSize, 0, TimeUnit.NANOSECONDS );
+  }
+
+  public CachingInterceptor( int maximumSize, long timeToLive, TimeUnit unit ) {
+    if( maximumSize < 1 ) {
+      String message = "Maximum size must be positive: " + maximumSize;
+      throw new IllegalArgumentException( message );
+    }
+    if( timeToLive < 0 ) {
+      String message = "Time to live must not be negative: " + timeToLive;
+      throw new IllegalArgumentException( message );
+    }
+    this.timeToLive = unit.toNanos( timeToLive );
+    this.segments = createSegments( maximumSize );
+    this.releasedTargets = new ReferenceQueue<Object>();
+  }
+
+  @Override
+  public Object intercept( Invocation invocation ) throws Exception {
+    purge();
+    CallKey key = new CallKey( invocation, releasedTargets );
+    Segment segment = segmentFor( key );
+    long now = currentTime();
+    CacheEntry entry = segment.get( key, now );
+    Object result;
+    if( entry == null ) {
+      result = invocation.proceed();
+      long expiration = timeToLive == 0 ? 0 : now + timeToLive;
+      segment.put( key, new CacheEntry( result, expiration ) );
+    } else {
+      result = entry.value;
+    }
+    return result;
+  }
+
+  public long getHitCount() {
+    long result = 0;
+    for( Segment segment : segments ) {
+      result += segment.getHitCount();
+    }
+    return result;
+  }
+
+  public long getMissCount() {
+    long result = 0;
+    for( Segment segment : segments ) {
+      result += segment.getMissCount();
+    }
+    return result;
+  }
+
+  public int size() {
+    purge();
+    int result = 0;
+    for( Segment segment : segments ) {
+      result += segment.size();
+    }
+    return result;
+  }
+
+  public void clear() {
+    for( Segment segment : segments ) {
+      segment.clear();
+    }
+  }
+
+  long currentTime() {
+    return System.nanoTime();
+  }
+
+  private void purge() {
+    Reference<?> released = releasedTargets.poll();
+    while( released != null ) {
+      CallKey key = ( CallKey )released;
+      segmentFor( key ).remove( key );
+      released = releasedTargets.poll();
+    }
+  }
+
+  private Segment segmentFor( CallKey key ) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[ hash & ( segments.length - 1 ) ];
+  }
+
+  private static Segment[] createSegments( int maximumSize ) {
+    int count = Math.min( MAX_SEGMENT_COUNT, maximumSize );
+    int segmentCount = Integer.highestOneBit( count );
+    Segment[] result = new Segment[ segmentCount ];
+    for( int i = 0; i < segmentCount; i++ ) {
+      int remainder = i < maximumSize % segmentCount ? 1 : 0;
+      result[ i ] = new Segment( maximumSize / segmentCount + remainder );
+    }
+    return result;
+  }
+
+  private static class Segment {
+    private final Map<CallKey, CacheEntry> entries;
+    private long hitCount;
+    private long missCount;
+
+    Segment( final int capacity ) {
+      entries = new LinkedHashMap<CallKey, CacheEntry>( 16, 0.75F, true ) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+          Entry<CallKey, CacheEntry> eldest )
+        {
+          return size() > capacity;
+        }
+      };
+    }
+
+    synchronized CacheEntry get( CallKey key, long now ) {
+      CacheEntry result = entries.get( key );
+      if( result != null && result.isExpired( now ) ) {
+        entries.remove( key );
+        result = null;
+      }
+      if( result == null ) {
+        missCount++;
+      } else {
+        hitCount++;
+      }
+      return result;
+    }
+
+    synchronized void put( CallKey key, CacheEntry entry ) {
+      entries.put( key, entry );
+    }
+
+    synchronized void remove( CallKey key ) {
+      entries.remove( key );
+    }
+
+    synchronized long getHitCount() {
+      return hitCount;
+    }
+
+    synchronized long getMissCount() {
+      return missCount;
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+  }
+
+  private static class CacheEntry {
+    final Object value;
+    private final long expiration;
+
+    CacheEntry( Object value, long expiration ) {
+      this.value = value;
+      this.expiration = expiration;
+    }
+
+    boolean isExpired( long now ) {
+      return expiration != 0 && now - expiration >= 0;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+// targets are compared by identity and only weakly referenced
+class CallKey extends WeakReference<Object> {
+  private final boolean hasTarget;
+  private final Method method;
+  private final Object[] args;
+  private final int hashCode;
+
+  CallKey( Invocation invocation ) {
+    this( invocation, null );
+  }
+
+  CallKey( Invocation invocation, ReferenceQueue<Object> queue ) {
+    super( invocation.getTarget(), queue );
+    Object target = invocation.getTarget();
+    Object[] arguments = invocation.getArguments();
+    this.hasTarget = target != null;
+    this.method = invocation.getMethod();
+    this.args = arguments == null ? null : arguments.clone();
+    this.hashCode = computeHashCode( target, method, args );
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals( Object obj ) {
+    boolean result = this == obj;
+    if( !result && obj instanceof CallKey ) {
+      CallKey other = ( CallKey )obj;
+      Object target = get();
+      result =    hashCode == other.hashCode
+               && hasTarget == other.hasTarget
+               && target == other.get()
+               && ( target != null || !hasTarget )
+               && method.equals( other.method )
+               && Arrays.deepEquals( args, other.args );
+    }
+    return result;
+  }
+
+  private static int computeHashCode( Object target,
+                                      Method method,
+                                      Object[] args )
+  {
+    int result = System.identityHashCode( target );
+    result = 31 * result + method.hashCode();
+    return 31 * result + Arrays.deepHashCode( args );
+  }
+}
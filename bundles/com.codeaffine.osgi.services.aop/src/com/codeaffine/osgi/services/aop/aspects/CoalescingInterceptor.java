@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+// concurrent equal calls on the same target share one call
+public class CoalescingInterceptor implements Interceptor {
+  private final ConcurrentMap<CallKey, InFlightCall> inFlightCalls;
+  private final AtomicLong coalescedCount;
+
+  public CoalescingInterceptor() {
+    inFlightCalls = new ConcurrentHashMap<CallKey, InFlightCall>();
+    coalescedCount = new AtomicLong();
+  }
+
+  @Override
+  public Object intercept( Invocation invocation ) throws Exception {
+    CallKey key = new CallKey( invocation );
+    InFlightCall call = new InFlightCall();
+    InFlightCall inFlightCall = inFlightCalls.putIfAbsent( key, call );
+    Object result;
+    if( inFlightCall == null ) {
+      result = proceed( invocation, key, call );
+    } else {
+      coalescedCount.incrementAndGet();
+      result = inFlightCall.await();
+    }
+    return result;
+  }
+
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  public int getInFlightCount() {
+    return inFlightCalls.size();
+  }
+
+  private Object proceed( Invocation invocation,
+                          CallKey key,
+                          InFlightCall call )
+    throws Exception
+  {
+    try {
+      Object result = invocation.proceed();
+      call.complete( result, null );
+      return result;
+    } catch( Exception exception ) {
+      call.complete( null, exception );
+      throw exception;
+    } catch( Error error ) {
+      call.complete( null, error );
+      throw error;
+    } finally {
+      inFlightCalls.remove( key, call );
+    }
+  }
+
+  private static class InFlightCall {
+    private final CountDownLatch completion = new CountDownLatch( 1 );
+    private Object result;
+    private Throwable problem;
+
+    // the latch publishes the outcome to the waiting callers
+    void complete( Object result, Throwable problem ) {
+      this.result = result;
+      this.problem = problem;
+      completion.countDown();
+    }
+
+    Object await() throws Exception {
+      completion.await();
+      if( problem instanceof Error ) {
+        throw ( Error )problem;
+      }
+      if( problem != null ) {
+        throw ( Exception )problem;
+      }
+      return result;
+    }
+  }
+}
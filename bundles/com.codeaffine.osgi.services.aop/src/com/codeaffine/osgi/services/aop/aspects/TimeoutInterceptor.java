@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.text.MessageFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+import com.codeaffine.osgi.services.aop.aspects.TimerWheel.Timeout;
+
+
+public class TimeoutInterceptor implements Interceptor {
+  private final long timeout;
+  private final Executor executor;
+  private final TimerWheel timerWheel;
+
+  public TimeoutInterceptor( long timeout, TimeUnit unit ) {
+    this( timeout, unit, AspectExecutors.getDefault() );
+  }
+
+  public TimeoutInterceptor( long timeout, TimeUnit unit, Executor executor ) {
+    this( timeout, unit, executor, null );
+  }
+
+  // a null timer wheel stands for the shared one, which is looked up per call
+  TimeoutInterceptor( long timeout,
+                      TimeUnit unit,
+                      Executor executor,
+                      TimerWheel timerWheel )
+  {
+    if( timeout < 1 ) {
+      String message = "Timeout must be positive: " + timeout;
+      throw new IllegalArgumentException( message );
+    }
+    this.timeout = unit.toNanos( timeout );
+    this.executor = executor;
+    this.timerWheel = timerWheel;
+  }
+
+  @Override
+  public Object intercept( Invocation invocation ) throws Exception {
+    TimedCall call = new TimedCall( invocation, timeout );
+    long deadline = System.nanoTime() + timeout;
+    executor.execute( call );
+    TimerWheel.Entry entry = getTimerWheel().schedule( call, deadline );
+    try {
+      return call.await( deadline );
+    } finally {
+      entry.cancel();
+    }
+  }
+
+  public long getTimeout( TimeUnit unit ) {
+    return unit.convert( timeout, TimeUnit.NANOSECONDS );
+  }
+
+  private TimerWheel getTimerWheel() {
+    TimerWheel result = timerWheel;
+    if( result == null ) {
+      result = AspectExecutors.getTimerWheel();
+    }
+    return result;
+  }
+
+  private static class TimedCall extends FutureTask<Object> implements Timeout {
+    private final Invocation invocation;
+    private final long timeout;
+    private volatile boolean expired;
+
+    TimedCall( final Invocation invocation, long timeout ) {
+      super( new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          return invocation.proceed();
+        }
+      } );
+      this.invocation = invocation;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public void expire() {
+      expired = true;
+      cancel( true );
+    }
+
+    // the timed get covers a stopped timer wheel
+    Object await( long deadline ) throws Exception {
+      try {
+        return get( deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+      } catch( TimeoutException timedOut ) {
+        expire();
+        throw createTimeoutException();
+      } catch( CancellationException cancellation ) {
+        if( expired ) {
+          throw createTimeoutException();
+        }
+        throw cancellation;
+      } catch( InterruptedException interrupted ) {
+        cancel( true );
+        throw interrupted;
+      } catch( ExecutionException failure ) {
+        throw unwrap( failure.getCause() );
+      }
+    }
+
+    private TimeoutException createTimeoutException() {
+      String pattern = "Call of ''{0}'' timed out after {1} ms.";
+      String methodName = invocation.getMethod().getName();
+      long millis = TimeUnit.NANOSECONDS.toMillis( timeout );
+      String message
+        = MessageFormat.format( pattern, methodName, String.valueOf( millis ) );
+      return new TimeoutException( message );
+    }
+
+    private static Exception unwrap( Throwable cause ) {
+      if( cause instanceof Error ) {
+        throw ( Error )cause;
+      }
+      Exception result;
+      if( cause instanceof Exception ) {
+        result = ( Exception )cause;
+      } else {
+        result = new UndeclaredThrowableException( cause );
+      }
+      return result;
+    }
+  }
+}
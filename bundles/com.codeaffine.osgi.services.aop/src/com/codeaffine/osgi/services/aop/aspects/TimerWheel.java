@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+// expires timeouts on a single thread, entries left on stop are cancelled
+class TimerWheel {
+  static final long DEFAULT_TICK_MILLIS = 10;
+  private static final int SLOT_COUNT = 512;
+  private static final String THREAD_NAME = "Timeout Timer Wheel";
+
+  interface Timeout {
+    boolean isDone();
+    void expire();
+  }
+
+  private final long tickNanos;
+  private final long startTime;
+  private final Queue<Entry> pending;
+  private final List<List<Entry>> slots;
+  private final Thread thread;
+  private volatile boolean running;
+
+  TimerWheel( long tick, TimeUnit unit ) {
+    if( tick < 1 ) {
+      throw new IllegalArgumentException( "Tick must be positive: " + tick );
+    }
+    this.tickNanos = unit.toNanos( tick );
+    this.startTime = System.nanoTime();
+    this.pending = new ConcurrentLinkedQueue<Entry>();
+    this.slots = createSlots();
+    this.running = true;
+    this.thread = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        turn();
+      }
+    }, THREAD_NAME );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+  // the deadline is given in terms of System.nanoTime()
+  Entry schedule( Timeout timeout, long deadline ) {
+    Entry result = new Entry( timeout, deadline );
+    pending.add( result );
+    return result;
+  }
+
+  void stop() {
+    running = false;
+    LockSupport.unpark( thread );
+  }
+
+  private void turn() {
+    long tick = 0;
+    while( running ) {
+      awaitTick( startTime + ( tick + 1 ) * tickNanos );
+      long now = System.nanoTime();
+      transferPending( now );
+      expire( slots.get( ( int )( tick % SLOT_COUNT ) ), now );
+      tick++;
+    }
+    cancelRemaining();
+  }
+
+  private void cancelRemaining() {
+    Entry entry = pending.poll();
+    while( entry != null ) {
+      entry.cancel();
+      entry = pending.poll();
+    }
+    for( List<Entry> slot : slots ) {
+      for( Entry slotted : slot ) {
+        slotted.cancel();
+      }
+      slot.clear();
+    }
+  }
+
+  private void awaitTick( long tickTime ) {
+    long remaining = tickTime - System.nanoTime();
+    while( running && remaining > 0 ) {
+      LockSupport.parkNanos( this, remaining );
+      remaining = tickTime - System.nanoTime();
+    }
+  }
+
+  private void transferPending( long now ) {
+    Entry entry = pending.poll();
+    while( entry != null ) {
+      if( entry.deadline - now <= 0 ) {
+        expire( entry );
+      } else {
+        long slotTick = ( entry.deadline - startTime - 1 ) / tickNanos;
+        slots.get( ( int )( slotTick % SLOT_COUNT ) ).add( entry );
+      }
+      entry = pending.poll();
+    }
+  }
+
+  private static void expire( List<Entry> slot, long now ) {
+    Iterator<Entry> entries = slot.iterator();
+    while( entries.hasNext() ) {
+      Entry entry = entries.next();
+      if( entry.isDone() ) {
+        entries.remove();
+      } else if( entry.deadline - now <= 0 ) {
+        entries.remove();
+        expire( entry );
+      }
+    }
+  }
+
+  private static void expire( Entry entry ) {
+    Timeout timeout = entry.timeout;
+    if( timeout != null && !timeout.isDone() ) {
+      try {
+        timeout.expire();
+      } catch( RuntimeException problem ) {
+        Thread thread = Thread.currentThread();
+        UncaughtExceptionHandler handler
+          = thread.getUncaughtExceptionHandler();
+        handler.uncaughtException( thread, problem );
+      }
+    }
+  }
+
+  private static List<List<Entry>> createSlots() {
+    List<List<Entry>> result = new ArrayList<List<Entry>>( SLOT_COUNT );
+    for( int i = 0; i < SLOT_COUNT; i++ ) {
+      result.add( new ArrayList<Entry>() );
+    }
+    return result;
+  }
+
+  static class Entry {
+    private final long deadline;
+    private volatile Timeout timeout;
+
+    Entry( Timeout timeout, long deadline ) {
+      this.timeout = timeout;
+      this.deadline = deadline;
+    }
+
+    void cancel() {
+      timeout = null;
+    }
+
+    boolean isCancelled() {
+      return timeout == null;
+    }
+
+    private boolean isDone() {
+      Timeout current = timeout;
+      return current == null || current.isDone();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.InvocationContext;
+
+class AdviceChain {
+  static final AdviceChain EMPTY
+    = new AdviceChain( new AdviceHolder[ 0 ],
+                       new AdviceHolder[ 0 ],
+                       new AsyncAdviceHolder[ 0 ],
+                       new ExceptionAdviceHolder[ 0 ],
+                       new Interceptor[ 0 ] );
+
+  private final AdviceHolder[] beforeAdvices;
+  private final AdviceHolder[] afterAdvices;
+  private final AsyncAdviceHolder[] asyncAfterAdvices;
+  private final ExceptionAdviceHolder[] exceptionAdvices;
+  private final Interceptor[] interceptors;
+  private final boolean contextual;
+
+  private AdviceChain( AdviceHolder[] beforeAdvices,
+                       AdviceHolder[] afterAdvices,
+                       AsyncAdviceHolder[] asyncAfterAdvices,
+                       ExceptionAdviceHolder[] exceptionAdvices,
+                       Interceptor[] interceptors )
+  {
+    this.beforeAdvices = beforeAdvices;
+    this.afterAdvices = afterAdvices;
+    this.asyncAfterAdvices = asyncAfterAdvices;
+    this.exceptionAdvices = exceptionAdvices;
+    this.interceptors = interceptors;
+    this.contextual
+      = isContextual( beforeAdvices ) || isContextual( afterAdvices );
+  }
+
+  AdviceChain addBefore( AdviceHolder advice ) {
+    return new AdviceChain( append( beforeAdvices, advice ),
+                            afterAdvices,
+                            asyncAfterAdvices,
+                            exceptionAdvices,
+                            interceptors );
+  }
+
+  AdviceChain addAfter( AdviceHolder advice ) {
+    return new AdviceChain( beforeAdvices,
+                            append( afterAdvices, advice ),
+                            asyncAfterAdvices,
+                            exceptionAdvices,
+                            interceptors );
+  }
+
+  AdviceChain addAfterAsync( AsyncAdviceHolder advice ) {
+    return new AdviceChain( beforeAdvices,
+                            afterAdvices,
+                            append( asyncAfterAdvices, advice ),
+                            exceptionAdvices,
+                            interceptors );
+  }
+
+  AdviceChain addOnException( ExceptionAdviceHolder advice ) {
+    return new AdviceChain( beforeAdvices,
+                            afterAdvices,
+                            asyncAfterAdvices,
+                            append( exceptionAdvices, advice ),
+                            interceptors );
+  }
+
+  AdviceChain addAround( Interceptor interceptor ) {
+    return new AdviceChain( beforeAdvices,
+                            afterAdvices,
+                            asyncAfterAdvices,
+                            exceptionAdvices,
+                            append( interceptors, interceptor ) );
+  }
+
+  // the advices of this chain take precedence
+  AdviceChain merge( AdviceChain other ) {
+    return new AdviceChain( concat( beforeAdvices, other.beforeAdvices ),
+                            concat( afterAdvices, other.afterAdvices ),
+                            concat( asyncAfterAdvices,
+                                    other.asyncAfterAdvices ),
+                            concat( exceptionAdvices, other.exceptionAdvices ),
+                            concat( interceptors, other.interceptors ) );
+  }
+
+  // only calls of methods with advices that accept a context get one
+  boolean isContextual() {
+    return contextual;
+  }
+
+  boolean hasExceptionAdvice() {
+    return exceptionAdvices.length > 0;
+  }
+
+  // walks up the class hierarchy, which does not allocate
+  ExceptionAdviceHolder getExceptionAdvice( Class<?> exceptionType ) {
+    ExceptionAdviceHolder result = null;
+    Class<?> type = exceptionType;
+    while( result == null && type != null ) {
+      result = findExceptionAdvice( type );
+      type = type.getSuperclass();
+    }
+    return result;
+  }
+
+  ExceptionAdviceHolder findExceptionAdvice( Class<?> exceptionType ) {
+    ExceptionAdviceHolder result = null;
+    for( int i = 0; result == null && i < exceptionAdvices.length; i++ ) {
+      if( exceptionAdvices[ i ].getExceptionType() == exceptionType ) {
+        result = exceptionAdvices[ i ];
+      }
+    }
+    return result;
+  }
+
+  void executeBefore( Object[] args ) throws Exception {
+    executeBefore( args, null );
+  }
+
+  void executeBefore( Object[] args, InvocationContext context )
+    throws Exception
+  {
+    executeAdvices( beforeAdvices, args, context );
+  }
+
+  // asynchronous advices are only handed over to their executors
+  void executeAfter( Object[] args ) throws Exception {
+    executeAfter( args, null );
+  }
+
+  void executeAfter( Object[] args, InvocationContext context )
+    throws Exception
+  {
+    executeAdvices( afterAdvices, args, context );
+    for( int i = 0; i < asyncAfterAdvices.length; i++ ) {
+      asyncAfterAdvices[ i ].execute( args );
+    }
+  }
+
+  // the first interceptor is the outermost
+  Object proceed( Method method,
+                  MethodHandle invoker,
+                  Object target,
+                  Object[] args )
+    throws Exception
+  {
+    Object result;
+    if( interceptors.length == 0 ) {
+      result = Invokers.invokeTarget( invoker, target, args );
+    } else {
+      InvocationImpl invocation
+        = new InvocationImpl( interceptors, method, invoker, target, args );
+      result = invocation.proceed();
+    }
+    return result;
+  }
+
+  Object executeOnException( Object[] args, Exception exception )
+    throws Exception
+  {
+    ExceptionAdviceHolder exceptionAdvice
+      = getExceptionAdvice( exception.getClass() );
+    if( exceptionAdvice == null ) {
+      throw exception;
+    }
+    return exceptionAdvice.execute( args, exception );
+  }
+
+  private static void executeAdvices( AdviceHolder[] advices,
+                                      Object[] args,
+                                      InvocationContext context )
+    throws Exception
+  {
+    for( int i = 0; i < advices.length; i++ ) {
+      advices[ i ].execute( args, context );
+    }
+  }
+
+  private static boolean isContextual( AdviceHolder[] advices ) {
+    boolean result = false;
+    for( int i = 0; !result && i < advices.length; i++ ) {
+      result = advices[ i ].isContextual();
+    }
+    return result;
+  }
+
+  private static <T> T[] concat( T[] first, T[] second ) {
+    T[] result = Arrays.copyOf( first, first.length + second.length );
+    System.arraycopy( second, 0, result, first.length, second.length );
+    return result;
+  }
+
+  private static <T> T[] append( T[] elements, T element ) {
+    T[] result = Arrays.copyOf( elements, elements.length + 1 );
+    result[ elements.length ] = element;
+    return result;
+  }
+}
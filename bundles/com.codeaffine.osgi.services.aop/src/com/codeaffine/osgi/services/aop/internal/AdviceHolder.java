@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+import com.codeaffine.osgi.services.aop.InvocationContext;
+
+
+class AdviceHolder {
+  private final Method adviceMethod;
+  private final Object advice;
+  private final boolean contextual;
+  private final MethodHandle invoker;
+
+  AdviceHolder( Method adviceMethod, Object advice ) {
+    this.adviceMethod = adviceMethod;
+    this.advice = advice;
+    this.contextual = acceptsContext( adviceMethod );
+    if( contextual ) {
+      this.invoker
+        = Invokers.createContextAdviceInvoker( adviceMethod, advice );
+    } else {
+      this.invoker = Invokers.createAdviceInvoker( adviceMethod, advice );
+    }
+  }
+
+  Method getAdviceMethod() {
+    return adviceMethod;
+  }
+
+  Object getAdvice() {
+    return advice;
+  }
+
+  boolean isContextual() {
+    return contextual;
+  }
+
+  Object execute( Object[] args ) throws Exception {
+    return execute( args, null );
+  }
+
+  Object execute( Object[] args, InvocationContext context ) throws Exception {
+    Object result;
+    if( contextual ) {
+      result = Invokers.invokeContextAdvice( invoker, args, context );
+    } else {
+      result = Invokers.invokeAdvice( invoker, args );
+    }
+    return result;
+  }
+
+  static boolean acceptsContext( Method adviceMethod ) {
+    Class<?>[] types = adviceMethod.getParameterTypes();
+    return    types.length > 0
+           && types[ types.length - 1 ] == InvocationContext.class;
+  }
+}
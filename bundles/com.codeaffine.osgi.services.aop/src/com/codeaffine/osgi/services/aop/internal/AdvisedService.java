@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+
+// proxies are registered outside of the monitor, listeners may call back
+class AdvisedService {
+  private final BundleContext context;
+  private final ServiceReference<Object> reference;
+  private final ProxyFactory proxyFactory;
+  private final InvocationStatisticsImpl statistics;
+  private final List<ProxyRegistrar> registrars;
+  private ProxyServiceFactory serviceFactory;
+  private boolean disposed;
+  private boolean publishing;
+  private int changeCount;
+  private int publishedChangeCount;
+
+  AdvisedService( BundleContext context,
+                  ServiceReference<Object> reference,
+                  ProxyFactory proxyFactory,
+                  InvocationStatisticsImpl statistics )
+  {
+    this.context = context;
+    this.reference = reference;
+    this.proxyFactory = proxyFactory;
+    this.statistics = statistics;
+    this.registrars = new ArrayList<ProxyRegistrar>();
+  }
+
+  // the change takes effect with the next call of publish
+  synchronized boolean add( ProxyRegistrar registrar ) {
+    boolean result = !disposed;
+    if( result ) {
+      registrars.add( registrar );
+      changeCount++;
+    }
+    return result;
+  }
+
+  // returns true if the last registrar has been removed
+  synchronized boolean remove( ProxyRegistrar registrar ) {
+    if( registrars.remove( registrar ) ) {
+      disposed = registrars.isEmpty();
+      changeCount++;
+    }
+    return disposed;
+  }
+
+  // changes made meanwhile are picked up by the next round
+  void publish() {
+    if( beginPublication() ) {
+      boolean pending = true;
+      try {
+        while( pending ) {
+          replaceServiceFactory( takeSnapshot() );
+          pending = continuePublication();
+        }
+      } finally {
+        if( pending ) {
+          endPublication();
+        }
+      }
+    }
+  }
+
+  private synchronized boolean beginPublication() {
+    boolean result = !publishing && publishedChangeCount != changeCount;
+    publishing = result;
+    return result;
+  }
+
+  private synchronized boolean continuePublication() {
+    publishing = publishedChangeCount != changeCount;
+    return publishing;
+  }
+
+  private synchronized void endPublication() {
+    publishing = false;
+  }
+
+  // the service factory is only accessed by the publishing thread
+  private void replaceServiceFactory( ProxyRegistrar[] registrars ) {
+    ProxyServiceFactory previous = serviceFactory;
+    serviceFactory = null;
+    if( registrars.length > 0 ) {
+      ProxyComposition composition
+        = new ProxyComposition( registrars, proxyFactory, statistics );
+      serviceFactory
+        = new ProxyServiceFactory( context, reference, composition );
+      String[] typeNames = composition.getServiceTypeNames();
+      serviceFactory.register( typeNames, copyProperties() );
+    }
+    if( previous != null ) {
+      previous.dispose();
+    }
+  }
+
+  // the proxy lists its types in the order of the service's registration
+  private synchronized ProxyRegistrar[] takeSnapshot() {
+    publishedChangeCount = changeCount;
+    ProxyRegistrar[] result
+      = registrars.toArray( new ProxyRegistrar[ registrars.size() ] );
+    final Object objectClass = reference.getProperty( Constants.OBJECTCLASS );
+    if( objectClass instanceof String[] ) {
+      Arrays.sort( result, new Comparator<ProxyRegistrar>() {
+        @Override
+        public int compare( ProxyRegistrar registrar1,
+                            ProxyRegistrar registrar2 )
+        {
+          return positionOf( registrar1 ) - positionOf( registrar2 );
+        }
+
+        private int positionOf( ProxyRegistrar registrar ) {
+          String name = registrar.getServiceType().getName();
+          return Arrays.asList( ( String[] )objectClass ).indexOf( name );
+        }
+      } );
+    }
+    return result;
+  }
+
+  private Dictionary<String, ?> copyProperties() {
+    Hashtable<String, Object> result = new Hashtable<String, Object>();
+    String[] propertyKeys = reference.getPropertyKeys();
+    for( String key : propertyKeys ) {
+      result.put( key, reference.getProperty( key ) );
+    }
+    return result;
+  }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+
+// registrars that advise the same service share one proxy
+class AdvisedServices {
+  private final BundleContext context;
+  private final ProxyFactory proxyFactory;
+  private final InvocationStatisticsImpl statistics;
+  private final Map<ServiceReference<Object>, AdvisedService> services;
+  private boolean suspended;
+
+  AdvisedServices( BundleContext context,
+                   ProxyFactory proxyFactory,
+                   InvocationStatisticsImpl statistics )
+  {
+    this.context = context;
+    this.proxyFactory = proxyFactory;
+    this.statistics = statistics;
+    this.services = new HashMap<ServiceReference<Object>, AdvisedService>();
+  }
+
+  AdvisedService add( ServiceReference<Object> reference,
+                      ProxyRegistrar registrar )
+  {
+    AdvisedService result = null;
+    boolean added = false;
+    while( !added ) {
+      result = getAdvisedService( reference );
+      added = result.add( registrar );
+      if( !added ) {
+        unmap( reference, result );
+      }
+    }
+    if( !isSuspended() ) {
+      result.publish();
+    }
+    return result;
+  }
+
+  void remove( ServiceReference<Object> reference,
+               AdvisedService advisedService,
+               ProxyRegistrar registrar )
+  {
+    if( advisedService.remove( registrar ) ) {
+      unmap( reference, advisedService );
+    }
+    advisedService.publish();
+  }
+
+  void suspendPublishing() {
+    synchronized( services ) {
+      suspended = true;
+    }
+  }
+
+  void resumePublishing() {
+    List<AdvisedService> pending;
+    synchronized( services ) {
+      suspended = false;
+      pending = new ArrayList<AdvisedService>( services.values() );
+    }
+    for( AdvisedService advisedService : pending ) {
+      advisedService.publish();
+    }
+  }
+
+  private boolean isSuspended() {
+    synchronized( services ) {
+      return suspended;
+    }
+  }
+
+  private AdvisedService getAdvisedService(
+    ServiceReference<Object> reference )
+  {
+    synchronized( services ) {
+      AdvisedService result = services.get( reference );
+      if( result == null ) {
+        result = new AdvisedService( context,
+                                     reference,
+                                     proxyFactory,
+                                     statistics );
+        services.put( reference, result );
+      }
+      return result;
+    }
+  }
+
+  private void unmap( ServiceReference<Object> reference,
+                      AdvisedService advisedService )
+  {
+    synchronized( services ) {
+      if( services.get( reference ) == advisedService ) {
+        services.remove( reference );
+      }
+    }
+  }
+}
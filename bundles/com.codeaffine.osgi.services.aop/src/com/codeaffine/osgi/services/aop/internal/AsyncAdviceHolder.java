@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.UndeclaredThrowableException;
+
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor;
+
+
+class AsyncAdviceHolder {
+  private final AdviceHolder adviceHolder;
+  private final AsyncAdviceExecutor executor;
+
+  AsyncAdviceHolder( AdviceHolder adviceHolder, AsyncAdviceExecutor executor ) {
+    this.adviceHolder = adviceHolder;
+    this.executor = executor;
+  }
+
+  AdviceHolder getAdviceHolder() {
+    return adviceHolder;
+  }
+
+  void execute( final Object[] args ) {
+    executor.execute( new Runnable() {
+      @Override
+      public void run() {
+        try {
+          adviceHolder.execute( args );
+        } catch( RuntimeException rethrow ) {
+          throw rethrow;
+        } catch( Exception exception ) {
+          throw new UndeclaredThrowableException( exception );
+        }
+      }
+    } );
+  }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+
+class ExceptionAdviceHolder {
+  private final Method adviceMethod;
+  private final Object advice;
+  private final Class<?> exceptionType;
+  private final MethodHandle invoker;
+
+  ExceptionAdviceHolder( Method adviceMethod, Object advice ) {
+    Class<?>[] parameterTypes = adviceMethod.getParameterTypes();
+    this.adviceMethod = adviceMethod;
+    this.advice = advice;
+    this.exceptionType = parameterTypes[ parameterTypes.length - 1 ];
+    this.invoker
+      = Invokers.createExceptionAdviceInvoker( adviceMethod, advice );
+  }
+
+  Method getAdviceMethod() {
+    return adviceMethod;
+  }
+
+  Object getAdvice() {
+    return advice;
+  }
+
+  Class<?> getExceptionType() {
+    return exceptionType;
+  }
+
+  Object execute( Object[] args, Exception exception ) throws Exception {
+    return Invokers.invokeExceptionAdvice( invoker, args, exception );
+  }
+}
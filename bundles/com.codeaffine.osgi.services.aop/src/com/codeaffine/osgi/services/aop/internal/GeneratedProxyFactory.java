@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+
+class GeneratedProxyFactory implements ProxyFactory {
+  private static final String PROXY_PACKAGE
+    = "com.codeaffine.osgi.services.aop.generated.";
+  private static final int MAX_PARAMETER_SLOTS = 254;
+
+  private final ProxyFactory fallback;
+  private final ClassValue<Constructor<?>> proxyConstructors;
+
+  GeneratedProxyFactory( ProxyFactory fallback ) {
+    this.fallback = fallback;
+    this.proxyConstructors = new ClassValue<Constructor<?>>() {
+      @Override
+      protected Constructor<?> computeValue( Class<?> serviceType ) {
+        return generateProxyClass( serviceType );
+      }
+    };
+  }
+
+  @Override
+  public Object createProxy( Class<?> serviceType,
+                             ProxyInvocationHandler handler )
+  {
+    Object result;
+    if( canGenerate( serviceType ) ) {
+      Constructor<?> constructor = proxyConstructors.get( serviceType );
+      result = newInstance( constructor, handler, handler.getService() );
+    } else {
+      result = fallback.createProxy( serviceType, handler );
+    }
+    return result;
+  }
+
+  // generated proxy classes implement a single service type only
+  @Override
+  public Object createProxy( Class<?>[] serviceTypes,
+                             ProxyInvocationHandler handler )
+  {
+    Object result;
+    if( serviceTypes.length == 1 ) {
+      result = createProxy( serviceTypes[ 0 ], handler );
+    } else {
+      result = fallback.createProxy( serviceTypes, handler );
+    }
+    return result;
+  }
+
+  static boolean canGenerate( Class<?> serviceType ) {
+    boolean result = serviceType.isInterface() && isAccessible( serviceType );
+    MethodIndex methodIndex = MethodIndex.of( serviceType );
+    Method[] methods = serviceType.getMethods();
+    for( int i = 0; result && i < methods.length; i++ ) {
+      Method method = methods[ i ];
+      if( !Modifier.isStatic( method.getModifiers() ) ) {
+        int index = methodIndex.indexOf( method );
+        Method implemented = methodIndex.getMethod( index );
+        result =    implemented.getReturnType() == method.getReturnType()
+                 && isAccessible( method.getReturnType() )
+                 && areAccessible( method.getParameterTypes() )
+                 && areAccessible( method.getExceptionTypes() )
+                 && getParameterSlots( method ) <= MAX_PARAMETER_SLOTS;
+      }
+    }
+    return result;
+  }
+
+  private static Constructor<?> generateProxyClass( Class<?> serviceType ) {
+    String className = PROXY_PACKAGE + serviceType.getSimpleName() + "$Proxy";
+    MethodIndex methodIndex = MethodIndex.of( serviceType );
+    ProxyClassGenerator generator
+      = new ProxyClassGenerator( className, serviceType, methodIndex );
+    byte[] classFile = generator.generate();
+    ProxyClassLoader classLoader
+      = new ProxyClassLoader( serviceType.getClassLoader() );
+    Class<?> proxyClass = classLoader.defineProxyClass( className, classFile );
+    try {
+      return proxyClass.getConstructor( ProxyDispatcher.class, serviceType );
+    } catch( NoSuchMethodException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
+
+  private static Object newInstance( Constructor<?> constructor,
+                                    ProxyDispatcher dispatcher,
+                                    Object delegate )
+  {
+    try {
+      return constructor.newInstance( dispatcher, delegate );
+    } catch( InstantiationException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    } catch( IllegalAccessException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    } catch( InvocationTargetException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen.getTargetException() );
+    }
+  }
+
+  private static boolean areAccessible( Class<?>[] types ) {
+    boolean result = true;
+    for( int i = 0; result && i < types.length; i++ ) {
+      result = isAccessible( types[ i ] );
+    }
+    return result;
+  }
+
+  private static boolean isAccessible( Class<?> type ) {
+    Class<?> componentType = type;
+    while( componentType.isArray() ) {
+      componentType = componentType.getComponentType();
+    }
+    boolean result = componentType.isPrimitive();
+    if( !result ) {
+      result = Modifier.isPublic( componentType.getModifiers() );
+    }
+    return result;
+  }
+
+  private static int getParameterSlots( Method method ) {
+    int result = 0;
+    for( Class<?> type : method.getParameterTypes() ) {
+      result += type == long.class || type == double.class ? 2 : 1;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import com.codeaffine.osgi.services.aop.InvocationContext;
+
+
+// one context per thread and nesting level, reused across calls
+class InvocationContextImpl implements InvocationContext {
+  private static final int INITIAL_CAPACITY = 4;
+  private static final ThreadLocal<ContextStack> STACKS
+    = new ThreadLocal<ContextStack>()
+  {
+    @Override
+    protected ContextStack initialValue() {
+      return new ContextStack();
+    }
+  };
+
+  private final ContextStack stack;
+  private Method method;
+  private Object target;
+  private Object[] args;
+  private long startTime;
+  private Object[] keys;
+  private Object[] values;
+  private int attributeCount;
+
+  private static class ContextStack {
+    private InvocationContextImpl[] contexts
+      = new InvocationContextImpl[ INITIAL_CAPACITY ];
+    private int depth;
+  }
+
+  private InvocationContextImpl( ContextStack stack ) {
+    this.stack = stack;
+    this.keys = new Object[ INITIAL_CAPACITY ];
+    this.values = new Object[ INITIAL_CAPACITY ];
+  }
+
+  static InvocationContextImpl enter( Method method,
+                                      Object target,
+                                      Object[] args )
+  {
+    ContextStack stack = STACKS.get();
+    if( stack.depth == stack.contexts.length ) {
+      stack.contexts = Arrays.copyOf( stack.contexts, stack.depth * 2 );
+    }
+    InvocationContextImpl result = stack.contexts[ stack.depth ];
+    if( result == null ) {
+      result = new InvocationContextImpl( stack );
+      stack.contexts[ stack.depth ] = result;
+    }
+    stack.depth++;
+    result.method = method;
+    result.target = target;
+    result.args = args;
+    result.startTime = System.nanoTime();
+    return result;
+  }
+
+  // pooled contexts must not keep services or arguments alive
+  void exit() {
+    method = null;
+    target = null;
+    args = null;
+    Arrays.fill( keys, 0, attributeCount, null );
+    Arrays.fill( values, 0, attributeCount, null );
+    attributeCount = 0;
+    stack.depth--;
+  }
+
+  @Override
+  public Method getMethod() {
+    return method;
+  }
+
+  @Override
+  public Object getTarget() {
+    return target;
+  }
+
+  @Override
+  public Object[] getArguments() {
+    return args;
+  }
+
+  @Override
+  public long getStartTime() {
+    return startTime;
+  }
+
+  @Override
+  public Object getAttribute( Object key ) {
+    int index = indexOf( key );
+    return index == -1 ? null : values[ index ];
+  }
+
+  @Override
+  public void setAttribute( Object key, Object value ) {
+    int index = indexOf( key );
+    if( index == -1 ) {
+      if( attributeCount == keys.length ) {
+        keys = Arrays.copyOf( keys, attributeCount * 2 );
+        values = Arrays.copyOf( values, attributeCount * 2 );
+      }
+      index = attributeCount;
+      keys[ index ] = key;
+      attributeCount++;
+    }
+    values[ index ] = value;
+  }
+
+  private int indexOf( Object key ) {
+    if( key == null ) {
+      throw new IllegalArgumentException( "Attribute key must not be null." );
+    }
+    int result = -1;
+    for( int i = 0; result == -1 && i < attributeCount; i++ ) {
+      if( keys[ i ].equals( key ) ) {
+        result = i;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+class InvocationImpl implements Invocation {
+  private final Interceptor[] interceptors;
+  private final Method method;
+  private final MethodHandle invoker;
+  private final Object target;
+  private final Object[] args;
+  private int position;
+
+  InvocationImpl( Interceptor[] interceptors,
+                  Method method,
+                  MethodHandle invoker,
+                  Object target,
+                  Object[] args )
+  {
+    this.interceptors = interceptors;
+    this.method = method;
+    this.invoker = invoker;
+    this.target = target;
+    this.args = args;
+  }
+
+  @Override
+  public Method getMethod() {
+    return method;
+  }
+
+  @Override
+  public Object getTarget() {
+    return target;
+  }
+
+  @Override
+  public Object[] getArguments() {
+    return args;
+  }
+
+  // restored so that interceptors may proceed more than once
+  @Override
+  public Object proceed() throws Exception {
+    int current = position;
+    position++;
+    try {
+      Object result;
+      if( current < interceptors.length ) {
+        result = interceptors[ current ].intercept( this );
+      } else {
+        result = Invokers.invokeTarget( invoker, target, args );
+      }
+      return result;
+    } finally {
+      position = current;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codeaffine.osgi.services.aop.InvocationStatistics;
+import com.codeaffine.osgi.services.aop.MethodStatistics;
+
+
+// dropped with the last proxy, so refreshed bundles are not pinned
+class InvocationStatisticsImpl implements InvocationStatistics {
+  // types of the same name may come from different bundles
+  private final ConcurrentMap<List<Class<?>>, ServiceMetrics> serviceMetrics;
+  private final Map<ServiceMetrics, Integer> useCounts;
+
+  InvocationStatisticsImpl() {
+    serviceMetrics = new ConcurrentHashMap<List<Class<?>>, ServiceMetrics>();
+    useCounts = new HashMap<ServiceMetrics, Integer>();
+  }
+
+  ServiceMetrics getServiceMetrics( Class<?> serviceType ) {
+    return getServiceMetrics( new Class<?>[] { serviceType } );
+  }
+
+  // each call has to be balanced by a call of releaseServiceMetrics
+  synchronized ServiceMetrics getServiceMetrics( Class<?>[] serviceTypes ) {
+    List<Class<?>> key = Arrays.<Class<?>>asList( serviceTypes );
+    ServiceMetrics result = serviceMetrics.get( key );
+    if( result == null ) {
+      result = new ServiceMetrics( serviceTypes );
+      serviceMetrics.put( key, result );
+      useCounts.put( result, Integer.valueOf( 1 ) );
+    } else {
+      int useCount = useCounts.get( result ).intValue();
+      useCounts.put( result, Integer.valueOf( useCount + 1 ) );
+    }
+    return result;
+  }
+
+  synchronized void releaseServiceMetrics( ServiceMetrics metrics ) {
+    Integer useCount = useCounts.remove( metrics );
+    if( useCount != null && useCount.intValue() > 1 ) {
+      useCounts.put( metrics, Integer.valueOf( useCount.intValue() - 1 ) );
+    } else if( useCount != null ) {
+      serviceMetrics.values().remove( metrics );
+    }
+  }
+
+  @Override
+  public List<MethodStatistics> getStatistics() {
+    List<MethodStatistics> result = new ArrayList<MethodStatistics>();
+    for( ServiceMetrics metrics : serviceMetrics.values() ) {
+      result.addAll( metrics.getStatistics() );
+    }
+    return result;
+  }
+
+  @Override
+  public List<MethodStatistics> getStatistics( String serviceType ) {
+    List<MethodStatistics> result = new ArrayList<MethodStatistics>();
+    for( MethodStatistics statistics : getStatistics() ) {
+      if( statistics.getServiceType().equals( serviceType ) ) {
+        result.add( statistics );
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import com.codeaffine.osgi.services.aop.InvocationContext;
+
+
+class Invokers {
+  static final MethodType TARGET_INVOKER_TYPE
+    = methodType( Object.class, Object.class, Object[].class );
+  static final MethodType ADVICE_INVOKER_TYPE
+    = methodType( Object.class, Object[].class );
+  static final MethodType EXCEPTION_ADVICE_INVOKER_TYPE
+    = methodType( Object.class, Object[].class, Exception.class );
+  static final MethodType CONTEXT_ADVICE_INVOKER_TYPE
+    = methodType( Object.class, Object[].class, InvocationContext.class );
+
+  // creates a handle of type (Object target, Object[] args)Object
+  static MethodHandle createTargetInvoker( Method method ) {
+    MethodHandle handle = unreflect( method );
+    int argumentCount = method.getParameterTypes().length;
+    return handle.asSpreader( Object[].class, argumentCount )
+      .asType( TARGET_INVOKER_TYPE );
+  }
+
+  // creates a handle of type (Object[] args)Object bound to the given advice
+  static MethodHandle createAdviceInvoker( Method method, Object advice ) {
+    MethodHandle handle = unreflect( method ).bindTo( advice );
+    int argumentCount = method.getParameterTypes().length;
+    return handle.asSpreader( Object[].class, argumentCount )
+      .asType( ADVICE_INVOKER_TYPE );
+  }
+
+  // creates a handle of type (Object[], Exception)Object
+  static MethodHandle createExceptionAdviceInvoker( Method method,
+                                                   Object advice )
+  {
+    MethodHandle handle = spreadLeading( method, advice );
+    return handle.asType( EXCEPTION_ADVICE_INVOKER_TYPE );
+  }
+
+  // creates a handle of type (Object[], InvocationContext)Object
+  static MethodHandle createContextAdviceInvoker( Method method,
+                                                 Object advice )
+  {
+    MethodHandle handle = spreadLeading( method, advice );
+    return handle.asType( CONTEXT_ADVICE_INVOKER_TYPE );
+  }
+
+  // the trailing parameter is moved, not copied into a new array
+  private static MethodHandle spreadLeading( Method method, Object advice ) {
+    MethodHandle handle = unreflect( method ).bindTo( advice );
+    MethodType type = handle.type();
+    int argumentCount = type.parameterCount() - 1;
+    Class<?> trailingType = type.parameterType( argumentCount );
+    MethodType trailingFirst = type
+      .dropParameterTypes( argumentCount, argumentCount + 1 )
+      .insertParameterTypes( 0, trailingType );
+    int[] reorder = new int[ argumentCount + 1 ];
+    for( int i = 0; i < argumentCount; i++ ) {
+      reorder[ i ] = i + 1;
+    }
+    MethodHandle spread = MethodHandles
+      .permuteArguments( handle, trailingFirst, reorder )
+      .asSpreader( Object[].class, argumentCount );
+    MethodType argumentsFirst
+      = methodType( type.returnType(), Object[].class, trailingType );
+    return MethodHandles.permuteArguments( spread, argumentsFirst, 1, 0 );
+  }
+
+  static Object invokeTarget( MethodHandle invoker,
+                              Object target,
+                              Object[] args )
+    throws Exception
+  {
+    try {
+      return ( Object )invoker.invokeExact( target, args );
+    } catch( Exception exception ) {
+      throw exception;
+    } catch( Error error ) {
+      throw error;
+    } catch( Throwable throwable ) {
+      throw new UndeclaredThrowableException( throwable );
+    }
+  }
+
+  static Object invokeAdvice( MethodHandle invoker, Object[] args )
+    throws Exception
+  {
+    try {
+      return ( Object )invoker.invokeExact( args );
+    } catch( Exception exception ) {
+      throw exception;
+    } catch( Error error ) {
+      throw error;
+    } catch( Throwable throwable ) {
+      throw new UndeclaredThrowableException( throwable );
+    }
+  }
+
+  static Object invokeExceptionAdvice( MethodHandle invoker,
+                                       Object[] args,
+                                       Exception exception )
+    throws Exception
+  {
+    try {
+      return ( Object )invoker.invokeExact( args, exception );
+    } catch( Exception rethrow ) {
+      throw rethrow;
+    } catch( Error error ) {
+      throw error;
+    } catch( Throwable throwable ) {
+      throw new UndeclaredThrowableException( throwable );
+    }
+  }
+
+  static Object invokeContextAdvice( MethodHandle invoker,
+                                     Object[] args,
+                                     InvocationContext context )
+    throws Exception
+  {
+    try {
+      return ( Object )invoker.invokeExact( args, context );
+    } catch( Exception exception ) {
+      throw exception;
+    } catch( Error error ) {
+      throw error;
+    } catch( Throwable throwable ) {
+      throw new UndeclaredThrowableException( throwable );
+    }
+  }
+
+  private static MethodHandle unreflect( Method method ) {
+    method.setAccessible( true );
+    try {
+      return MethodHandles.lookup().unreflect( method );
+    } catch( IllegalAccessException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
+
+  private Invokers() {
+    // prevent instance creation
+  }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+
+import com.codeaffine.osgi.services.aop.JoinPointDefinition;
+
+
+// lookups don't lock, updates replace the definitions of a name
+class JoinPointDefinitionIndex {
+  private final ConcurrentMap<String, JoinPointDefinition<?>[]> definitions;
+
+  JoinPointDefinitionIndex() {
+    definitions = new ConcurrentHashMap<String, JoinPointDefinition<?>[]>();
+  }
+
+  boolean contains( String typeName ) {
+    return typeName != null && definitions.containsKey( typeName );
+  }
+
+  // advised if a definition has no filter or a matching one
+  boolean isAdvised( String serviceTypeName, ServiceReference<?> reference ) {
+    JoinPointDefinition<?>[] candidates = get( serviceTypeName );
+    boolean result = false;
+    int count = candidates == null ? 0 : candidates.length;
+    for( int i = 0; !result && i < count; i++ ) {
+      Filter filter = candidates[ i ].getJoinPointFactory().getFilter();
+      result = filter == null || filter.match( reference );
+    }
+    return result;
+  }
+
+  JoinPointDefinition<?>[] get( String serviceTypeName ) {
+    JoinPointDefinition<?>[] result = null;
+    if( serviceTypeName != null ) {
+      result = definitions.get( serviceTypeName );
+    }
+    return result;
+  }
+
+  void add( JoinPointDefinition<?> definition ) {
+    String key = getServiceTypeName( definition );
+    boolean updated = false;
+    while( !updated ) {
+      JoinPointDefinition<?>[] current = definitions.get( key );
+      if( current == null ) {
+        JoinPointDefinition<?>[] created
+          = new JoinPointDefinition<?>[] { definition };
+        updated = definitions.putIfAbsent( key, created ) == null;
+      } else {
+        JoinPointDefinition<?>[] extended = append( current, definition );
+        updated = definitions.replace( key, current, extended );
+      }
+    }
+  }
+
+  void remove( JoinPointDefinition<?> definition ) {
+    String key = getServiceTypeName( definition );
+    boolean updated = false;
+    while( !updated ) {
+      JoinPointDefinition<?>[] current = definitions.get( key );
+      if( current == null ) {
+        updated = true;
+      } else {
+        JoinPointDefinition<?>[] reduced = remove( current, definition );
+        if( reduced.length == 0 ) {
+          updated = definitions.remove( key, current );
+        } else {
+          updated = definitions.replace( key, current, reduced );
+        }
+      }
+    }
+  }
+
+  private static String getServiceTypeName(
+    JoinPointDefinition<?> definition )
+  {
+    return definition.getJoinPointFactory().getServiceType().getName();
+  }
+
+  private static JoinPointDefinition<?>[] append(
+    JoinPointDefinition<?>[] definitions,
+    JoinPointDefinition<?> definition )
+  {
+    JoinPointDefinition<?>[] result
+      = Arrays.copyOf( definitions, definitions.length + 1 );
+    result[ definitions.length ] = definition;
+    return result;
+  }
+
+  private static JoinPointDefinition<?>[] remove(
+    JoinPointDefinition<?>[] definitions,
+    JoinPointDefinition<?> definition )
+  {
+    int index = -1;
+    for( int i = 0; index == -1 && i < definitions.length; i++ ) {
+      if( definitions[ i ] == definition ) {
+        index = i;
+      }
+    }
+    JoinPointDefinition<?>[] result = definitions;
+    if( index != -1 ) {
+      result = new JoinPointDefinition<?>[ definitions.length - 1 ];
+      System.arraycopy( definitions, 0, result, 0, index );
+      int tail = result.length - index;
+      System.arraycopy( definitions, index + 1, result, index, tail );
+    }
+    return result;
+  }
+}
@@ -10,55 +10,41 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.text.MessageFormat;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.codeaffine.osgi.services.aop.AdviceSampler;
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor;
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.InvocationContext;
 import com.codeaffine.osgi.services.aop.JoinPoint;
+import com.codeaffine.osgi.services.aop.Pointcut;
+import com.codeaffine.osgi.services.aop.RestrictedInterceptor;
 
 
-public class JoinPointImpl<T> implements JoinPoint<T> {
+public class JoinPointImpl<T> implements JoinPoint<T>, AdvicePlan {
   private static final String POINT_CUT_BEFORE = "before";
   private static final String POINT_CUT_AFTER = "after";
   private static final String POINT_CUT_ON_EXCEPTION = "onException";
+  private static final String POINT_CUT_AROUND = "around";
 
   final Class<T> type;
-  final List <AdviceHolder> beforeAdvices;
-  final List <AdviceHolder> afterAdvices;
-  AdviceHolder onExceptionAdvice;
-  
-  private static class AdviceHolder {
-    private final Method targetMethod;
-    private final Method adviceMethod;
-    private final Object advice;
-    
-    AdviceHolder( Method targetMethod, Method adviceMethod, Object advice ) {
-      this.targetMethod = targetMethod;
-      this.adviceMethod = adviceMethod;
-      this.advice = advice;
-    }
-
-    public Method getTargetMethod() {
-      return targetMethod;
-    }
-
-    public Method getAdviceMethod() {
-      return adviceMethod;
-    }
-
-    public Object getAdvice() {
-      return advice;
-    }
-  }
+  final MethodIndex methodIndex;
+  final AtomicReference<AdviceChain[]> adviceChains;
 
   public JoinPointImpl( Class<T> type ) {
     this.type = type;
-    beforeAdvices = new LinkedList<AdviceHolder>();
-    afterAdvices = new LinkedList<AdviceHolder>();
+    methodIndex = MethodIndex.of( type );
+    AdviceChain[] initial = new AdviceChain[ methodIndex.size() ];
+    adviceChains = new AtomicReference<AdviceChain[]>( initial );
   }
   
   @Override
@@ -67,28 +53,110 @@ public class JoinPointImpl<T> implements JoinPoint<T> {
     return ( T )createProxy( type, advice, POINT_CUT_BEFORE );
   }
 
+  @Override
+  @SuppressWarnings("unchecked")
+  public T scheduleBefore( Object advice, AdviceSampler sampler ) {
+    return ( T )createProxy( type, advice, POINT_CUT_BEFORE, null, sampler );
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public T scheduleAfter( Object advice ) {
     return ( T )createProxy( type, advice, POINT_CUT_AFTER );
   }
 
+  @Override
+  @SuppressWarnings("unchecked")
+  public T scheduleAfter( Object advice, AdviceSampler sampler ) {
+    return ( T )createProxy( type, advice, POINT_CUT_AFTER, null, sampler );
+  }
+
+  @Override
+  public T scheduleAfterAsync( Object advice ) {
+    return scheduleAfterAsync( advice, AsyncAdviceExecutor.getDefault() );
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T scheduleAfterAsync( Object advice, AsyncAdviceExecutor executor ) {
+    return ( T )createProxy( type, advice, POINT_CUT_AFTER, executor );
+  }
+
   @Override
   @SuppressWarnings("unchecked")
   public T scheduleOnException( Object advice ) {
-    checkIfOnExceptionAdviseHasAlreadyBeenRegistered();
     return ( T )createProxy( type, advice, POINT_CUT_ON_EXCEPTION );
   }
 
-  private void checkIfOnExceptionAdviseHasAlreadyBeenRegistered() {
-    if( onExceptionAdvice != null ) {
-      String pattern = "There is already an exception advise registered for service ''{0}''.";
-      String msg = MessageFormat.format( pattern, type.getName() );
+  @Override
+  @SuppressWarnings("unchecked")
+  public T scheduleAround( Interceptor interceptor ) {
+    return ( T )createProxy( type, interceptor, POINT_CUT_AROUND );
+  }
+
+  // methods of Object only if the service type declares them
+  @Override
+  public void scheduleAround( Pointcut pointcut,
+                              final Interceptor interceptor )
+  {
+    BitSet indices = resolve( pointcut );
+    checkMethods( indices, interceptor );
+    publish( indices, new ChainUpdate() {
+      @Override
+      public AdviceChain apply( AdviceChain adviceChain, int index ) {
+        return adviceChain.addAround( interceptor );
+      }
+    } );
+  }
+
+  BitSet resolve( Pointcut pointcut ) {
+    BitSet result = new BitSet( methodIndex.size() );
+    for( int i = 0; i < methodIndex.size(); i++ ) {
+      Method method = methodIndex.getMethod( i );
+      if(    method.getDeclaringClass() != Object.class
+          && pointcut.matches( method ) )
+      {
+        result.set( i );
+      }
+    }
+    return result;
+  }
+
+  private void checkIfOnExceptionAdviseHasAlreadyBeenRegistered(
+    AdviceChain adviceChain,
+    int index,
+    Class<?> exceptionType )
+  {
+    if( adviceChain.findExceptionAdvice( exceptionType ) != null ) {
+      String pattern
+        = "There is already an exception advise registered for ''{0}'' "
+        + "on ''{1}'' of service ''{2}''.";
+      String methodName = methodIndex.getMethod( index ).getName();
+      Object[] arguments
+        = new Object[] { exceptionType.getName(), methodName, type.getName() };
+      String msg = MessageFormat.format( pattern, arguments );
       throw new IllegalStateException( msg );
     }
   }
 
-  Object createProxy( Class<T> type, final Object advice, final String prefix ) {
+  Object createProxy( Class<T> type, Object advice, String prefix ) {
+    return createProxy( type, advice, prefix, null );
+  }
+
+  Object createProxy( Class<T> type,
+                      Object advice,
+                      String prefix,
+                      AsyncAdviceExecutor executor )
+  {
+    return createProxy( type, advice, prefix, executor, null );
+  }
+
+  Object createProxy( Class<T> type,
+                      final Object advice,
+                      final String prefix,
+                      final AsyncAdviceExecutor executor,
+                      final AdviceSampler sampler )
+  {
     ClassLoader loader = type.getClassLoader();
     Class<?>[] interfaces = new Class<?>[]{ type };
     InvocationHandler invocationHandler = new InvocationHandler() {
@@ -98,27 +166,211 @@ public class JoinPointImpl<T> implements JoinPoint<T> {
         String name =   prefix 
                       + method.getName().substring( 0,1 ).toUpperCase()
                       + method.getName().substring( 1 );
-        if( POINT_CUT_BEFORE.equals( prefix ) ) {
-          Method adviceMethod = advice.getClass().getMethod( name, method.getParameterTypes() );
-          beforeAdvices.add( new AdviceHolder( method, adviceMethod, advice ) );
-        }
-        if( POINT_CUT_AFTER.equals( prefix ) ) {
-          Method adviceMethod = advice.getClass().getMethod( name, method.getParameterTypes() );
-          afterAdvices.add( new AdviceHolder( method, adviceMethod, advice ) );
+        int index = methodIndex.indexOf( method );
+        if( index == -1 ) {
+          return null;
         }
-        if( POINT_CUT_ON_EXCEPTION.equals( prefix ) ) {
-          Class<?>[] targetTypes = method.getParameterTypes();
-          Class<?>[] parameterTypes = new Class<?>[ targetTypes.length + 1 ];
-          System.arraycopy( targetTypes, 0, parameterTypes, 0, targetTypes.length );
-          parameterTypes[ targetTypes.length ] = Exception.class;
-          Method adviceMethod = advice.getClass().getMethod( name, parameterTypes );
-          onExceptionAdvice = new AdviceHolder( method, adviceMethod, advice );
+        if( POINT_CUT_AROUND.equals( prefix ) ) {
+          publishInterceptor( index, ( Interceptor )advice );
+        } else if( POINT_CUT_ON_EXCEPTION.equals( prefix ) ) {
+          Method[] adviceMethods
+            = findExceptionAdviceMethods( advice.getClass(), name, method );
+          publishExceptionAdvices( index, adviceMethods, advice );
+        } else {
+          Method adviceMethod
+            = findAdviceMethod( advice.getClass(), name, method, executor );
+          AdviceHolder adviceHolder
+            = createAdviceHolder( adviceMethod, advice, sampler );
+          if( executor == null ) {
+            publishAdvice( index, prefix, adviceHolder );
+          } else {
+            AsyncAdviceHolder asyncHolder
+              = new AsyncAdviceHolder( adviceHolder, executor );
+            publishAsyncAdvice( index, asyncHolder );
+          }
         }
-        return null;
+        return getDefaultValue( method.getReturnType() );
       }
     };
     return Proxy.newProxyInstance( loader, interfaces, invocationHandler );
   }
+
+  // asynchronous advices outlive the context of the call
+  private static Method findAdviceMethod( Class<?> adviceType,
+                                          String name,
+                                          Method method,
+                                          AsyncAdviceExecutor executor )
+    throws NoSuchMethodException
+  {
+    Class<?>[] targetTypes = method.getParameterTypes();
+    Method result;
+    try {
+      result = adviceType.getMethod( name, targetTypes );
+    } catch( NoSuchMethodException noPlainAdvice ) {
+      if( executor != null ) {
+        throw noPlainAdvice;
+      }
+      Class<?>[] parameterTypes
+        = Arrays.copyOf( targetTypes, targetTypes.length + 1 );
+      parameterTypes[ targetTypes.length ] = InvocationContext.class;
+      result = adviceType.getMethod( name, parameterTypes );
+    }
+    return result;
+  }
+
+  private static AdviceHolder createAdviceHolder( Method adviceMethod,
+                                                 Object advice,
+                                                 AdviceSampler sampler )
+  {
+    AdviceHolder result;
+    if( sampler == null ) {
+      result = new AdviceHolder( adviceMethod, advice );
+    } else {
+      result = new SampledAdviceHolder( adviceMethod, advice, sampler );
+    }
+    return result;
+  }
+
+  // all overloads are registered, an advice may serve several types
+  private static Method[] findExceptionAdviceMethods( Class<?> adviceType,
+                                                      String name,
+                                                      Method method )
+    throws NoSuchMethodException
+  {
+    Class<?>[] targetTypes = method.getParameterTypes();
+    int count = targetTypes.length;
+    List<Method> result = new ArrayList<Method>();
+    Method[] methods = adviceType.getMethods();
+    for( int i = 0; i < methods.length; i++ ) {
+      Class<?>[] types = methods[ i ].getParameterTypes();
+      if(    !methods[ i ].isBridge()
+          && methods[ i ].getName().equals( name )
+          && types.length == count + 1
+          && Exception.class.isAssignableFrom( types[ count ] )
+          && Arrays.equals( targetTypes, Arrays.copyOf( types, count ) ) )
+      {
+        result.add( methods[ i ] );
+      }
+    }
+    if( result.isEmpty() ) {
+      throw new NoSuchMethodException( adviceType.getName() + "." + name );
+    }
+    return result.toArray( new Method[ result.size() ] );
+  }
+
+  private void publishAdvice( int index,
+                              final String prefix,
+                              final AdviceHolder adviceHolder )
+  {
+    publish( index, new ChainUpdate() {
+      @Override
+      public AdviceChain apply( AdviceChain adviceChain, int index ) {
+        AdviceChain result;
+        if( POINT_CUT_BEFORE.equals( prefix ) ) {
+          result = adviceChain.addBefore( adviceHolder );
+        } else {
+          result = adviceChain.addAfter( adviceHolder );
+        }
+        return result;
+      }
+    } );
+  }
+
+  private void publishAsyncAdvice( int index,
+                                   final AsyncAdviceHolder adviceHolder )
+  {
+    publish( index, new ChainUpdate() {
+      @Override
+      public AdviceChain apply( AdviceChain adviceChain, int index ) {
+        return adviceChain.addAfterAsync( adviceHolder );
+      }
+    } );
+  }
+
+  private void checkMethods( BitSet indices, Interceptor interceptor ) {
+    if( interceptor instanceof RestrictedInterceptor ) {
+      RestrictedInterceptor restricted = ( RestrictedInterceptor )interceptor;
+      int index = indices.nextSetBit( 0 );
+      while( index >= 0 ) {
+        restricted.checkMethod( methodIndex.getMethod( index ) );
+        index = indices.nextSetBit( index + 1 );
+      }
+    }
+  }
+
+  private void publishInterceptor( int index, final Interceptor interceptor ) {
+    BitSet indices = new BitSet();
+    indices.set( index );
+    checkMethods( indices, interceptor );
+    publish( indices, new ChainUpdate() {
+      @Override
+      public AdviceChain apply( AdviceChain adviceChain, int index ) {
+        return adviceChain.addAround( interceptor );
+      }
+    } );
+  }
+
+  private void publishExceptionAdvices( int index,
+                                        Method[] adviceMethods,
+                                        Object advice )
+  {
+    final ExceptionAdviceHolder[] holders
+      = new ExceptionAdviceHolder[ adviceMethods.length ];
+    for( int i = 0; i < holders.length; i++ ) {
+      holders[ i ] = new ExceptionAdviceHolder( adviceMethods[ i ], advice );
+    }
+    publish( index, new ChainUpdate() {
+      @Override
+      public AdviceChain apply( AdviceChain adviceChain, int index ) {
+        AdviceChain result = adviceChain;
+        for( int i = 0; i < holders.length; i++ ) {
+          Class<?> exceptionType = holders[ i ].getExceptionType();
+          checkIfOnExceptionAdviseHasAlreadyBeenRegistered( result,
+                                                            index,
+                                                            exceptionType );
+          result = result.addOnException( holders[ i ] );
+        }
+        return result;
+      }
+    } );
+  }
+
+  private interface ChainUpdate {
+    AdviceChain apply( AdviceChain adviceChain, int index );
+  }
+
+  // running calls see either the old or the new chains
+  private void publish( int index, ChainUpdate update ) {
+    BitSet indices = new BitSet();
+    indices.set( index );
+    publish( indices, update );
+  }
+
+  private void publish( BitSet indices, ChainUpdate update ) {
+    boolean published = false;
+    while( !published ) {
+      AdviceChain[] current = adviceChains.get();
+      AdviceChain[] next = current.clone();
+      int index = indices.nextSetBit( 0 );
+      while( index >= 0 ) {
+        AdviceChain adviceChain = current[ index ];
+        if( adviceChain == null ) {
+          adviceChain = AdviceChain.EMPTY;
+        }
+        next[ index ] = update.apply( adviceChain, index );
+        index = indices.nextSetBit( index + 1 );
+      }
+      published = adviceChains.compareAndSet( current, next );
+    }
+  }
+
+  private static Object getDefaultValue( Class<?> type ) {
+    Object result = null;
+    if( type.isPrimitive() && type != void.class ) {
+      result = Array.get( Array.newInstance( type, 1 ), 0 );
+    }
+    return result;
+  }
   
   @Override
   public <P> P any( Class<P> paramType ) {
@@ -126,43 +378,43 @@ public class JoinPointImpl<T> implements JoinPoint<T> {
   }
 
   public void excuteBefore( Method method, Object[] args ) throws Exception {
-    executeAdvices( method, args, beforeAdvices.iterator() );
+    AdviceChain adviceChain = getAdviceChain( method );
+    if( adviceChain != null ) {
+      adviceChain.executeBefore( args );
+    }
   }
 
   public void excuteAfter( Method method, Object[] args ) throws Exception {
-    executeAdvices( method, args, afterAdvices.iterator() );
+    AdviceChain adviceChain = getAdviceChain( method );
+    if( adviceChain != null ) {
+      adviceChain.executeAfter( args );
+    }
   }
   
   public Object executeOnException( Method method, Object[] args, Exception exception )
     throws Exception
   {
-    Object[] arguments = args == null ? new Object[ 0 ] : args;
-    Object[] argsWithException = new Object[ arguments.length + 1 ];
-    System.arraycopy( arguments, 0, argsWithException, 0, arguments.length );
-    argsWithException[ arguments.length ] = exception;
-    return executeAdvice( onExceptionAdvice, argsWithException );
+    return getAdviceChain( method ).executeOnException( args, exception );
   }  
   
   public boolean hasExceptionAdvice() {
-    return onExceptionAdvice != null;
+    return hasExceptionAdvice( adviceChains.get() );
   }
-  
-  private Object executeAdvices( Method method, Object[] args, Iterator<AdviceHolder> advices )
-    throws Exception
-  {
-    Object result = null;
-    while( advices.hasNext() ) {
-      AdviceHolder holder = advices.next();
-      if( holder.getTargetMethod().equals( method ) ) {
-        result = executeAdvice( holder, args );
-      }
+
+  private static boolean hasExceptionAdvice( AdviceChain[] chains ) {
+    boolean result = false;
+    for( int i = 0; !result && i < chains.length; i++ ) {
+      result = chains[ i ] != null && chains[ i ].hasExceptionAdvice();
     }
     return result;
   }
 
-  private Object executeAdvice( AdviceHolder holder, Object[] args ) throws Exception {
-    Method adviceMethod = holder.getAdviceMethod();
-    adviceMethod.setAccessible( true );
-    return adviceMethod.invoke( holder.getAdvice(), args );
+  AdviceChain getAdviceChain( Method method ) {
+    return getAdviceChain( methodIndex.indexOf( method ) );
+  }
+
+  @Override
+  public AdviceChain getAdviceChain( int index ) {
+    return index == -1 ? null : adviceChains.get()[ index ];
   }
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// logarithmic buckets with a relative error of at most 25 percent
+class LatencyHistogram {
+  static final int BUCKET_COUNT = 248;
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts;
+
+  LatencyHistogram() {
+    counts = new AtomicLongArray( StripedCounter.STRIPE_COUNT * BUCKET_COUNT );
+  }
+
+  void record( long nanos ) {
+    int offset = StripedCounter.stripe() * BUCKET_COUNT;
+    counts.incrementAndGet( offset + bucketOf( nanos ) );
+  }
+
+  long[] getCounts() {
+    long[] result = new long[ BUCKET_COUNT ];
+    for( int i = 0; i < counts.length(); i++ ) {
+      result[ i % BUCKET_COUNT ] += counts.get( i );
+    }
+    return result;
+  }
+
+  static int bucketOf( long value ) {
+    int result;
+    if( value < SUB_BUCKET_COUNT ) {
+      result = ( int )Math.max( 0, value );
+    } else {
+      int exponent = 63 - Long.numberOfLeadingZeros( value );
+      int shift = exponent - SUB_BUCKET_BITS;
+      int subBucket = ( int )( value >>> shift ) & ( SUB_BUCKET_COUNT - 1 );
+      result = ( shift + 1 ) * SUB_BUCKET_COUNT + subBucket;
+    }
+    return result;
+  }
+
+  static long upperBoundOf( int bucket ) {
+    long result;
+    if( bucket < SUB_BUCKET_COUNT ) {
+      result = bucket;
+    } else {
+      int shift = bucket / SUB_BUCKET_COUNT - 1;
+      long mantissa = SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT;
+      long lowerBound = mantissa << shift;
+      result = lowerBound + ( 1L << shift ) - 1;
+    }
+    return result;
+  }
+}
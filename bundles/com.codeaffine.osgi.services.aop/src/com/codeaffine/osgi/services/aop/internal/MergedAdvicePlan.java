@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+// merged chains are cached until a join point publishes new ones
+class MergedAdvicePlan implements AdvicePlan {
+  private final JoinPointImpl<?>[][] joinPoints;
+  private final int[][] methodIndices;
+  private final AtomicReferenceArray<MergedChain> mergedChains;
+
+  MergedAdvicePlan( MethodIndex methodIndex, JoinPointImpl<?>[] joinPoints ) {
+    this.joinPoints = new JoinPointImpl<?>[ methodIndex.size() ][];
+    this.methodIndices = new int[ methodIndex.size() ][];
+    this.mergedChains
+      = new AtomicReferenceArray<MergedChain>( methodIndex.size() );
+    for( int i = 0; i < methodIndex.size(); i++ ) {
+      mapMethod( i, methodIndex.getMethod( i ), joinPoints );
+    }
+  }
+
+  @Override
+  public AdviceChain getAdviceChain( int methodIndex ) {
+    AdviceChain result;
+    JoinPointImpl<?>[] sources = joinPoints[ methodIndex ];
+    if( sources.length == 0 ) {
+      result = null;
+    } else if( sources.length == 1 ) {
+      result = sources[ 0 ].getAdviceChain( methodIndices[ methodIndex ][ 0 ] );
+    } else {
+      result = getMergedChain( methodIndex );
+    }
+    return result;
+  }
+
+  private AdviceChain getMergedChain( int methodIndex ) {
+    MergedChain mergedChain = mergedChains.get( methodIndex );
+    if( mergedChain == null || !mergedChain.isCurrent( methodIndex ) ) {
+      mergedChain = new MergedChain( methodIndex );
+      mergedChains.set( methodIndex, mergedChain );
+    }
+    return mergedChain.merged;
+  }
+
+  private void mapMethod( int index,
+                          Method method,
+                          JoinPointImpl<?>[] candidates )
+  {
+    JoinPointImpl<?>[] sources = new JoinPointImpl<?>[ candidates.length ];
+    int[] indices = new int[ candidates.length ];
+    int count = 0;
+    for( JoinPointImpl<?> candidate : candidates ) {
+      int candidateIndex = -1;
+      if( candidate != null ) {
+        candidateIndex = candidate.methodIndex.indexOfSignature( method );
+      }
+      if( candidateIndex != -1 ) {
+        sources[ count ] = candidate;
+        indices[ count ] = candidateIndex;
+        count++;
+      }
+    }
+    joinPoints[ index ] = new JoinPointImpl<?>[ count ];
+    System.arraycopy( sources, 0, joinPoints[ index ], 0, count );
+    methodIndices[ index ] = new int[ count ];
+    System.arraycopy( indices, 0, methodIndices[ index ], 0, count );
+  }
+
+  private AdviceChain getSourceChain( int methodIndex, int source ) {
+    JoinPointImpl<?> joinPoint = joinPoints[ methodIndex ][ source ];
+    return joinPoint.getAdviceChain( methodIndices[ methodIndex ][ source ] );
+  }
+
+  private class MergedChain {
+    private final AdviceChain[] sources;
+    private final AdviceChain merged;
+
+    MergedChain( int methodIndex ) {
+      sources = new AdviceChain[ joinPoints[ methodIndex ].length ];
+      AdviceChain chain = null;
+      for( int i = 0; i < sources.length; i++ ) {
+        sources[ i ] = getSourceChain( methodIndex, i );
+        if( sources[ i ] != null ) {
+          chain = chain == null ? sources[ i ] : chain.merge( sources[ i ] );
+        }
+      }
+      merged = chain;
+    }
+
+    boolean isCurrent( int methodIndex ) {
+      boolean result = true;
+      for( int i = 0; result && i < sources.length; i++ ) {
+        result = getSourceChain( methodIndex, i ) == sources[ i ];
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+class MethodIndex {
+  private static final ClassValue<MethodIndex> INDICES
+    = new ClassValue<MethodIndex>()
+  {
+    @Override
+    protected MethodIndex computeValue( Class<?> type ) {
+      return new MethodIndex( type );
+    }
+  };
+
+  private final Method[] methods;
+  private final MethodHandle[] invokers;
+  private final Map<Method, Integer> indices;
+
+  static MethodIndex of( Class<?> type ) {
+    return INDICES.get( type );
+  }
+
+  // indices of several types belong to a single proxy
+  static MethodIndex of( Class<?>[] types ) {
+    return types.length == 1 ? of( types[ 0 ] ) : new MethodIndex( types );
+  }
+
+  MethodIndex( Class<?>... types ) {
+    List<Method> uniqueMethods = new ArrayList<Method>();
+    indices = new HashMap<Method, Integer>();
+    addMethods( uniqueMethods, getObjectMethods() );
+    for( Class<?> type : types ) {
+      addMethods( uniqueMethods, type.getMethods() );
+    }
+    methods = uniqueMethods.toArray( new Method[ uniqueMethods.size() ] );
+    invokers = new MethodHandle[ methods.length ];
+    for( int i = 0; i < methods.length; i++ ) {
+      invokers[ i ] = Invokers.createTargetInvoker( methods[ i ] );
+    }
+  }
+
+  int size() {
+    return methods.length;
+  }
+
+  int indexOf( Method method ) {
+    Integer result = indices.get( method );
+    return result == null ? -1 : result.intValue();
+  }
+
+  int indexOfSignature( Method method ) {
+    return indexOfSignature( Arrays.asList( methods ), method );
+  }
+
+  Method getMethod( int index ) {
+    return methods[ index ];
+  }
+
+  MethodHandle getInvoker( int index ) {
+    return invokers[ index ];
+  }
+
+  private void addMethods( List<Method> uniqueMethods, Method[] candidates ) {
+    for( Method method : candidates ) {
+      if( !Modifier.isStatic( method.getModifiers() ) ) {
+        int index = indexOfSignature( uniqueMethods, method );
+        if( index == -1 ) {
+          index = uniqueMethods.size();
+          uniqueMethods.add( method );
+        }
+        indices.put( method, Integer.valueOf( index ) );
+      }
+    }
+  }
+
+  private static int indexOfSignature( List<Method> methods, Method method ) {
+    int result = -1;
+    for( int i = 0; result == -1 && i < methods.size(); i++ ) {
+      Method candidate = methods.get( i );
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      if(    candidate.getName().equals( method.getName() )
+          && Arrays.equals( candidate.getParameterTypes(), parameterTypes ) )
+      {
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  private static Method[] getObjectMethods() {
+    try {
+      return new Method[] {
+        Object.class.getMethod( "hashCode" ),
+        Object.class.getMethod( "equals", Object.class ),
+        Object.class.getMethod( "toString" )
+      };
+    } catch( NoSuchMethodException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import com.codeaffine.osgi.services.aop.MethodStatistics;
+
+
+class MethodStatisticsImpl implements MethodStatistics {
+  private final String serviceType;
+  private final String method;
+  private final long[] latencyCounts;
+  private final long callCount;
+  private final long errorCount;
+
+  MethodStatisticsImpl( String serviceType,
+                        String method,
+                        long[] latencyCounts,
+                        long errorCount )
+  {
+    this.serviceType = serviceType;
+    this.method = method;
+    this.latencyCounts = latencyCounts;
+    this.errorCount = errorCount;
+    long calls = 0;
+    for( long count : latencyCounts ) {
+      calls += count;
+    }
+    this.callCount = calls;
+  }
+
+  @Override
+  public String getServiceType() {
+    return serviceType;
+  }
+
+  @Override
+  public String getMethod() {
+    return method;
+  }
+
+  @Override
+  public long getCallCount() {
+    return callCount;
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errorCount;
+  }
+
+  @Override
+  public long getLatency( double percentile ) {
+    if( percentile < 0 || percentile > 1 ) {
+      String message = "Percentile must be within [0, 1]: " + percentile;
+      throw new IllegalArgumentException( message );
+    }
+    long rank = Math.max( 1, ( long )Math.ceil( percentile * callCount ) );
+    long result = 0;
+    long seen = 0;
+    for( int i = 0; callCount > 0 && seen < rank; i++ ) {
+      seen += latencyCounts[ i ];
+      result = LatencyHistogram.upperBoundOf( i );
+    }
+    return result;
+  }
+
+  @Override
+  public long getP50Latency() {
+    return getLatency( 0.5 );
+  }
+
+  @Override
+  public long getP99Latency() {
+    return getLatency( 0.99 );
+  }
+
+  @Override
+  public long getP999Latency() {
+    return getLatency( 0.999 );
+  }
+
+  @Override
+  public String toString() {
+    return   serviceType + "#" + method
+           + " [calls=" + callCount
+           + ", errors=" + errorCount
+           + ", p50=" + getP50Latency()
+           + "ns, p99=" + getP99Latency()
+           + "ns, p999=" + getP999Latency() + "ns]";
+  }
+}
@@ -0,0 +1,710 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+// only advised calls box their arguments
+class ProxyClassGenerator {
+  private static final int CLASS_FILE_VERSION = 51;
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_PRIVATE = 0x0002;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String THROWABLE = "java/lang/Throwable";
+  private static final String UNDECLARED_THROWABLE
+    = UndeclaredThrowableException.class.getName().replace( '.', '/' );
+  private static final String DISPATCHER
+    = ProxyDispatcher.class.getName().replace( '.', '/' );
+  private static final String DISPATCHER_DESCRIPTOR = "L" + DISPATCHER + ";";
+  private static final String DISPATCHER_FIELD = "dispatcher";
+  private static final String DISPATCH_DESCRIPTOR
+    = "(I[Ljava/lang/Object;)Ljava/lang/Object;";
+  private static final String IS_ADVISED_DESCRIPTOR = "(I)Z";
+  private static final String DELEGATE_FIELD = "delegate";
+  private static final String GENERATED_PROXY
+    = GeneratedProxy.class.getName().replace( '.', '/' );
+
+  private static final int ALOAD_0 = 0x2a;
+  private static final int ALOAD_1 = 0x2b;
+  private static final int ALOAD_2 = 0x2c;
+  private static final int ILOAD = 0x15;
+  private static final int LLOAD = 0x16;
+  private static final int FLOAD = 0x17;
+  private static final int DLOAD = 0x18;
+  private static final int ALOAD = 0x19;
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int DUP = 0x59;
+  private static final int DUP_X1 = 0x5a;
+  private static final int SWAP = 0x5f;
+  private static final int POP = 0x57;
+  private static final int AASTORE = 0x53;
+  private static final int ANEWARRAY = 0xbd;
+  private static final int NEW = 0xbb;
+  private static final int CHECKCAST = 0xc0;
+  private static final int GETFIELD = 0xb4;
+  private static final int PUTFIELD = 0xb5;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int INVOKEINTERFACE = 0xb9;
+  private static final int IRETURN = 0xac;
+  private static final int LRETURN = 0xad;
+  private static final int FRETURN = 0xae;
+  private static final int DRETURN = 0xaf;
+  private static final int ARETURN = 0xb0;
+  private static final int RETURN = 0xb1;
+  private static final int ATHROW = 0xbf;
+  private static final int IFNE = 0x9a;
+  private static final int SAME_FRAME = 0;
+  private static final int SAME_FRAME_EXTENDED = 251;
+  private static final int SAME_LOCALS_1_STACK_ITEM_FRAME = 64;
+  private static final int SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED = 247;
+  private static final int ITEM_OBJECT = 7;
+  private static final int MAX_STACK = 8;
+
+  private final String className;
+  private final Class<?> serviceType;
+  private final MethodIndex methodIndex;
+  private final String delegateDescriptor;
+  private final ConstantPool constantPool;
+
+  ProxyClassGenerator( String className,
+                       Class<?> serviceType,
+                       MethodIndex methodIndex )
+  {
+    this.className = className.replace( '.', '/' );
+    this.serviceType = serviceType;
+    this.methodIndex = methodIndex;
+    this.delegateDescriptor = descriptorOf( serviceType );
+    this.constantPool = new ConstantPool();
+  }
+
+  byte[] generate() {
+    try {
+      return writeClassFile();
+    } catch( IOException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
+
+  private byte[] writeClassFile() throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( body );
+    out.writeShort( ACC_PUBLIC | ACC_FINAL | ACC_SUPER );
+    out.writeShort( constantPool.classRef( className ) );
+    out.writeShort( constantPool.classRef( OBJECT ) );
+    out.writeShort( 2 );
+    out.writeShort( constantPool.classRef( internalName( serviceType ) ) );
+    out.writeShort( constantPool.classRef( GENERATED_PROXY ) );
+    writeFields( out );
+    out.writeShort( methodIndex.size() + 1 );
+    writeConstructor( out );
+    for( int i = 0; i < methodIndex.size(); i++ ) {
+      writeMethod( out, i, methodIndex.getMethod( i ) );
+    }
+    out.writeShort( 0 );
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    DataOutputStream classFile = new DataOutputStream( result );
+    classFile.writeInt( 0xCAFEBABE );
+    classFile.writeShort( 0 );
+    classFile.writeShort( CLASS_FILE_VERSION );
+    constantPool.write( classFile );
+    body.writeTo( classFile );
+    return result.toByteArray();
+  }
+
+  private void writeFields( DataOutputStream out ) throws IOException {
+    out.writeShort( 2 );
+    writeField( out, DISPATCHER_FIELD, DISPATCHER_DESCRIPTOR );
+    writeField( out, DELEGATE_FIELD, delegateDescriptor );
+  }
+
+  private void writeField( DataOutputStream out,
+                           String name,
+                           String descriptor )
+    throws IOException
+  {
+    out.writeShort( ACC_PRIVATE | ACC_FINAL );
+    out.writeShort( constantPool.utf8( name ) );
+    out.writeShort( constantPool.utf8( descriptor ) );
+    out.writeShort( 0 );
+  }
+
+  private void writeConstructor( DataOutputStream out ) throws IOException {
+    Code code = new Code();
+    code.op( ALOAD_0 );
+    code.op( INVOKESPECIAL, constantPool.methodRef( OBJECT, "<init>", "()V" ) );
+    code.op( ALOAD_0 );
+    code.op( ALOAD_1 );
+    code.op( PUTFIELD, dispatcherField() );
+    code.op( ALOAD_0 );
+    code.op( ALOAD_2 );
+    code.op( PUTFIELD, delegateField() );
+    code.op( RETURN );
+    String descriptor = "(" + DISPATCHER_DESCRIPTOR + delegateDescriptor + ")V";
+    writeMethodInfo( out,
+                     ACC_PUBLIC,
+                     "<init>",
+                     descriptor,
+                     code,
+                     3,
+                     MAX_STACK );
+  }
+
+  private void writeMethod( DataOutputStream out, int index, Method method )
+    throws IOException
+  {
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    Code code = new Code();
+    int slots = writeDelegation( code, index, method );
+    code.addFrame( code.length(), null );
+    code.op( ALOAD_0 );
+    code.op( GETFIELD, dispatcherField() );
+    pushInt( code, index );
+    pushInt( code, parameterTypes.length );
+    code.op( ANEWARRAY, constantPool.classRef( OBJECT ) );
+    int slot = 1;
+    for( int i = 0; i < parameterTypes.length; i++ ) {
+      code.op( DUP );
+      pushInt( code, i );
+      slot += loadBoxed( code, parameterTypes[ i ], slot );
+      code.op( AASTORE );
+    }
+    int dispatch = constantPool.interfaceMethodRef( DISPATCHER,
+                                                    "dispatch",
+                                                    DISPATCH_DESCRIPTOR );
+    code.op( INVOKEINTERFACE, dispatch );
+    code.u1( 3 );
+    code.u1( 0 );
+    returnUnboxed( code, method.getReturnType() );
+    writeExceptionHandlers( code, method.getExceptionTypes() );
+    String descriptor = methodDescriptor( method );
+    int maxStack = Math.max( MAX_STACK, slots );
+    writeMethodInfo( out,
+                     ACC_PUBLIC | ACC_FINAL,
+                     method.getName(),
+                     descriptor,
+                     code,
+                     slot,
+                     maxStack );
+  }
+
+  // returns the operand stack slots needed to call the delegate
+  private int writeDelegation( Code code, int index, Method method ) {
+    code.op( ALOAD_0 );
+    code.op( GETFIELD, dispatcherField() );
+    pushInt( code, index );
+    int isAdvised = constantPool.interfaceMethodRef( DISPATCHER,
+                                                     "isAdvised",
+                                                     IS_ADVISED_DESCRIPTOR );
+    code.op( INVOKEINTERFACE, isAdvised );
+    code.u1( 2 );
+    code.u1( 0 );
+    int branch = code.length();
+    code.op( IFNE, 0 );
+    code.op( ALOAD_0 );
+    code.op( GETFIELD, delegateField() );
+    int slot = 1;
+    for( Class<?> type : method.getParameterTypes() ) {
+      code.op( loadOpcodeOf( type ), slot );
+      slot += type == long.class || type == double.class ? 2 : 1;
+    }
+    String name = method.getName();
+    String descriptor = methodDescriptor( method );
+    if( method.getDeclaringClass() == Object.class ) {
+      int target = constantPool.methodRef( OBJECT, name, descriptor );
+      code.op( INVOKEVIRTUAL, target );
+    } else {
+      String owner = internalName( serviceType );
+      int target = constantPool.interfaceMethodRef( owner, name, descriptor );
+      code.op( INVOKEINTERFACE, target );
+      code.u1( slot );
+      code.u1( 0 );
+    }
+    code.op( returnOpcodeOf( method.getReturnType() ) );
+    code.patch( branch + 1, code.length() - branch );
+    return slot;
+  }
+
+  private void writeExceptionHandlers( Code code, Class<?>[] exceptionTypes ) {
+    int end = code.length();
+    code.addFrame( end, THROWABLE );
+    code.addHandler( 0, end, end, RuntimeException.class );
+    code.addHandler( 0, end, end, Error.class );
+    boolean wrapsUndeclared = true;
+    for( Class<?> exceptionType : exceptionTypes ) {
+      code.addHandler( 0, end, end, exceptionType );
+      wrapsUndeclared &= !exceptionType.isAssignableFrom( Exception.class );
+    }
+    code.op( ATHROW );
+    if( wrapsUndeclared ) {
+      int wrapper = code.length();
+      code.addFrame( wrapper, THROWABLE );
+      code.addHandler( 0, end, wrapper, Throwable.class );
+      code.op( NEW, constantPool.classRef( UNDECLARED_THROWABLE ) );
+      code.op( DUP_X1 );
+      code.op( SWAP );
+      String descriptor = "(Ljava/lang/Throwable;)V";
+      int constructor
+        = constantPool.methodRef( UNDECLARED_THROWABLE, "<init>", descriptor );
+      code.op( INVOKESPECIAL, constructor );
+      code.op( ATHROW );
+    }
+  }
+
+  private void writeMethodInfo( DataOutputStream out,
+                                int access,
+                                String name,
+                                String descriptor,
+                                Code code,
+                                int maxLocals,
+                                int maxStack )
+    throws IOException
+  {
+    out.writeShort( access );
+    out.writeShort( constantPool.utf8( name ) );
+    out.writeShort( constantPool.utf8( descriptor ) );
+    out.writeShort( 1 );
+    code.write( out, maxLocals, maxStack );
+  }
+
+  private int loadBoxed( Code code, Class<?> type, int slot ) {
+    int result = 1;
+    if( type.isPrimitive() ) {
+      String wrapper = internalName( wrapperOf( type ) );
+      String descriptor = "(" + descriptorOf( type ) + ")L" + wrapper + ";";
+      code.op( loadOpcodeOf( type ), slot );
+      int valueOf = constantPool.methodRef( wrapper, "valueOf", descriptor );
+      code.op( INVOKESTATIC, valueOf );
+      if( type == long.class || type == double.class ) {
+        result = 2;
+      }
+    } else {
+      code.op( ALOAD, slot );
+    }
+    return result;
+  }
+
+  private void returnUnboxed( Code code, Class<?> returnType ) {
+    if( returnType == void.class ) {
+      code.op( POP );
+      code.op( RETURN );
+    } else if( returnType.isPrimitive() ) {
+      String wrapper = internalName( wrapperOf( returnType ) );
+      String name = returnType.getName() + "Value";
+      String descriptor = "()" + descriptorOf( returnType );
+      code.op( CHECKCAST, constantPool.classRef( wrapper ) );
+      int unbox = constantPool.methodRef( wrapper, name, descriptor );
+      code.op( INVOKEVIRTUAL, unbox );
+      code.op( returnOpcodeOf( returnType ) );
+    } else {
+      if( returnType != Object.class ) {
+        int type = constantPool.classRef( internalName( returnType ) );
+        code.op( CHECKCAST, type );
+      }
+      code.op( ARETURN );
+    }
+  }
+
+  private int dispatcherField() {
+    return constantPool.fieldRef( className,
+                                  DISPATCHER_FIELD,
+                                  DISPATCHER_DESCRIPTOR );
+  }
+
+  private int delegateField() {
+    return constantPool.fieldRef( className,
+                                  DELEGATE_FIELD,
+                                  delegateDescriptor );
+  }
+
+  private void pushInt( Code code, int value ) {
+    if( value <= 5 ) {
+      code.op( ICONST_0 + value );
+    } else if( value <= Byte.MAX_VALUE ) {
+      code.op( BIPUSH );
+      code.u1( value );
+    } else if( value <= Short.MAX_VALUE ) {
+      code.op( SIPUSH, value );
+    } else {
+      code.op( LDC_W, constantPool.integer( value ) );
+    }
+  }
+
+  private static int loadOpcodeOf( Class<?> type ) {
+    int result = ILOAD;
+    if( !type.isPrimitive() ) {
+      result = ALOAD;
+    } else if( type == long.class ) {
+      result = LLOAD;
+    } else if( type == float.class ) {
+      result = FLOAD;
+    } else if( type == double.class ) {
+      result = DLOAD;
+    }
+    return result;
+  }
+
+  private static int returnOpcodeOf( Class<?> type ) {
+    int result = IRETURN;
+    if( type == void.class ) {
+      result = RETURN;
+    } else if( !type.isPrimitive() ) {
+      result = ARETURN;
+    } else if( type == long.class ) {
+      result = LRETURN;
+    } else if( type == float.class ) {
+      result = FRETURN;
+    } else if( type == double.class ) {
+      result = DRETURN;
+    }
+    return result;
+  }
+
+  static Class<?> wrapperOf( Class<?> primitiveType ) {
+    Class<?> result;
+    if( primitiveType == boolean.class ) {
+      result = Boolean.class;
+    } else if( primitiveType == byte.class ) {
+      result = Byte.class;
+    } else if( primitiveType == char.class ) {
+      result = Character.class;
+    } else if( primitiveType == short.class ) {
+      result = Short.class;
+    } else if( primitiveType == int.class ) {
+      result = Integer.class;
+    } else if( primitiveType == long.class ) {
+      result = Long.class;
+    } else if( primitiveType == float.class ) {
+      result = Float.class;
+    } else if( primitiveType == double.class ) {
+      result = Double.class;
+    } else {
+      result = Void.class;
+    }
+    return result;
+  }
+
+  static String methodDescriptor( Method method ) {
+    StringBuilder result = new StringBuilder( "(" );
+    for( Class<?> parameterType : method.getParameterTypes() ) {
+      result.append( descriptorOf( parameterType ) );
+    }
+    result.append( ")" );
+    result.append( descriptorOf( method.getReturnType() ) );
+    return result.toString();
+  }
+
+  private static String descriptorOf( Class<?> type ) {
+    String result;
+    if( type == void.class ) {
+      result = "V";
+    } else if( type == boolean.class ) {
+      result = "Z";
+    } else if( type == byte.class ) {
+      result = "B";
+    } else if( type == char.class ) {
+      result = "C";
+    } else if( type == short.class ) {
+      result = "S";
+    } else if( type == int.class ) {
+      result = "I";
+    } else if( type == long.class ) {
+      result = "J";
+    } else if( type == float.class ) {
+      result = "F";
+    } else if( type == double.class ) {
+      result = "D";
+    } else if( type.isArray() ) {
+      result = internalName( type );
+    } else {
+      result = "L" + internalName( type ) + ";";
+    }
+    return result;
+  }
+
+  private static String internalName( Class<?> type ) {
+    return type.getName().replace( '.', '/' );
+  }
+
+  private class Code {
+    private ByteArrayOutputStream bytes;
+    private final List<int[]> handlers;
+    private final List<Object[]> frames;
+
+    Code() {
+      bytes = new ByteArrayOutputStream();
+      handlers = new ArrayList<int[]>();
+      frames = new ArrayList<Object[]>();
+    }
+
+    int length() {
+      return bytes.size();
+    }
+
+    void op( int opcode ) {
+      u1( opcode );
+    }
+
+    void op( int opcode, int operand ) {
+      u1( opcode );
+      if(    opcode == ILOAD
+          || opcode == LLOAD
+          || opcode == FLOAD
+          || opcode == DLOAD
+          || opcode == ALOAD )
+      {
+        u1( operand );
+      } else {
+        u2( operand );
+      }
+    }
+
+    void u1( int value ) {
+      bytes.write( value );
+    }
+
+    void u2( int value ) {
+      bytes.write( ( value >> 8 ) & 0xFF );
+      bytes.write( value & 0xFF );
+    }
+
+    // resolves a forward branch
+    void patch( int offset, int value ) {
+      byte[] code = bytes.toByteArray();
+      code[ offset ] = ( byte )( ( value >> 8 ) & 0xFF );
+      code[ offset + 1 ] = ( byte )( value & 0xFF );
+      bytes = new ByteArrayOutputStream();
+      bytes.write( code, 0, code.length );
+    }
+
+    void addHandler( int start, int end, int handler, Class<?> exceptionType ) {
+      int catchType = constantPool.classRef( internalName( exceptionType ) );
+      handlers.add( new int[] { start, end, handler, catchType } );
+    }
+
+    void addFrame( int offset, String stackItemType ) {
+      frames.add( new Object[] { Integer.valueOf( offset ), stackItemType } );
+    }
+
+    void write( DataOutputStream out, int maxLocals, int maxStack )
+      throws IOException
+    {
+      byte[] stackMapTable = writeStackMapTable();
+      int attributeLength = 12 + bytes.size() + handlers.size() * 8;
+      if( stackMapTable != null ) {
+        attributeLength += 6 + stackMapTable.length;
+      }
+      out.writeShort( constantPool.utf8( "Code" ) );
+      out.writeInt( attributeLength );
+      out.writeShort( maxStack );
+      out.writeShort( maxLocals );
+      out.writeInt( bytes.size() );
+      bytes.writeTo( out );
+      out.writeShort( handlers.size() );
+      for( int[] handler : handlers ) {
+        for( int value : handler ) {
+          out.writeShort( value );
+        }
+      }
+      if( stackMapTable == null ) {
+        out.writeShort( 0 );
+      } else {
+        out.writeShort( 1 );
+        out.writeShort( constantPool.utf8( "StackMapTable" ) );
+        out.writeInt( stackMapTable.length );
+        out.write( stackMapTable );
+      }
+    }
+
+    // frames keep the entry locals and at most one stack item
+    private byte[] writeStackMapTable() throws IOException {
+      byte[] result = null;
+      if( !frames.isEmpty() ) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( buffer );
+        out.writeShort( frames.size() );
+        int previousOffset = -1;
+        for( Object[] frame : frames ) {
+          int offset = ( ( Integer )frame[ 0 ] ).intValue();
+          int offsetDelta = offset - previousOffset - 1;
+          String stackItemType = ( String )frame[ 1 ];
+          if( stackItemType == null ) {
+            writeSameFrame( out, offsetDelta );
+          } else {
+            writeSameLocals1StackItemFrame( out, offsetDelta, stackItemType );
+          }
+          previousOffset = offset;
+        }
+        result = buffer.toByteArray();
+      }
+      return result;
+    }
+
+    private void writeSameFrame( DataOutputStream out, int offsetDelta )
+      throws IOException
+    {
+      if( offsetDelta < 64 ) {
+        out.writeByte( SAME_FRAME + offsetDelta );
+      } else {
+        out.writeByte( SAME_FRAME_EXTENDED );
+        out.writeShort( offsetDelta );
+      }
+    }
+
+    private void writeSameLocals1StackItemFrame( DataOutputStream out,
+                                                 int offsetDelta,
+                                                 String stackItemType )
+      throws IOException
+    {
+      if( offsetDelta < 64 ) {
+        out.writeByte( SAME_LOCALS_1_STACK_ITEM_FRAME + offsetDelta );
+      } else {
+        out.writeByte( SAME_LOCALS_1_STACK_ITEM_FRAME_EXTENDED );
+        out.writeShort( offsetDelta );
+      }
+      out.writeByte( ITEM_OBJECT );
+      out.writeShort( constantPool.classRef( stackItemType ) );
+    }
+  }
+
+  private static class ConstantPool {
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELD_REF = 9;
+    private static final int CONSTANT_METHOD_REF = 10;
+    private static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final Map<String, Integer> entries;
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+    private int count;
+
+    ConstantPool() {
+      entries = new HashMap<String, Integer>();
+      bytes = new ByteArrayOutputStream();
+      out = new DataOutputStream( bytes );
+      count = 1;
+    }
+
+    int utf8( String value ) {
+      Integer result = entries.get( "U" + value );
+      if( result == null ) {
+        result = add( "U" + value, CONSTANT_UTF8, value, 0, 0 );
+      }
+      return result.intValue();
+    }
+
+    int integer( int value ) {
+      Integer result = entries.get( "I" + value );
+      if( result == null ) {
+        result = add( "I" + value, CONSTANT_INTEGER, null, value, 0 );
+      }
+      return result.intValue();
+    }
+
+    int classRef( String internalName ) {
+      Integer result = entries.get( "C" + internalName );
+      if( result == null ) {
+        int name = utf8( internalName );
+        result = add( "C" + internalName, CONSTANT_CLASS, null, name, -1 );
+      }
+      return result.intValue();
+    }
+
+    int fieldRef( String owner, String name, String descriptor ) {
+      return memberRef( CONSTANT_FIELD_REF, owner, name, descriptor );
+    }
+
+    int methodRef( String owner, String name, String descriptor ) {
+      return memberRef( CONSTANT_METHOD_REF, owner, name, descriptor );
+    }
+
+    int interfaceMethodRef( String owner, String name, String descriptor ) {
+      int tag = CONSTANT_INTERFACE_METHOD_REF;
+      return memberRef( tag, owner, name, descriptor );
+    }
+
+    void write( DataOutputStream classFile ) throws IOException {
+      classFile.writeShort( count );
+      bytes.writeTo( classFile );
+    }
+
+    private int memberRef( int tag,
+                           String owner,
+                           String name,
+                           String descriptor )
+    {
+      String key = "M" + tag + owner + "." + name + descriptor;
+      Integer result = entries.get( key );
+      if( result == null ) {
+        int ownerIndex = classRef( owner );
+        int nameAndType = nameAndType( name, descriptor );
+        result = add( key, tag, null, ownerIndex, nameAndType );
+      }
+      return result.intValue();
+    }
+
+    private int nameAndType( String name, String descriptor ) {
+      String key = "N" + name + descriptor;
+      Integer result = entries.get( key );
+      if( result == null ) {
+        int nameIndex = utf8( name );
+        int typeIndex = utf8( descriptor );
+        result = add( key, CONSTANT_NAME_AND_TYPE, null, nameIndex, typeIndex );
+      }
+      return result.intValue();
+    }
+
+    private Integer add( String key,
+                         int tag,
+                         String text,
+                         int first,
+                         int second )
+    {
+      try {
+        out.writeByte( tag );
+        if( tag == CONSTANT_UTF8 ) {
+          out.writeUTF( text );
+        } else if( tag == CONSTANT_INTEGER ) {
+          out.writeInt( first );
+        } else if( tag == CONSTANT_CLASS ) {
+          out.writeShort( first );
+        } else {
+          out.writeShort( first );
+          out.writeShort( second );
+        }
+      } catch( IOException shouldNotHappen ) {
+        throw new IllegalStateException( shouldNotHappen );
+      }
+      Integer result = Integer.valueOf( count++ );
+      entries.put( key, result );
+      return result;
+    }
+  }
+}
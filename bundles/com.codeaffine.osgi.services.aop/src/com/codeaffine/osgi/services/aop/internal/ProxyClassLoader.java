@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+
+// sees the service interface and the dispatching types
+class ProxyClassLoader extends ClassLoader {
+  private static final String INTERNAL_PACKAGE_PREFIX = getPackagePrefix();
+
+  ProxyClassLoader( ClassLoader parent ) {
+    super( parent );
+  }
+
+  @Override
+  protected Class<?> loadClass( String name, boolean resolve )
+    throws ClassNotFoundException
+  {
+    Class<?> result;
+    if( name.startsWith( INTERNAL_PACKAGE_PREFIX ) ) {
+      result = ProxyClassLoader.class.getClassLoader().loadClass( name );
+    } else {
+      result = super.loadClass( name, resolve );
+    }
+    return result;
+  }
+
+  Class<?> defineProxyClass( String name, byte[] classFile ) {
+    return defineClass( name, classFile, 0, classFile.length );
+  }
+
+  private static String getPackagePrefix() {
+    String name = ProxyClassLoader.class.getName();
+    return name.substring( 0, name.lastIndexOf( '.' ) + 1 );
+  }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// resolved on the first proxy creation, shared by later ones
+class ProxyComposition {
+  private final ProxyRegistrar[] registrars;
+  private final Class<?>[] serviceTypes;
+  private final ProxyFactory proxyFactory;
+  private final InvocationStatisticsImpl statistics;
+  private MethodIndex methodIndex;
+  private AdvicePlan advicePlan;
+  private ServiceMetrics serviceMetrics;
+
+  ProxyComposition( ProxyRegistrar[] registrars,
+                    ProxyFactory proxyFactory,
+                    InvocationStatisticsImpl statistics )
+  {
+    this.registrars = registrars;
+    this.serviceTypes = getServiceTypes( registrars );
+    this.proxyFactory = proxyFactory;
+    this.statistics = statistics;
+  }
+
+  String[] getServiceTypeNames() {
+    String[] result = new String[ serviceTypes.length ];
+    for( int i = 0; i < result.length; i++ ) {
+      result[ i ] = serviceTypes[ i ].getName();
+    }
+    return result;
+  }
+
+  synchronized Object createProxy( Object service ) {
+    if( methodIndex == null ) {
+      resolve();
+    }
+    ProxyInvocationHandler invocationHandler
+      = new ProxyInvocationHandler( methodIndex, service );
+    invocationHandler.setAdvicePlan( advicePlan );
+    if( serviceMetrics != null ) {
+      invocationHandler.setServiceMetrics( serviceMetrics );
+    }
+    return proxyFactory.createProxy( serviceTypes, invocationHandler );
+  }
+
+  // proxies still in use record into unpublished metrics
+  synchronized void dispose() {
+    if( serviceMetrics != null ) {
+      statistics.releaseServiceMetrics( serviceMetrics );
+      serviceMetrics = null;
+    }
+  }
+
+  private void resolve() {
+    if( statistics != null ) {
+      serviceMetrics = statistics.getServiceMetrics( serviceTypes );
+      methodIndex = serviceMetrics.getMethodIndex();
+    } else {
+      methodIndex = MethodIndex.of( serviceTypes );
+    }
+    if( registrars.length == 1 ) {
+      advicePlan = registrars[ 0 ].getJoinPoint();
+    } else {
+      advicePlan = new MergedAdvicePlan( methodIndex, getJoinPoints() );
+    }
+  }
+
+  private JoinPointImpl<?>[] getJoinPoints() {
+    JoinPointImpl<?>[] result = new JoinPointImpl<?>[ registrars.length ];
+    for( int i = 0; i < result.length; i++ ) {
+      result[ i ] = registrars[ i ].getJoinPoint();
+    }
+    return result;
+  }
+
+  private static Class<?>[] getServiceTypes( ProxyRegistrar[] registrars ) {
+    List<Class<?>> result = new ArrayList<Class<?>>();
+    for( ProxyRegistrar registrar : registrars ) {
+      if( !result.contains( registrar.getServiceType() ) ) {
+        result.add( registrar.getServiceType() );
+      }
+    }
+    return result.toArray( new Class<?>[ result.size() ] );
+  }
+}
@@ -0,0 +1,18 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+
+// public since generated proxy classes are defined by their own class loader
+public interface ProxyDispatcher {
+  boolean isAdvised( int methodIndex );
+  Object dispatch( int methodIndex, Object[] args ) throws Throwable;
+}
@@ -10,62 +10,136 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import com.codeaffine.osgi.services.aop.InvocationContext;
 import com.codeaffine.osgi.services.aop.JoinPoint;
 
-class ProxyInvocationHandler implements InvocationHandler {
+class ProxyInvocationHandler implements InvocationHandler, ProxyDispatcher {
     private final Object service;
-    private JoinPointImpl<?> joinPoint;
+    private final MethodIndex methodIndex;
+    private AdvicePlan advicePlan;
+    private ServiceMetrics serviceMetrics;
 
-    ProxyInvocationHandler( Object service ) {
+    ProxyInvocationHandler( Class<?> serviceType, Object service ) {
+      this( MethodIndex.of( serviceType ), service );
+    }
+
+    ProxyInvocationHandler( MethodIndex methodIndex, Object service ) {
       this.service = service;
+      this.methodIndex = methodIndex;
     }
 
     @Override
     public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
-      Object result = null;
+      return dispatch( methodIndex.indexOf( method ), args );
+    }
+
+    @Override
+    public boolean isAdvised( int index ) {
+      return serviceMetrics != null || getAdviceChain( index ) != null;
+    }
+
+    @Override
+    public Object dispatch( int index, Object[] args ) throws Throwable {
+      Object result;
+      if( serviceMetrics == null ) {
+        result = dispatchUntimed( index, args );
+      } else {
+        result = dispatchTimed( index, args );
+      }
+      return result;
+    }
+
+    private Object dispatchTimed( int index, Object[] args ) throws Throwable {
+      long start = System.nanoTime();
+      boolean failed = true;
       try {
-        if( joinPoint != null ) {
-          joinPoint.excuteBefore( method, args ); 
-        }
-        result = method.invoke( service, args );
-        if( joinPoint != null ) {
-          joinPoint.excuteAfter( method, args );
-        }        
-      } catch( Exception exception ) {
-        Exception cause = getCause( exception );
-        if( !joinPoint.hasExceptionAdvice() ) {
-          throw cause;
-        }
+        Object result = dispatchUntimed( index, args );
+        failed = false;
+        return result;
+      } finally {
+        serviceMetrics.record( index, System.nanoTime() - start, failed );
+      }
+    }
+
+    private Object dispatchUntimed( int index, Object[] args )
+      throws Throwable
+    {
+      MethodHandle invoker = methodIndex.getInvoker( index );
+      AdviceChain adviceChain = getAdviceChain( index );
+      Object result;
+      if( adviceChain == null ) {
+        result = ( Object )invoker.invokeExact( service, args );
+      } else {
+        Method method = methodIndex.getMethod( index );
+        result = dispatch( method, invoker, adviceChain, args );
+      }
+      return result;
+    }
+
+    private Object dispatch( Method method,
+                             MethodHandle invoker,
+                             AdviceChain adviceChain,
+                             Object[] args )
+      throws Throwable
+    {
+      Object result;
+      if( adviceChain.isContextual() ) {
+        InvocationContextImpl context
+          = InvocationContextImpl.enter( method, service, args );
         try {
-          result = joinPoint.executeOnException( method, args, cause );
-        } catch( Exception errorHandlerException ) {
-          throw getCause( errorHandlerException );
+          result = dispatch( method, invoker, adviceChain, args, context );
+        } finally {
+          context.exit();
         }
+      } else {
+        result = dispatch( method, invoker, adviceChain, args, null );
       }
       return result;
     }
 
-    private Exception getCause( Exception exception ) {
-      Exception result = exception;
-      if( exception instanceof InvocationTargetException ) {
-        result = ( Exception )stripOfInvocationTargetException( exception ); 
+    private Object dispatch( Method method,
+                             MethodHandle invoker,
+                             AdviceChain adviceChain,
+                             Object[] args,
+                             InvocationContext context )
+      throws Throwable
+    {
+      Object result = null;
+      try {
+        adviceChain.executeBefore( args, context ); 
+        result = adviceChain.proceed( method, invoker, service, args );
+        adviceChain.executeAfter( args, context );
+      } catch( Exception exception ) {
+        result = adviceChain.executeOnException( args, exception );
       }
       return result;
     }
 
-    private Throwable stripOfInvocationTargetException( Exception exception ) {
-      Throwable result = ( ( InvocationTargetException ) exception ).getTargetException();
-      if( result instanceof Error ) {
-        throw ( Error )result;
+    private AdviceChain getAdviceChain( int index ) {
+      AdviceChain result = null;
+      if( advicePlan != null ) {
+        result = advicePlan.getAdviceChain( index );
       }
       return result;
     }
 
+    Object getService() {
+      return service;
+    }
+
+    void setServiceMetrics( ServiceMetrics serviceMetrics ) {
+      this.serviceMetrics = serviceMetrics;
+    }
+
     void setJoinPoint( JoinPoint<?> joinPoint ) {
-      this.joinPoint = ( JoinPointImpl<?> )joinPoint;
+      this.advicePlan = ( JoinPointImpl<?> )joinPoint;
+    }
+
+    void setAdvicePlan( AdvicePlan advicePlan ) {
+      this.advicePlan = advicePlan;
     }
   }
\ No newline at end of file
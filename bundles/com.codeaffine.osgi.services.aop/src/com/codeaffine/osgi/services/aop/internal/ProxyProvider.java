@@ -10,41 +10,123 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.EventListenerHook;
 import org.osgi.framework.hooks.service.FindHook;
+import org.osgi.framework.hooks.service.ListenerHook.ListenerInfo;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
 
+import com.codeaffine.osgi.services.aop.InvocationStatistics;
 import com.codeaffine.osgi.services.aop.JoinPointDefinition;
+import com.codeaffine.osgi.services.aop.internal.concurrent.BundleResources;
 
 
-public class ProxyProvider implements FindHook {
+// lookups never wait for definitions being added or removed
+public class ProxyProvider implements FindHook, EventListenerHook {
+  static final String PROXY_ENGINE_PROPERTY
+    = "com.codeaffine.osgi.services.aop.proxyEngine";
+  static final String PROXY_ENGINE_GENERATED = "generated";
+  static final String STATISTICS_PROPERTY
+    = "com.codeaffine.osgi.services.aop.statistics";
+
   private ComponentContext proxyProviderContext;
-  private Map<JoinPointDefinition<?>,ProxyRegistrar> joinPointDefinitions;
-  private Set<JoinPointDefinition<?>> activationBuffer;
+  private volatile Bundle proxyProviderBundle;
+  private AdvisedServices advisedServices;
+  private InvocationStatisticsImpl statistics;
+  private ServiceRegistration<?> statisticsRegistration;
+  private final ConcurrentMap<JoinPointDefinition<?>,ProxyRegistrar>
+    joinPointDefinitions;
+  private final Set<JoinPointDefinition<?>> activationBuffer;
+  private final JoinPointDefinitionIndex advisedServiceTypes;
+  private final Lock lock;
+  private volatile LogService logService;
   
   public ProxyProvider() {
-    joinPointDefinitions = new HashMap<JoinPointDefinition<?>,ProxyRegistrar>();
+    joinPointDefinitions
+      = new ConcurrentHashMap<JoinPointDefinition<?>,ProxyRegistrar>();
     activationBuffer = new HashSet<JoinPointDefinition<?>>();
+    advisedServiceTypes = new JoinPointDefinitionIndex();
+    lock = new ReentrantLock();
   }
+
+  // opened outside of the lock, so bindings do not wait
   public void activate( ComponentContext proxyProviderContext ) {
-    synchronized( joinPointDefinitions ) {
+    Map<JoinPointDefinition<?>,ProxyRegistrar> registrars
+      = new LinkedHashMap<JoinPointDefinition<?>,ProxyRegistrar>();
+    lock.lock();
+    try {
+      BundleContext bundleContext = proxyProviderContext.getBundleContext();
       this.proxyProviderContext = proxyProviderContext;
-      if( !activationBuffer.isEmpty() ) {
-        Iterator<JoinPointDefinition<?>> iterator = activationBuffer.iterator();
-        while( iterator.hasNext() ) {
-          JoinPointDefinition<?> joinPointDefinition = iterator.next();
-          registerJoinPointDefinitions( joinPointDefinition );
-        }
-        activationBuffer.clear();
+      this.proxyProviderBundle = bundleContext.getBundle();
+      registerStatistics( bundleContext );
+      this.advisedServices = createAdvisedServices( bundleContext );
+      Iterator<JoinPointDefinition<?>> iterator = activationBuffer.iterator();
+      while( iterator.hasNext() ) {
+        JoinPointDefinition<?> definition = iterator.next();
+        registrars.put( definition, addProxyRegistrar( definition ) );
       }
+      activationBuffer.clear();
+    } finally {
+      lock.unlock();
+    }
+    List<ProxyRegistrar> opening
+      = new ArrayList<ProxyRegistrar>( registrars.values() );
+    // services get their proxy registered once
+    advisedServices.suspendPublishing();
+    try {
+      new ProxyRegistrarActivation( opening, logService ).open();
+    } finally {
+      advisedServices.resumePublishing();
+    }
+    for( JoinPointDefinition<?> definition : registrars.keySet() ) {
+      closeIfRemoved( definition, registrars.get( definition ) );
+    }
+  }
+
+  public void deactivate() {
+    lock.lock();
+    try {
+      if( statisticsRegistration != null ) {
+        statisticsRegistration.unregister();
+        statisticsRegistration = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+    BundleResources.release();
+  }
+
+  private void registerStatistics( BundleContext bundleContext ) {
+    String enabled = bundleContext.getProperty( STATISTICS_PROPERTY );
+    if( Boolean.parseBoolean( enabled ) ) {
+      statistics = new InvocationStatisticsImpl();
+      String name = InvocationStatistics.class.getName();
+      statisticsRegistration
+        = bundleContext.registerService( name, statistics, null );
     }
   }
 
@@ -55,53 +137,213 @@ public class ProxyProvider implements FindHook {
                     boolean allServices,
                     Collection<ServiceReference<?>> references )
   {
-    if( hasProxyDefinitionFor( name ) ) {
-      removeOriginServiceReference( references );
+    if( advisedServiceTypes.contains( name ) ) {
+      removeOriginServiceReference( name, references );
     }
   }
 
-  private void removeOriginServiceReference( Collection<ServiceReference<?>> references ) {
+  private void removeOriginServiceReference(
+    String name,
+    Collection<ServiceReference<?>> references )
+  {
     Iterator<ServiceReference<?>> serviceReferences = references.iterator();
+    Bundle providerBundle = proxyProviderBundle;
     while( serviceReferences.hasNext() ) {
       ServiceReference<?> serviceReference = serviceReferences.next();
-      BundleContext providerBundle = proxyProviderContext.getBundleContext();
-      if( !( serviceReference.getBundle().equals( providerBundle.getBundle() ) ) ) {
+      Bundle bundle = serviceReference.getBundle();
+      if(    bundle != null
+          && !bundle.equals( providerBundle )
+          && advisedServiceTypes.isAdvised( name, serviceReference ) )
+      {
         serviceReferences.remove();
       }
     }
   }
 
-  private boolean hasProxyDefinitionFor( String name ) {
-    synchronized( joinPointDefinitions ) {
-      Iterator<JoinPointDefinition<?>> definitions = joinPointDefinitions.keySet().iterator();
-      boolean result = false;
-      while( !result && definitions.hasNext() ) {
-        JoinPointDefinition<?> proxyDefinition = definitions.next();
-        result = proxyDefinition.getJoinPointFactory().getServiceType().getName().equals( name );
+  // listeners of this bundle track the originals
+  @Override
+  public void event( ServiceEvent event,
+                     Map<BundleContext, Collection<ListenerInfo>> listeners )
+  {
+    ServiceReference<?> reference = event.getServiceReference();
+    String[] objectClass
+      = ( String[] )reference.getProperty( Constants.OBJECTCLASS );
+    Bundle providerBundle = proxyProviderBundle;
+    Bundle bundle = reference.getBundle();
+    if(    bundle != null
+        && !bundle.equals( providerBundle )
+        && isAdvised( objectClass, reference ) )
+    {
+      Hashtable<String, Object> originProperties = getProperties( reference );
+      Hashtable<String, Object> proxyProperties
+        = new Hashtable<String, Object>( originProperties );
+      String[] advisedTypes = getAdvisedTypes( objectClass, reference );
+      proxyProperties.put( Constants.OBJECTCLASS, advisedTypes );
+      proxyProperties.remove( Constants.SERVICE_ID );
+      removeListeners( listeners,
+                       providerBundle,
+                       originProperties,
+                       proxyProperties );
+    }
+  }
+
+  private boolean isAdvised( String[] objectClass,
+                             ServiceReference<?> reference )
+  {
+    boolean result = false;
+    int count = objectClass == null ? 0 : objectClass.length;
+    for( int i = 0; !result && i < count; i++ ) {
+      result = advisedServiceTypes.isAdvised( objectClass[ i ], reference );
+    }
+    return result;
+  }
+
+  private static void removeListeners(
+    Map<BundleContext, Collection<ListenerInfo>> listeners,
+    Bundle providerBundle,
+    Dictionary<String, Object> originProperties,
+    Dictionary<String, Object> proxyProperties )
+  {
+    Iterator<Map.Entry<BundleContext, Collection<ListenerInfo>>> entries
+      = listeners.entrySet().iterator();
+    while( entries.hasNext() ) {
+      Map.Entry<BundleContext, Collection<ListenerInfo>> entry = entries.next();
+      if( !entry.getKey().getBundle().equals( providerBundle ) ) {
+        Iterator<ListenerInfo> listenerInfos = entry.getValue().iterator();
+        while( listenerInfos.hasNext() ) {
+          String filter = listenerInfos.next().getFilter();
+          if( seesProxy( filter, originProperties, proxyProperties ) ) {
+            listenerInfos.remove();
+          }
+        }
+      }
+    }
+  }
+
+  // only the advised types and the service id differ
+  private static boolean seesProxy( String filter,
+                                    Dictionary<String, Object> originProperties,
+                                    Dictionary<String, Object> proxyProperties )
+  {
+    boolean result = filter == null;
+    if( !result ) {
+      try {
+        Filter listenerFilter = FrameworkUtil.createFilter( filter );
+        result =    listenerFilter.match( originProperties )
+                 && listenerFilter.match( proxyProperties );
+      } catch( InvalidSyntaxException listenerCannotExist ) {
+        // the framework does not accept listeners with invalid filters
       }
-      return result;
     }
+    return result;
+  }
+
+  private static Hashtable<String, Object> getProperties(
+    ServiceReference<?> reference )
+  {
+    Hashtable<String, Object> result = new Hashtable<String, Object>();
+    String[] propertyKeys = reference.getPropertyKeys();
+    for( int i = 0; propertyKeys != null && i < propertyKeys.length; i++ ) {
+      Object value = reference.getProperty( propertyKeys[ i ] );
+      if( value != null ) {
+        result.put( propertyKeys[ i ], value );
+      }
+    }
+    return result;
+  }
+
+  private String[] getAdvisedTypes( String[] objectClass,
+                                    ServiceReference<?> reference )
+  {
+    List<String> result = new ArrayList<String>();
+    for( String name : objectClass ) {
+      if( advisedServiceTypes.isAdvised( name, reference ) ) {
+        result.add( name );
+      }
+    }
+    return result.toArray( new String[ result.size() ] );
   }
 
   public void addJoinPointDefinition( JoinPointDefinition<?> joinPointDefinition ) {
-    synchronized( joinPointDefinitions ) {
+    ProxyRegistrar registrar = null;
+    lock.lock();
+    try {
       if( proxyProviderContext == null ) {
         activationBuffer.add( joinPointDefinition );
       } else {
-        registerJoinPointDefinitions( joinPointDefinition );
+        registrar = addProxyRegistrar( joinPointDefinition );
       }
+    } finally {
+      lock.unlock();
+    }
+    if( registrar != null ) {
+      registrar.open();
+      closeIfRemoved( joinPointDefinition, registrar );
     }
   }
   
-  private void registerJoinPointDefinitions( JoinPointDefinition<?> joinPointDefinition ) {
-    ProxyRegistrar registrar = createProxyRegistar( joinPointDefinition );
-    joinPointDefinitions.put( joinPointDefinition, registrar );
-    registrar.open();
+  public void removeJoinPointDefinition(
+    JoinPointDefinition<?> joinPointDefinition )
+  {
+    ProxyRegistrar registrar;
+    lock.lock();
+    try {
+      activationBuffer.remove( joinPointDefinition );
+      registrar = joinPointDefinitions.remove( joinPointDefinition );
+      if( registrar != null ) {
+        advisedServiceTypes.remove( joinPointDefinition );
+      }
+    } finally {
+      lock.unlock();
+    }
+    if( registrar != null ) {
+      registrar.close();
+    }
+  }
+
+  // a concurrent removal may have closed the registrar too early
+  private void closeIfRemoved( JoinPointDefinition<?> joinPointDefinition,
+                               ProxyRegistrar registrar )
+  {
+    if( joinPointDefinitions.get( joinPointDefinition ) != registrar ) {
+      registrar.close();
+    }
+  }
+  
+  public void setLogService( LogService logService ) {
+    this.logService = logService;
+  }
+
+  public void unsetLogService( LogService logService ) {
+    if( this.logService == logService ) {
+      this.logService = null;
+    }
+  }
+  
+  private ProxyRegistrar addProxyRegistrar(
+    JoinPointDefinition<?> joinPointDefinition )
+  {
+    ProxyRegistrar result = createProxyRegistar( joinPointDefinition );
+    joinPointDefinitions.put( joinPointDefinition, result );
+    advisedServiceTypes.add( joinPointDefinition );
+    return result;
   }
 
   private ProxyRegistrar createProxyRegistar( JoinPointDefinition<?> proxyDefinition ) {
     BundleContext bundleContext = proxyProviderContext.getBundleContext();
     Class<?> serviceType = proxyDefinition.getJoinPointFactory().getServiceType();
-    return new ProxyRegistrar( bundleContext, serviceType, proxyDefinition );
+    return new ProxyRegistrar( bundleContext,
+                               serviceType,
+                               proxyDefinition,
+                               advisedServices );
+  }
+
+  private AdvisedServices createAdvisedServices( BundleContext bundleContext ) {
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    String engine = bundleContext.getProperty( PROXY_ENGINE_PROPERTY );
+    if( PROXY_ENGINE_GENERATED.equals( engine ) ) {
+      proxyFactory = new GeneratedProxyFactory( proxyFactory );
+    }
+    return new AdvisedServices( bundleContext, proxyFactory, statistics );
   }
 }
\ No newline at end of file
@@ -10,11 +10,12 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
-import java.lang.reflect.Proxy;
-import java.util.Dictionary;
-import java.util.Hashtable;
-
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
 
@@ -22,40 +23,77 @@ import com.codeaffine.osgi.services.aop.JoinPointDefinition;
 import com.codeaffine.osgi.services.aop.JoinPointFactory;
 
 
-public class ProxyRegistrar extends ServiceTracker<Object, Object> {
+public class ProxyRegistrar extends ServiceTracker<Object, AdvisedService> {
   private final Class<?> serviceType;
-  private final Class<?>[] proxyTypes;
-  private final ClassLoader classLoader;
   private final JoinPointDefinition<?> definition;
+  private final AdvisedServices advisedServices;
+
+  public ProxyRegistrar( BundleContext context,
+                         Class<?> serviceType,
+                         JoinPointDefinition<?> definition )
+  {
+    this( context,
+          serviceType,
+          definition,
+          new AdvisedServices( context, new ReflectiveProxyFactory(), null ) );
+  }
 
-  @SuppressWarnings( "unchecked" )
-  public ProxyRegistrar( BundleContext context, Class<?> serviceType, JoinPointDefinition<?> definition ) {
-    super( context, ( Class<Object> )serviceType, null );
+  ProxyRegistrar( BundleContext context,
+                  Class<?> serviceType,
+                  JoinPointDefinition<?> definition,
+                  AdvisedServices advisedServices )
+  {
+    super( context, createTrackingFilter( serviceType, definition ), null );
     this.serviceType = serviceType;
     this.definition = definition;
-    this.proxyTypes = new Class[] { serviceType };
-    this.classLoader = serviceType.getClassLoader();
+    this.advisedServices = advisedServices;
   }
   
   @Override
-  public Object addingService( ServiceReference<Object> reference ) {
-    Object service = context.getService( reference );
-    if( !Proxy.isProxyClass( service.getClass() ) ) {
-      ProxyInvocationHandler invocationHandler = new ProxyInvocationHandler( service );
-      JoinPointFactory<?> joinPointFactory = definition.getJoinPointFactory();
-      invocationHandler.setJoinPoint( joinPointFactory.create() );
-      Object proxy = Proxy.newProxyInstance( classLoader, proxyTypes, invocationHandler );
-      context.registerService( serviceType.getName(), proxy, copyProperties( reference ) );
+  public AdvisedService addingService( ServiceReference<Object> reference ) {
+    AdvisedService result = null;
+    if( !isProxy( reference ) ) {
+      result = advisedServices.add( reference, this );
     }
-    return super.addingService( reference );
+    return result;
   }
 
-  private Dictionary<String, ?> copyProperties( ServiceReference<Object> reference ) {
-    Hashtable<String, Object> result = new Hashtable<String, Object>();
-    String[] propertyKeys = reference.getPropertyKeys();
-    for( String key : propertyKeys ) {
-      result.put( key, reference.getProperty( key ) );
+  @Override
+  public void removedService( ServiceReference<Object> reference,
+                              AdvisedService advisedService )
+  {
+    advisedServices.remove( reference, advisedService, this );
+  }
+
+  Class<?> getServiceType() {
+    return serviceType;
+  }
+
+  JoinPointImpl<?> getJoinPoint() {
+    JoinPointFactory<?> joinPointFactory = definition.getJoinPointFactory();
+    return ( JoinPointImpl<?> )joinPointFactory.getJoinPoint();
+  }
+
+  // tracks the services matching the filter of the definition
+  private static Filter createTrackingFilter( Class<?> serviceType,
+                                             JoinPointDefinition<?> definition )
+  {
+    String typeName = serviceType.getName();
+    String result = "(" + Constants.OBJECTCLASS + "=" + typeName + ")";
+    Filter filter = definition.getJoinPointFactory().getFilter();
+    if( filter != null ) {
+      result = "(&" + result + filter + ")";
     }
-    return result;
+    try {
+      return FrameworkUtil.createFilter( result );
+    } catch( InvalidSyntaxException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
+
+  // references without bundle are already unregistered
+  private boolean isProxy( ServiceReference<Object> reference ) {
+    Bundle bundle = reference.getBundle();
+    return bundle == null || bundle.equals( context.getBundle() );
   }
 }
\ No newline at end of file
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.service.log.LogService;
+
+
+// opens the registrars of definitions bound before activation
+class ProxyRegistrarActivation {
+  private static final String THREAD_NAME = "ProxyRegistrar Activation ";
+
+  private final List<ProxyRegistrar> registrars;
+  private final LogService logService;
+
+  ProxyRegistrarActivation( List<ProxyRegistrar> registrars,
+                            LogService logService )
+  {
+    this.registrars = registrars;
+    this.logService = logService;
+  }
+
+  void open() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int poolSize = Math.min( registrars.size(), processors );
+    if( poolSize <= 1 ) {
+      for( ProxyRegistrar registrar : registrars ) {
+        open( registrar );
+      }
+    } else {
+      open( Executors.newFixedThreadPool( poolSize, createThreadFactory() ) );
+    }
+  }
+
+  private void open( ExecutorService executor ) {
+    try {
+      List<Future<Object>> futures = executor.invokeAll( createTasks() );
+      for( Future<Object> future : futures ) {
+        awaitCompletion( future );
+      }
+    } catch( InterruptedException shouldNotHappen ) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException( shouldNotHappen );
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private List<Callable<Object>> createTasks() {
+    List<Callable<Object>> result = new ArrayList<Callable<Object>>();
+    for( final ProxyRegistrar registrar : registrars ) {
+      result.add( new Callable<Object>() {
+        @Override
+        public Object call() {
+          open( registrar );
+          return null;
+        }
+      } );
+    }
+    return result;
+  }
+
+  private static void awaitCompletion( Future<Object> future )
+    throws InterruptedException
+  {
+    try {
+      future.get();
+    } catch( ExecutionException exception ) {
+      Throwable cause = exception.getCause();
+      if( cause instanceof RuntimeException ) {
+        throw ( RuntimeException )cause;
+      }
+      if( cause instanceof Error ) {
+        throw ( Error )cause;
+      }
+      throw new IllegalStateException( cause );
+    }
+  }
+
+  private void open( ProxyRegistrar registrar ) {
+    long start = System.nanoTime();
+    registrar.open();
+    long duration = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    report( registrar.getServiceType(), duration );
+  }
+
+  private void report( Class<?> serviceType, long duration ) {
+    if( logService != null ) {
+      String pattern = "Opened proxy registrar for ''{0}'' in {1} ms.";
+      Object[] arguments
+        = new Object[] { serviceType.getName(), String.valueOf( duration ) };
+      String message = MessageFormat.format( pattern, arguments );
+      logService.log( LogService.LOG_DEBUG, message );
+    }
+  }
+
+  private static ThreadFactory createThreadFactory() {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread( Runnable runnable ) {
+        String name = THREAD_NAME + count.incrementAndGet();
+        Thread result = new Thread( runnable, name );
+        result.setDaemon( true );
+        return result;
+      }
+    };
+  }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.Dictionary;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+
+// obtains the original and creates the proxy with the first consumer only
+class ProxyServiceFactory implements ServiceFactory<Object> {
+  private final BundleContext context;
+  private final ServiceReference<Object> reference;
+  private final ProxyComposition composition;
+  private ServiceRegistration<?> registration;
+  private Object proxy;
+  private int useCount;
+  private boolean disposed;
+
+  ProxyServiceFactory( BundleContext context,
+                       ServiceReference<Object> reference,
+                       ProxyComposition composition )
+  {
+    this.context = context;
+    this.reference = reference;
+    this.composition = composition;
+  }
+
+  void register( String[] names, Dictionary<String, ?> properties ) {
+    registration = context.registerService( names, this, properties );
+  }
+
+  @Override
+  public Object getService( Bundle bundle,
+                            ServiceRegistration<Object> registration )
+  {
+    Object result = acquireProxy();
+    if( result == null && !isDisposed() ) {
+      Object service = context.getService( reference );
+      if( service != null ) {
+        result = installProxy( composition.createProxy( service ) );
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void ungetService( Bundle bundle,
+                            ServiceRegistration<Object> registration,
+                            Object service )
+  {
+    if( releaseProxy() ) {
+      context.ungetService( reference );
+    }
+  }
+
+  void dispose() {
+    synchronized( this ) {
+      disposed = true;
+    }
+    if( registration != null ) {
+      unregister( registration );
+    }
+    if( detachProxy() ) {
+      context.ungetService( reference );
+    }
+    composition.dispose();
+  }
+
+  private synchronized boolean isDisposed() {
+    return disposed;
+  }
+
+  private synchronized Object acquireProxy() {
+    if( proxy != null ) {
+      useCount++;
+    }
+    return proxy;
+  }
+
+  // the service obtained by a thread that lost the race is given back
+  private Object installProxy( Object created ) {
+    boolean installed;
+    Object result;
+    synchronized( this ) {
+      installed = !disposed && proxy == null;
+      if( installed ) {
+        proxy = created;
+      }
+      result = acquireProxy();
+    }
+    if( !installed ) {
+      context.ungetService( reference );
+    }
+    return result;
+  }
+
+  private synchronized boolean releaseProxy() {
+    useCount--;
+    return useCount == 0 && detachProxy();
+  }
+
+  private synchronized boolean detachProxy() {
+    boolean result = proxy != null;
+    proxy = null;
+    useCount = 0;
+    return result;
+  }
+
+  private static void unregister( ServiceRegistration<?> registration ) {
+    try {
+      registration.unregister();
+    } catch( IllegalStateException alreadyUnregistered ) {
+      // the proxy vanishes together with this bundle
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Proxy;
+
+
+class ReflectiveProxyFactory implements ProxyFactory {
+
+  @Override
+  public Object createProxy( Class<?> serviceType,
+                             ProxyInvocationHandler handler )
+  {
+    return createProxy( new Class<?>[] { serviceType }, handler );
+  }
+
+  @Override
+  public Object createProxy( Class<?>[] serviceTypes,
+                             ProxyInvocationHandler handler )
+  {
+    ClassLoader classLoader = serviceTypes[ 0 ].getClassLoader();
+    if( serviceTypes.length > 1 ) {
+      // the service's class loader sees all of its types
+      classLoader = handler.getService().getClass().getClassLoader();
+    }
+    return Proxy.newProxyInstance( classLoader, serviceTypes, handler );
+  }
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Method;
+
+import com.codeaffine.osgi.services.aop.AdviceSampler;
+import com.codeaffine.osgi.services.aop.InvocationContext;
+
+
+// an advice that is only executed for the calls chosen by its sampler
+class SampledAdviceHolder extends AdviceHolder {
+  private final AdviceSampler sampler;
+
+  SampledAdviceHolder( Method adviceMethod,
+                       Object advice,
+                       AdviceSampler sampler )
+  {
+    super( adviceMethod, advice );
+    this.sampler = sampler;
+  }
+
+  AdviceSampler getSampler() {
+    return sampler;
+  }
+
+  @Override
+  Object execute( Object[] args, InvocationContext context ) throws Exception {
+    Object result = null;
+    if( sampler.sample() ) {
+      result = super.execute( args, context );
+    }
+    return result;
+  }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.codeaffine.osgi.services.aop.MethodStatistics;
+
+
+// latencies and failures of the methods of one proxy
+class ServiceMetrics {
+  private final Class<?>[] serviceTypes;
+  private final MethodIndex methodIndex;
+  private final AtomicReferenceArray<MethodMetrics> methodMetrics;
+
+  ServiceMetrics( Class<?> serviceType ) {
+    this( new Class<?>[] { serviceType } );
+  }
+
+  ServiceMetrics( Class<?>[] serviceTypes ) {
+    this.serviceTypes = serviceTypes;
+    this.methodIndex = MethodIndex.of( serviceTypes );
+    this.methodMetrics
+      = new AtomicReferenceArray<MethodMetrics>( methodIndex.size() );
+  }
+
+  // proxies that record into these metrics have to use the same method indices
+  MethodIndex getMethodIndex() {
+    return methodIndex;
+  }
+
+  void record( int index, long nanos, boolean failed ) {
+    MethodMetrics metrics = methodMetrics.get( index );
+    if( metrics == null ) {
+      methodMetrics.compareAndSet( index, null, new MethodMetrics() );
+      metrics = methodMetrics.get( index );
+    }
+    metrics.record( nanos, failed );
+  }
+
+  List<MethodStatistics> getStatistics() {
+    List<MethodStatistics> result = new ArrayList<MethodStatistics>();
+    for( int i = 0; i < methodMetrics.length(); i++ ) {
+      MethodMetrics metrics = methodMetrics.get( i );
+      if( metrics != null ) {
+        Method method = methodIndex.getMethod( i );
+        String serviceType = getServiceTypeOf( method ).getName();
+        result.add( metrics.getStatistics( serviceType, toString( method ) ) );
+      }
+    }
+    return result;
+  }
+
+  // methods of several types count for the first one
+  private Class<?> getServiceTypeOf( Method method ) {
+    Class<?> result = null;
+    for( int i = 0; result == null && i < serviceTypes.length; i++ ) {
+      MethodIndex typeIndex = MethodIndex.of( serviceTypes[ i ] );
+      if( typeIndex.indexOfSignature( method ) != -1 ) {
+        result = serviceTypes[ i ];
+      }
+    }
+    return result;
+  }
+
+  private static String toString( Method method ) {
+    StringBuilder result = new StringBuilder( method.getName() );
+    result.append( "(" );
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    for( int i = 0; i < parameterTypes.length; i++ ) {
+      if( i > 0 ) {
+        result.append( ", " );
+      }
+      result.append( parameterTypes[ i ].getName() );
+    }
+    result.append( ")" );
+    return result.toString();
+  }
+
+  private static class MethodMetrics {
+    private final LatencyHistogram latencies;
+    private final StripedCounter errors;
+
+    MethodMetrics() {
+      latencies = new LatencyHistogram();
+      errors = new StripedCounter();
+    }
+
+    void record( long nanos, boolean failed ) {
+      latencies.record( nanos );
+      if( failed ) {
+        errors.increment();
+      }
+    }
+
+    MethodStatistics getStatistics( String serviceType, String method ) {
+      return new MethodStatisticsImpl( serviceType,
+                                       method,
+                                       latencies.getCounts(),
+                                       errors.sum() );
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codeaffine.osgi.services.aop.internal.concurrent.Stripes;
+
+
+// Java 7 does not provide a LongAdder
+class StripedCounter {
+  static final int STRIPE_COUNT = Stripes.count( Stripes.MAX_COUNT );
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells;
+
+  StripedCounter() {
+    cells = new AtomicLongArray( STRIPE_COUNT * PADDING );
+  }
+
+  void increment() {
+    cells.incrementAndGet( stripe() * PADDING );
+  }
+
+  long sum() {
+    long result = 0;
+    for( int i = 0; i < STRIPE_COUNT; i++ ) {
+      result += cells.get( i * PADDING );
+    }
+    return result;
+  }
+
+  static int stripe() {
+    return ( int )Thread.currentThread().getId() & ( STRIPE_COUNT - 1 );
+  }
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// releases shared resources like threads when the proxy provider deactivates
+public final class BundleResources {
+  private static final List<Runnable> releases = new ArrayList<Runnable>();
+
+  public static void register( Runnable release ) {
+    synchronized( releases ) {
+      releases.add( release );
+    }
+  }
+
+  public static void release() {
+    List<Runnable> pending;
+    synchronized( releases ) {
+      pending = new ArrayList<Runnable>( releases );
+      releases.clear();
+    }
+    for( Runnable release : pending ) {
+      release.run();
+    }
+  }
+
+  private BundleResources() {
+    // prevent instance creation
+  }
+}
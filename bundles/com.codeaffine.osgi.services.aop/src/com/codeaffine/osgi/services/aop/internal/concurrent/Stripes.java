@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal.concurrent;
+
+
+public final class Stripes {
+  public static final int MAX_COUNT = 8;
+
+  // processor count rounded up to a power of two, at most the given limit
+  public static int count( int limit ) {
+    int available = Runtime.getRuntime().availableProcessors();
+    int processors = Math.min( available, MAX_COUNT );
+    int result = Integer.highestOneBit( Math.max( 1, processors * 2 - 1 ) );
+    return Integer.highestOneBit( Math.max( 1, Math.min( result, limit ) ) );
+  }
+
+  private Stripes() {
+    // prevent instance creation
+  }
+}
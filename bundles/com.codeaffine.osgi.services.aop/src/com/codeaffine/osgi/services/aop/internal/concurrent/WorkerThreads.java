@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+
+public final class WorkerThreads {
+
+  // virtual threads where available, daemon threads otherwise
+  public static ThreadFactory createFactory( final String name ) {
+    ThreadFactory result;
+    try {
+      Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+      Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+      Method setName = builderType.getMethod( "name", String.class );
+      builder = setName.invoke( builder, name );
+      Method factory = builderType.getMethod( "factory" );
+      result = ( ThreadFactory )factory.invoke( builder );
+    } catch( Exception unavailable ) {
+      result = new ThreadFactory() {
+        @Override
+        public Thread newThread( Runnable runnable ) {
+          Thread thread = new Thread( runnable, name );
+          thread.setDaemon( true );
+          return thread;
+        }
+      };
+    }
+    return result;
+  }
+
+  private WorkerThreads() {
+    // prevent instance creation
+  }
+}
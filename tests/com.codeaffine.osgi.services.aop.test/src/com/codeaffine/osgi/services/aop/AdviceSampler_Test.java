@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.codeaffine.osgi.services.aop.AdviceSampler.Interval;
+import com.codeaffine.osgi.services.aop.AdviceSampler.Probability;
+
+
+public class AdviceSampler_Test {
+
+  @Test
+  public void testEveryNth() {
+    AdviceSampler sampler = AdviceSampler.everyNth( 3 );
+
+    assertEquals( 2, countSamples( sampler, 6 ) );
+  }
+
+  @Test
+  public void testEveryNthSamplesFirstCall() {
+    AdviceSampler sampler = AdviceSampler.everyNth( 10 );
+
+    assertTrue( sampler.sample() );
+    assertFalse( sampler.sample() );
+  }
+
+  @Test
+  public void testAdjustInterval() {
+    Interval sampler = AdviceSampler.everyNth( 100 );
+    sampler.sample();
+
+    sampler.setInterval( 1 );
+
+    assertEquals( 1, sampler.getInterval() );
+    assertEquals( 5, countSamples( sampler, 5 ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonPositiveInterval() {
+    AdviceSampler.everyNth( 0 );
+  }
+
+  @Test
+  public void testProbabilityBounds() {
+    AdviceSampler none = AdviceSampler.withProbability( 0 );
+    AdviceSampler all = AdviceSampler.withProbability( 1 );
+    
+    assertEquals( 0, countSamples( none, 100 ) );
+    assertEquals( 100, countSamples( all, 100 ) );
+  }
+
+  @Test
+  public void testAdjustProbability() {
+    Probability sampler = AdviceSampler.withProbability( 0 );
+
+    sampler.setProbability( 1 );
+
+    assertEquals( 1, sampler.getProbability(), 0 );
+    assertEquals( 10, countSamples( sampler, 10 ) );
+  }
+
+  @Test
+  public void testProbability() {
+    int samples = countSamples( AdviceSampler.withProbability( 0.5 ), 10000 );
+
+    assertTrue( samples > 4000 && samples < 6000 );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testProbabilityOutOfRange() {
+    AdviceSampler.withProbability( 1.5 );
+  }
+
+  private static int countSamples( AdviceSampler sampler, int calls ) {
+    int result = 0;
+    for( int i = 0; i < calls; i++ ) {
+      if( sampler.sample() ) {
+        result++;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor.OverflowPolicy;
+import com.codeaffine.osgi.services.aop.internal.concurrent.BundleResources;
+
+
+public class AsyncAdviceExecutor_Test {
+  
+  private List<Runnable> scheduled;
+  private Executor executor;
+
+  @Before
+  public void setUp() {
+    scheduled = new ArrayList<Runnable>();
+    executor = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+        scheduled.add( command );
+      }
+    };
+  }
+  
+  @Test
+  public void testTaskRunsOnExecutor() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 2, 2, OverflowPolicy.DISCARD );
+    Runnable task = mock( Runnable.class );
+    
+    asyncExecutor.execute( task );
+    
+    verify( task, never() ).run();
+    runScheduled();
+    verify( task ).run();
+  }
+  
+  @Test
+  public void testSingleDrainIsScheduled() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 4, 4, OverflowPolicy.DISCARD );
+    
+    asyncExecutor.execute( mock( Runnable.class ) );
+    asyncExecutor.execute( mock( Runnable.class ) );
+    
+    assertEquals( 1, scheduled.size() );
+  }
+  
+  @Test
+  public void testDrainsInBatches() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 4, 2, OverflowPolicy.DISCARD );
+    for( int i = 0; i < 3; i++ ) {
+      asyncExecutor.execute( mock( Runnable.class ) );
+    }
+    
+    scheduled.remove( 0 ).run();
+    
+    assertEquals( 1, asyncExecutor.getPendingCount() );
+    assertEquals( 1, scheduled.size() );
+  }
+  
+  @Test
+  public void testDiscardOnOverflow() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 1, 1, OverflowPolicy.DISCARD );
+    Runnable first = mock( Runnable.class );
+    Runnable second = mock( Runnable.class );
+    
+    asyncExecutor.execute( first );
+    asyncExecutor.execute( second );
+    runScheduled();
+    
+    verify( first ).run();
+    verify( second, never() ).run();
+    assertEquals( 1, asyncExecutor.getDiscardedCount() );
+  }
+  
+  @Test
+  public void testDiscardOldestOnOverflow() {
+    OverflowPolicy policy = OverflowPolicy.DISCARD_OLDEST;
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 1, 1, policy );
+    Runnable first = mock( Runnable.class );
+    Runnable second = mock( Runnable.class );
+    
+    asyncExecutor.execute( first );
+    asyncExecutor.execute( second );
+    runScheduled();
+    
+    verify( first, never() ).run();
+    verify( second ).run();
+    assertEquals( 1, asyncExecutor.getDiscardedCount() );
+  }
+  
+  @Test
+  public void testCallerRunsOnOverflow() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 1, 1, OverflowPolicy.CALLER_RUNS );
+    Runnable first = mock( Runnable.class );
+    Runnable second = mock( Runnable.class );
+    
+    asyncExecutor.execute( first );
+    asyncExecutor.execute( second );
+    
+    verify( first, never() ).run();
+    verify( second ).run();
+  }
+  
+  @Test
+  public void testBlockOnOverflow() throws InterruptedException {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( 1, 1, OverflowPolicy.BLOCK );
+    final CountDownLatch latch = new CountDownLatch( 100 );
+    
+    for( int i = 0; i < 100; i++ ) {
+      asyncExecutor.execute( new Runnable() {
+        @Override
+        public void run() {
+          latch.countDown();
+        }
+      } );
+    }
+    
+    assertTrue( latch.await( 10, TimeUnit.SECONDS ) );
+    assertEquals( 0, asyncExecutor.getDiscardedCount() );
+  }
+  
+  @Test
+  public void testBlockOnOverflowRunsTaskOfDrainingThread() {
+    final AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 1, 1, OverflowPolicy.BLOCK );
+    final Runnable nested = mock( Runnable.class );
+    asyncExecutor.execute( new Runnable() {
+      @Override
+      public void run() {
+        asyncExecutor.execute( mock( Runnable.class ) );
+        asyncExecutor.execute( nested );
+      }
+    } );
+    
+    runScheduled();
+    
+    verify( nested ).run();
+    assertEquals( 0, asyncExecutor.getDiscardedCount() );
+  }
+  
+  @Test
+  public void testErrorInTaskRequeuesRemainingBatch() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 2, 2, OverflowPolicy.DISCARD );
+    Runnable task = mock( Runnable.class );
+    final Error problem = new Error();
+    asyncExecutor.execute( new Runnable() {
+      @Override
+      public void run() {
+        throw problem;
+      }
+    } );
+    asyncExecutor.execute( task );
+    
+    try {
+      scheduled.remove( 0 ).run();
+      fail();
+    } catch( Error expected ) {
+      assertSame( problem, expected );
+    }
+    runScheduled();
+    
+    verify( task ).run();
+  }
+  
+  @Test
+  public void testProblemInTaskDoesNotStopDraining() {
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 2, 2, OverflowPolicy.DISCARD );
+    Runnable task = mock( Runnable.class );
+    UncaughtExceptionHandler handler
+      = Thread.currentThread().getUncaughtExceptionHandler();
+    UncaughtExceptionHandler ignoring = mock( UncaughtExceptionHandler.class );
+    Thread.currentThread().setUncaughtExceptionHandler( ignoring );
+    
+    try {
+      asyncExecutor.execute( new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException();
+        }
+      } );
+      asyncExecutor.execute( task );
+      runScheduled();
+    } finally {
+      Thread.currentThread().setUncaughtExceptionHandler( handler );
+    }
+    
+    verify( task ).run();
+  }
+  
+  @Test
+  public void testWorkerIsRecreatedAfterRelease() throws InterruptedException {
+    AsyncAdviceExecutor asyncExecutor = new AsyncAdviceExecutor();
+    CountDownLatch first = executeCountDown( asyncExecutor );
+    assertTrue( first.await( 5, TimeUnit.SECONDS ) );
+    
+    BundleResources.release();
+    CountDownLatch second = executeCountDown( asyncExecutor );
+    
+    assertTrue( second.await( 5, TimeUnit.SECONDS ) );
+    BundleResources.release();
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testIllegalBatchSize() {
+    new AsyncAdviceExecutor( executor, 1, 0, OverflowPolicy.DISCARD );
+  }
+
+  private static CountDownLatch executeCountDown(
+    AsyncAdviceExecutor executor )
+  {
+    final CountDownLatch result = new CountDownLatch( 1 );
+    executor.execute( new Runnable() {
+      @Override
+      public void run() {
+        result.countDown();
+      }
+    } );
+    return result;
+  }
+
+  private void runScheduled() {
+    while( !scheduled.isEmpty() ) {
+      scheduled.remove( 0 ).run();
+    }
+  }
+}
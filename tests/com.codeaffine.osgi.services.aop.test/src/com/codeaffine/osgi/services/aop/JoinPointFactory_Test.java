@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+
+
+public class JoinPointFactory_Test {
+  
+  private JoinPointDefinition<Runnable> definition;
+  private JoinPointFactory<Runnable> factory;
+
+  @Before
+  @SuppressWarnings( "unchecked" )
+  public void setUp() {
+    definition = mock( JoinPointDefinition.class );
+    factory = new JoinPointFactory<Runnable>( Runnable.class, definition );
+  }
+  
+  @Test
+  @SuppressWarnings( "unchecked" )
+  public void testCreate() {
+    JoinPoint<Runnable> first = factory.create();
+    JoinPoint<Runnable> second = factory.create();
+    
+    assertNotSame( first, second );
+    verify( definition, times( 2 ) ).register( any( JoinPoint.class ) );
+  }
+  
+  @Test
+  @SuppressWarnings( "unchecked" )
+  public void testJoinPointIsCompiledOnce() {
+    JoinPoint<Runnable> first = factory.getJoinPoint();
+    JoinPoint<Runnable> second = factory.getJoinPoint();
+    
+    assertSame( first, second );
+    verify( definition ).register( first );
+    verify( definition, times( 1 ) ).register( any( JoinPoint.class ) );
+  }
+  
+  @Test
+  public void testWithoutFilter() {
+    assertNull( factory.getFilter() );
+  }
+  
+  @Test
+  public void testFilter() {
+    JoinPointFactory<Runnable> filtered
+      = new JoinPointFactory<Runnable>( Runnable.class,
+                                        definition,
+                                        "(tenant=a)" );
+    
+    Filter filter = filtered.getFilter();
+    
+    assertTrue( filter.match( mockReference( "a" ) ) );
+    assertFalse( filter.match( mockReference( "b" ) ) );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testInvalidFilter() {
+    new JoinPointFactory<Runnable>( Runnable.class, definition, "(tenant=a" );
+  }
+
+  private static ServiceReference<?> mockReference( String tenant ) {
+    ServiceReference<?> result = mock( ServiceReference.class );
+    when( result.getProperty( "tenant" ) ).thenReturn( tenant );
+    when( result.getPropertyKeys() ).thenReturn( new String[] { "tenant" } );
+    return result;
+  }
+}
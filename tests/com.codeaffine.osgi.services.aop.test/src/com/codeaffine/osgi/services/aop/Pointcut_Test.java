@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+
+public class Pointcut_Test {
+  
+  @Retention( RetentionPolicy.RUNTIME )
+  @interface Cached {
+  }
+
+  interface Service {
+    String getName();
+    @Cached
+    int getCount();
+    void setName( String name );
+    void reset();
+  }
+
+  @Test
+  public void testAll() throws Exception {
+    assertTrue( Pointcut.all().matches( method( "reset" ) ) );
+  }
+  
+  @Test
+  public void testNamed() throws Exception {
+    Pointcut getters = Pointcut.named( "get*" );
+    
+    assertTrue( getters.matches( method( "getName" ) ) );
+    assertTrue( getters.matches( method( "getCount" ) ) );
+    assertFalse( getters.matches( method( "setName" ) ) );
+  }
+  
+  @Test
+  public void testNamedWithSingleCharacterWildcard() throws Exception {
+    Pointcut accessors = Pointcut.named( "?etName" );
+    
+    assertTrue( accessors.matches( method( "getName" ) ) );
+    assertTrue( accessors.matches( method( "setName" ) ) );
+    assertFalse( accessors.matches( method( "getCount" ) ) );
+  }
+  
+  @Test
+  public void testNamedQuotesRegexCharacters() throws Exception {
+    assertFalse( Pointcut.named( "get.ame" ).matches( method( "getName" ) ) );
+  }
+  
+  @Test
+  public void testMatching() throws Exception {
+    Pointcut pointcut = Pointcut.matching( "(get|set)Name" );
+    
+    assertTrue( pointcut.matches( method( "getName" ) ) );
+    assertTrue( pointcut.matches( method( "setName" ) ) );
+    assertFalse( pointcut.matches( method( "reset" ) ) );
+  }
+  
+  @Test
+  public void testAnnotatedWith() throws Exception {
+    Pointcut pointcut = Pointcut.annotatedWith( Cached.class );
+    
+    assertTrue( pointcut.matches( method( "getCount" ) ) );
+    assertFalse( pointcut.matches( method( "getName" ) ) );
+  }
+  
+  @Test
+  public void testCombination() throws Exception {
+    Pointcut uncached = Pointcut.annotatedWith( Cached.class ).not();
+    Pointcut pointcut = Pointcut.named( "get*" ).and( uncached );
+    Pointcut either
+      = Pointcut.named( "reset" ).or( Pointcut.named( "setName" ) );
+    
+    assertTrue( pointcut.matches( method( "getName" ) ) );
+    assertFalse( pointcut.matches( method( "getCount" ) ) );
+    assertTrue( either.matches( method( "reset" ) ) );
+    assertTrue( either.matches( method( "setName" ) ) );
+    assertFalse( either.matches( method( "getName" ) ) );
+  }
+
+  private static Method method( String name ) {
+    Method result = null;
+    for( Method method : Service.class.getMethods() ) {
+      if( method.getName().equals( name ) ) {
+        result = method;
+      }
+    }
+    return result;
+  }
+}
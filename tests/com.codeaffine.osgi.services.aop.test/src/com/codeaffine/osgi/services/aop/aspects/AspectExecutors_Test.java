@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+public class AspectExecutors_Test {
+  
+  @After
+  public void tearDown() {
+    AspectExecutors.release();
+  }
+  
+  @Test
+  public void testDefaultsAreShared() {
+    assertSame( AspectExecutors.getDefault(), AspectExecutors.getDefault() );
+    assertSame( AspectExecutors.getTimerWheel(),
+                AspectExecutors.getTimerWheel() );
+  }
+  
+  @Test
+  public void testExecutorIsBounded() {
+    ThreadPoolExecutor executor = AspectExecutors.getExecutor();
+    
+    assertEquals( AspectExecutors.MAX_WORKER_COUNT,
+                  executor.getMaximumPoolSize() );
+  }
+  
+  @Test
+  public void testReleaseShutsDownExecutor() {
+    ThreadPoolExecutor executor = AspectExecutors.getExecutor();
+    TimerWheel timerWheel = AspectExecutors.getTimerWheel();
+    
+    AspectExecutors.release();
+    
+    assertTrue( executor.isShutdown() );
+    assertNotSame( executor, AspectExecutors.getExecutor() );
+    assertNotSame( timerWheel, AspectExecutors.getTimerWheel() );
+  }
+  
+  @Test
+  public void testDefaultExecutesAfterRelease() throws InterruptedException {
+    Executor executor = AspectExecutors.getDefault();
+    AspectExecutors.getExecutor();
+    AspectExecutors.release();
+    final CountDownLatch executed = new CountDownLatch( 1 );
+    
+    executor.execute( new Runnable() {
+      @Override
+      public void run() {
+        executed.countDown();
+      }
+    } );
+    
+    assertTrue( executed.await( 5, TimeUnit.SECONDS ) );
+  }
+}
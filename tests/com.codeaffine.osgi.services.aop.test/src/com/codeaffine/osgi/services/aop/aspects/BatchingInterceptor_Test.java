@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class BatchingInterceptor_Test {
+  
+  private TimerWheel timerWheel;
+  private Executor executor;
+  private SinkImpl sink;
+
+  public interface Sink {
+    void publish( Object event );
+    void publishAll( List<Object> events );
+    void record( String name, long value );
+    Object compute();
+  }
+  
+  public static class SinkImpl implements Sink {
+    final List<List<Object>> batches = new CopyOnWriteArrayList<List<Object>>();
+    final CountDownLatch flushed = new CountDownLatch( 1 );
+
+    @Override
+    public void publish( Object event ) {
+    }
+
+    @Override
+    public void publishAll( List<Object> events ) {
+      batches.add( events );
+      flushed.countDown();
+    }
+
+    @Override
+    public void record( String name, long value ) {
+    }
+
+    public void recordAll( List<Object> values ) {
+      publishAll( values );
+    }
+
+    @Override
+    public Object compute() {
+      return null;
+    }
+  }
+
+  public static class BlockingSinkImpl extends SinkImpl {
+    final CountDownLatch entered = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+
+    @Override
+    public void publishAll( List<Object> events ) {
+      int count = active.incrementAndGet();
+      maxActive.set( Math.max( maxActive.get(), count ) );
+      entered.countDown();
+      try {
+        release.await( 5, TimeUnit.SECONDS );
+      } catch( InterruptedException shouldNotHappen ) {
+        throw new IllegalStateException( shouldNotHappen );
+      }
+      super.publishAll( events );
+      active.decrementAndGet();
+    }
+  }
+
+  public static class ValueSinkImpl extends SinkImpl {
+
+    @Override
+    public boolean equals( Object obj ) {
+      return obj instanceof ValueSinkImpl;
+    }
+
+    @Override
+    public int hashCode() {
+      return 1;
+    }
+  }
+  
+  @Before
+  public void setUp() {
+    timerWheel = new TimerWheel( 1, TimeUnit.MILLISECONDS );
+    executor = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+        command.run();
+      }
+    };
+    sink = new SinkImpl();
+  }
+  
+  @After
+  public void tearDown() {
+    timerWheel.stop();
+  }
+  
+  @Test
+  public void testFlushesBySize() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 2, 1, TimeUnit.HOURS );
+    
+    Object first = interceptor.intercept( mockPublish( "first" ) );
+    interceptor.intercept( mockPublish( "second" ) );
+    
+    assertEquals( null, first );
+    assertEquals( singleBatch( "first", "second" ), getBatches() );
+    assertEquals( 0, interceptor.getBufferedCount() );
+  }
+  
+  @Test
+  public void testFlushesByTime() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 100, 10, TimeUnit.MILLISECONDS );
+    
+    interceptor.intercept( mockPublish( "event" ) );
+    
+    assertTrue( sink.flushed.await( 5, TimeUnit.SECONDS ) );
+    assertEquals( singleBatch( "event" ), getBatches() );
+  }
+  
+  @Test
+  public void testBuffersUntilFlush() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 100, 1, TimeUnit.HOURS );
+    interceptor.intercept( mockPublish( "first" ) );
+    interceptor.intercept( mockPublish( "second" ) );
+    int bufferedCount = interceptor.getBufferedCount();
+    
+    interceptor.flush();
+    
+    assertEquals( 2, bufferedCount );
+    assertEquals( singleBatch( "first", "second" ), getBatches() );
+    assertEquals( 0, interceptor.getBufferedCount() );
+  }
+  
+  @Test
+  public void testFlushSplitsIntoBatches() throws Exception {
+    Executor idle = mock( Executor.class );
+    BatchingInterceptor interceptor
+      = new BatchingInterceptor( "publishAll", 2, 1, TimeUnit.HOURS,
+                                 idle, timerWheel );
+    for( int i = 0; i < 5; i++ ) {
+      interceptor.intercept( mockPublish( Integer.valueOf( i ) ) );
+    }
+    
+    interceptor.flush();
+    
+    assertEquals( 3, getBatches().size() );
+    List<Object> last = Arrays.<Object>asList( Integer.valueOf( 4 ) );
+    assertEquals( last, getBatches().get( 2 ) );
+  }
+  
+  @Test
+  public void testBatchesArgumentArraysOfMethodsWithSeveralParameters()
+    throws Exception
+  {
+    BatchingInterceptor interceptor
+      = createInterceptor( "recordAll", 1, 1, TimeUnit.HOURS );
+    Method method = Sink.class.getMethod( "record", String.class, long.class );
+    Object[] args = new Object[] { "name", Long.valueOf( 1 ) };
+    
+    interceptor.intercept( mockInvocation( method, args ) );
+    
+    assertArrayEquals( args, ( Object[] )getBatches().get( 0 ).get( 0 ) );
+  }
+  
+  @Test
+  public void testContinuesAfterBufferGotEmpty() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 1, 1, TimeUnit.HOURS );
+    
+    interceptor.intercept( mockPublish( "first" ) );
+    interceptor.intercept( mockPublish( "second" ) );
+    
+    assertEquals( 2, getBatches().size() );
+  }
+  
+  @Test
+  public void testBuffersPerTargetIdentity() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 2, 1, TimeUnit.HOURS );
+    SinkImpl first = new ValueSinkImpl();
+    SinkImpl second = new ValueSinkImpl();
+    
+    interceptor.intercept( mockPublish( first, "first" ) );
+    interceptor.intercept( mockPublish( second, "second" ) );
+    interceptor.flush();
+    
+    assertEquals( singleBatch( "first" ), first.batches );
+    assertEquals( singleBatch( "second" ), second.batches );
+  }
+  
+  @Test
+  public void testFlushWaitsForScheduledBatch() throws Exception {
+    BlockingSinkImpl blocking = new BlockingSinkImpl();
+    executor = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+        new Thread( command ).start();
+      }
+    };
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 1, 1, TimeUnit.HOURS );
+    interceptor.intercept( mockPublish( blocking, "first" ) );
+    assertTrue( blocking.entered.await( 5, TimeUnit.SECONDS ) );
+    interceptor.intercept( mockPublish( blocking, "second" ) );
+    Thread flusher = startFlush( interceptor );
+    
+    Thread.sleep( 50 );
+    blocking.release.countDown();
+    flusher.join( 5000 );
+    
+    assertEquals( 1, blocking.maxActive.get() );
+    assertEquals( Arrays.asList( Arrays.<Object>asList( "first" ),
+                                 Arrays.<Object>asList( "second" ) ),
+                  blocking.batches );
+  }
+  
+  @Test
+  public void testFlushesWithSharedTimerWheelAfterRelease() throws Exception {
+    BatchingInterceptor interceptor
+      = new BatchingInterceptor( "publishAll", 100, 10, MILLISECONDS,
+                                 executor );
+    SinkImpl other = new SinkImpl();
+    try {
+      interceptor.intercept( mockPublish( "first" ) );
+      assertTrue( sink.flushed.await( 5, TimeUnit.SECONDS ) );
+      AspectExecutors.release();
+      
+      interceptor.intercept( mockPublish( other, "second" ) );
+      
+      assertTrue( other.flushed.await( 5, TimeUnit.SECONDS ) );
+    } finally {
+      AspectExecutors.release();
+    }
+  }
+  
+  @Test( expected = IllegalStateException.class )
+  public void testChecksMethodOnScheduling() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 1, 1, TimeUnit.HOURS );
+    
+    interceptor.checkMethod( Sink.class.getMethod( "compute" ) );
+  }
+  
+  @Test( expected = IllegalStateException.class )
+  public void testRejectsNonVoidMethod() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "publishAll", 1, 1, TimeUnit.HOURS );
+    Method method = Sink.class.getMethod( "compute" );
+    
+    interceptor.intercept( mockInvocation( method, null ) );
+  }
+  
+  @Test( expected = NoSuchMethodException.class )
+  public void testUnknownBatchMethod() throws Exception {
+    BatchingInterceptor interceptor
+      = createInterceptor( "unknown", 1, 1, TimeUnit.HOURS );
+    
+    interceptor.intercept( mockPublish( "event" ) );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonPositiveBatchSize() {
+    new BatchingInterceptor( "publishAll", 0, 1, TimeUnit.SECONDS );
+  }
+
+  private List<List<Object>> getBatches() {
+    return sink.batches;
+  }
+
+  private static List<List<Object>> singleBatch( Object... events ) {
+    return Collections.singletonList( Arrays.asList( events ) );
+  }
+
+  private BatchingInterceptor createInterceptor( String batchMethodName,
+                                                 int maxBatchSize,
+                                                 long maxDelay,
+                                                 TimeUnit unit )
+  {
+    return new BatchingInterceptor( batchMethodName,
+                                    maxBatchSize,
+                                    maxDelay,
+                                    unit,
+                                    executor,
+                                    timerWheel );
+  }
+
+  private static Thread startFlush( final BatchingInterceptor interceptor ) {
+    Thread result = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        interceptor.flush();
+      }
+    } );
+    result.start();
+    return result;
+  }
+
+  private Invocation mockPublish( Object event ) throws Exception {
+    return mockPublish( sink, event );
+  }
+  
+  private Invocation mockPublish( Sink target, Object event ) throws Exception {
+    Method method = Sink.class.getMethod( "publish", Object.class );
+    return mockInvocation( target, method, new Object[] { event } );
+  }
+  
+  private Invocation mockInvocation( Method method, Object[] args ) {
+    return mockInvocation( sink, method, args );
+  }
+  
+  private Invocation mockInvocation( Sink target,
+                                     Method method,
+                                     Object[] args )
+  {
+    Invocation result = mock( Invocation.class );
+    when( result.getMethod() ).thenReturn( method );
+    when( result.getTarget() ).thenReturn( target );
+    when( result.getArguments() ).thenReturn( args );
+    return result;
+  }
+}
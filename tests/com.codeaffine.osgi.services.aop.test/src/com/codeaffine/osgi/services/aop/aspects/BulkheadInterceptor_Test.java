@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class BulkheadInterceptor_Test {
+  
+  private Method method;
+
+  interface Service {
+    Object serve();
+  }
+  
+  @Before
+  public void setUp() throws Exception {
+    method = Service.class.getMethod( "serve" );
+  }
+  
+  @Test
+  public void testProceeds() throws Exception {
+    BulkheadInterceptor interceptor = new BulkheadInterceptor( 1 );
+    Object value = new Object();
+    Invocation invocation = mockInvocation( value );
+    
+    Object first = interceptor.intercept( invocation );
+    Object second = interceptor.intercept( invocation );
+    
+    assertSame( value, first );
+    assertSame( value, second );
+    assertEquals( 0, interceptor.getActiveCount() );
+    assertEquals( 0, interceptor.getRejectedCount() );
+  }
+  
+  @Test
+  public void testRejectsCallsOverLimit() throws Exception {
+    BulkheadInterceptor interceptor = new BulkheadInterceptor( 1 );
+    Invocation nested = mockInvocation( null );
+    Invocation nesting = createNestingInvocation( interceptor, nested );
+    
+    Object result = interceptor.intercept( nesting );
+    
+    assertSame( RejectedExecutionException.class, result.getClass() );
+    assertEquals( 1, interceptor.getRejectedCount() );
+    assertEquals( 0, interceptor.getActiveCount() );
+  }
+  
+  @Test
+  public void testLimitIsSharedAcrossStripes() throws Exception {
+    BulkheadInterceptor interceptor = new BulkheadInterceptor( 3 );
+    Invocation innermost = mockInvocation( "result" );
+    Invocation inner = createNestingInvocation( interceptor, innermost );
+    Invocation outer = createNestingInvocation( interceptor, inner );
+    
+    Object result = interceptor.intercept( outer );
+    
+    assertEquals( "result", result );
+    assertEquals( 0, interceptor.getRejectedCount() );
+  }
+  
+  @Test
+  public void testActiveCount() throws Exception {
+    final BulkheadInterceptor interceptor = new BulkheadInterceptor( 2 );
+    final int[] activeCount = new int[ 1 ];
+    Invocation invocation = mock( Invocation.class );
+    when( invocation.proceed() ).thenAnswer( new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock mockInvocation ) {
+        activeCount[ 0 ] = interceptor.getActiveCount();
+        return null;
+      }
+    } );
+    
+    interceptor.intercept( invocation );
+    
+    assertEquals( 1, activeCount[ 0 ] );
+    assertEquals( 0, interceptor.getActiveCount() );
+  }
+  
+  @Test
+  public void testReleasesPermitOnException() throws Exception {
+    BulkheadInterceptor interceptor = new BulkheadInterceptor( 1 );
+    Invocation invocation = mock( Invocation.class );
+    when( invocation.proceed() ).thenThrow( new IllegalStateException() );
+    
+    try {
+      interceptor.intercept( invocation );
+      fail();
+    } catch( IllegalStateException expected ) {
+    }
+    
+    assertEquals( 0, interceptor.getActiveCount() );
+  }
+  
+  @Test
+  public void testWaitsForPermit() throws Exception {
+    BulkheadInterceptor interceptor
+      = new BulkheadInterceptor( 1, 5, TimeUnit.SECONDS );
+    CountDownLatch release = new CountDownLatch( 1 );
+    Thread holder = holdPermit( interceptor, release );
+    Invocation invocation = mockInvocation( "result" );
+    
+    release.countDown();
+    Object result = interceptor.intercept( invocation );
+    holder.join();
+    
+    assertEquals( "result", result );
+    assertEquals( 0, interceptor.getRejectedCount() );
+  }
+  
+  @Test
+  public void testRejectsAfterMaxWait() throws Exception {
+    BulkheadInterceptor interceptor
+      = new BulkheadInterceptor( 1, 10, TimeUnit.MILLISECONDS );
+    CountDownLatch release = new CountDownLatch( 1 );
+    Thread holder = holdPermit( interceptor, release );
+    
+    try {
+      interceptor.intercept( mockInvocation( null ) );
+      fail();
+    } catch( RejectedExecutionException expected ) {
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+    
+    assertEquals( 1, interceptor.getRejectedCount() );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonPositiveLimit() {
+    new BulkheadInterceptor( 0 );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testNegativeMaxWait() {
+    new BulkheadInterceptor( 1, -1, TimeUnit.SECONDS );
+  }
+
+  private Thread holdPermit( final BulkheadInterceptor interceptor,
+                             final CountDownLatch release )
+    throws InterruptedException
+  {
+    final CountDownLatch acquired = new CountDownLatch( 1 );
+    Thread result = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        try {
+          interceptor.intercept( new BlockingInvocation( acquired, release ) );
+        } catch( Exception shouldNotHappen ) {
+          throw new IllegalStateException( shouldNotHappen );
+        }
+      }
+    } );
+    result.start();
+    acquired.await( 5, TimeUnit.SECONDS );
+    return result;
+  }
+
+  // returns a rejection of the nested call instead of throwing it
+  private Invocation createNestingInvocation(
+    final BulkheadInterceptor interceptor,
+    final Invocation nested )
+  {
+    return new Invocation() {
+      @Override
+      public Method getMethod() {
+        return method;
+      }
+
+      @Override
+      public Object getTarget() {
+        return null;
+      }
+
+      @Override
+      public Object[] getArguments() {
+        return null;
+      }
+
+      @Override
+      public Object proceed() throws Exception {
+        Object result;
+        try {
+          result = interceptor.intercept( nested );
+        } catch( RejectedExecutionException rejected ) {
+          result = rejected;
+        }
+        return result;
+      }
+    };
+  }
+
+  private class BlockingInvocation implements Invocation {
+    private final CountDownLatch acquired;
+    private final CountDownLatch release;
+
+    BlockingInvocation( CountDownLatch acquired, CountDownLatch release ) {
+      this.acquired = acquired;
+      this.release = release;
+    }
+
+    @Override
+    public Method getMethod() {
+      return method;
+    }
+
+    @Override
+    public Object getTarget() {
+      return null;
+    }
+
+    @Override
+    public Object[] getArguments() {
+      return null;
+    }
+
+    @Override
+    public Object proceed() throws Exception {
+      acquired.countDown();
+      release.await( 5, TimeUnit.SECONDS );
+      return null;
+    }
+  }
+  
+  private Invocation mockInvocation( Object result ) throws Exception {
+    Invocation invocation = mock( Invocation.class );
+    when( invocation.getMethod() ).thenReturn( method );
+    when( invocation.proceed() ).thenReturn( result );
+    return invocation;
+  }
+}
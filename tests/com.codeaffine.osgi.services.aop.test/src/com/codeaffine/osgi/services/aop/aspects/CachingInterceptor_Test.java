@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class CachingInterceptor_Test {
+  
+  private Method method;
+  private long time;
+
+  interface Service {
+    Object lookup( String key );
+  }
+  
+  @Before
+  public void setUp() throws Exception {
+    method = Service.class.getMethod( "lookup", String.class );
+  }
+  
+  @Test
+  public void testCachesResult() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Object value = new Object();
+    Invocation invocation = mockInvocation( "key", value );
+    
+    Object first = interceptor.intercept( invocation );
+    Object second = interceptor.intercept( invocation );
+    
+    assertSame( value, first );
+    assertSame( value, second );
+    verify( invocation ).proceed();
+    assertEquals( 1, interceptor.getHitCount() );
+    assertEquals( 1, interceptor.getMissCount() );
+  }
+  
+  @Test
+  public void testCachesNullResult() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Invocation invocation = mockInvocation( "key", null );
+    
+    interceptor.intercept( invocation );
+    interceptor.intercept( invocation );
+    
+    verify( invocation ).proceed();
+  }
+  
+  @Test
+  public void testKeysOnArguments() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Invocation first = mockInvocation( "first", "firstValue" );
+    Invocation second = mockInvocation( "second", "secondValue" );
+    
+    interceptor.intercept( first );
+    Object result = interceptor.intercept( second );
+    
+    assertEquals( "secondValue", result );
+    assertEquals( 2, interceptor.size() );
+    assertEquals( 2, interceptor.getMissCount() );
+  }
+  
+  @Test
+  public void testKeysOnTargetIdentity() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Invocation first = mockInvocation( "key", "firstValue" );
+    Invocation second = mockInvocation( "key", "secondValue" );
+    when( first.getTarget() ).thenReturn( new String( "target" ) );
+    when( second.getTarget() ).thenReturn( new String( "target" ) );
+    
+    interceptor.intercept( first );
+    Object result = interceptor.intercept( second );
+    
+    assertEquals( "secondValue", result );
+    assertEquals( 2, interceptor.getMissCount() );
+  }
+  
+  @Test
+  public void testReleasesEntriesOfCollectedTargets() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    WeakReference<?> target = cacheCallOfTarget( interceptor );
+    
+    collect( target );
+    
+    assertNull( target.get() );
+    assertEquals( 0, interceptor.size() );
+  }
+  
+  @Test
+  public void testEvictsLeastRecentlyUsedEntry() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 1 );
+    Invocation first = mockInvocation( "first", "firstValue" );
+    Invocation second = mockInvocation( "second", "secondValue" );
+    
+    interceptor.intercept( first );
+    interceptor.intercept( second );
+    interceptor.intercept( first );
+    
+    verify( first, times( 2 ) ).proceed();
+    assertEquals( 1, interceptor.size() );
+  }
+  
+  @Test
+  public void testSizeIsBounded() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 20 );
+    
+    for( int i = 0; i < 100; i++ ) {
+      interceptor.intercept( mockInvocation( String.valueOf( i ), "value" ) );
+    }
+    
+    assertEquals( 20, interceptor.size() );
+  }
+  
+  @Test
+  public void testTimeToLive() throws Exception {
+    CachingInterceptor interceptor
+      = new CachingInterceptor( 10, 1, TimeUnit.SECONDS ) {
+      @Override
+      long currentTime() {
+        return time;
+      }
+    };
+    Invocation invocation = mockInvocation( "key", "value" );
+    
+    interceptor.intercept( invocation );
+    time += TimeUnit.MILLISECONDS.toNanos( 999 );
+    interceptor.intercept( invocation );
+    time += TimeUnit.MILLISECONDS.toNanos( 1 );
+    interceptor.intercept( invocation );
+    
+    verify( invocation, times( 2 ) ).proceed();
+  }
+  
+  @Test
+  public void testExceptionIsNotCached() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Invocation invocation = mockInvocation( "key", null );
+    IllegalStateException problem = new IllegalStateException();
+    when( invocation.proceed() ).thenThrow( problem ).thenReturn( "value" );
+    
+    try {
+      interceptor.intercept( invocation );
+      fail();
+    } catch( IllegalStateException expected ) {
+      assertSame( problem, expected );
+    }
+    Object result = interceptor.intercept( invocation );
+    
+    assertEquals( "value", result );
+    assertEquals( 0, interceptor.getHitCount() );
+  }
+  
+  @Test
+  public void testClear() throws Exception {
+    CachingInterceptor interceptor = new CachingInterceptor( 10 );
+    Invocation invocation = mockInvocation( "key", "value" );
+    interceptor.intercept( invocation );
+    
+    interceptor.clear();
+    interceptor.intercept( invocation );
+    
+    verify( invocation, times( 2 ) ).proceed();
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testIllegalMaximumSize() {
+    new CachingInterceptor( 0 );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testIllegalTimeToLive() {
+    new CachingInterceptor( 1, -1, TimeUnit.SECONDS );
+  }
+
+  private WeakReference<?> cacheCallOfTarget( CachingInterceptor interceptor )
+    throws Exception
+  {
+    Object target = new Object();
+    Invocation invocation = mockInvocation( "key", "value" );
+    when( invocation.getTarget() ).thenReturn( target );
+    interceptor.intercept( invocation );
+    when( invocation.getTarget() ).thenReturn( null );
+    return new WeakReference<Object>( target );
+  }
+
+  private static void collect( WeakReference<?> reference ) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while( reference.get() != null && System.currentTimeMillis() < deadline ) {
+      System.gc();
+      Thread.sleep( 10 );
+    }
+  }
+
+  private Invocation mockInvocation( String key, Object result )
+    throws Exception
+  {
+    Invocation invocation = mock( Invocation.class );
+    when( invocation.getMethod() ).thenReturn( method );
+    when( invocation.getArguments() ).thenReturn( new Object[] { key } );
+    when( invocation.proceed() ).thenReturn( result );
+    return invocation;
+  }
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class CoalescingInterceptor_Test {
+  
+  private Method method;
+  private CoalescingInterceptor interceptor;
+  private ExecutorService executor;
+  private CountDownLatch release;
+
+  interface Service {
+    Object lookup( String key );
+  }
+  
+  @Before
+  public void setUp() throws Exception {
+    method = Service.class.getMethod( "lookup", String.class );
+    interceptor = new CoalescingInterceptor();
+    executor = Executors.newCachedThreadPool();
+    release = new CountDownLatch( 1 );
+  }
+  
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+  
+  @Test
+  public void testConcurrentCallsShareResult() throws Exception {
+    Object value = new Object();
+    Invocation leader = mockBlockingInvocation( "key", value );
+    Invocation follower = mockBlockingInvocation( "key", new Object() );
+    
+    Future<Object> leaderResult = interceptAsync( leader );
+    awaitInFlightCall();
+    Future<Object> followerResult = interceptAsync( follower );
+    awaitCoalescedCalls( 1 );
+    release.countDown();
+    
+    assertSame( value, leaderResult.get( 5, TimeUnit.SECONDS ) );
+    assertSame( value, followerResult.get( 5, TimeUnit.SECONDS ) );
+    verify( follower, times( 0 ) ).proceed();
+    assertEquals( 0, interceptor.getInFlightCount() );
+  }
+  
+  @Test
+  public void testConcurrentCallsShareException() throws Exception {
+    IllegalStateException exception = new IllegalStateException();
+    Invocation leader = mockBlockingInvocation( "key", exception );
+    Invocation follower = mockBlockingInvocation( "key", null );
+    
+    Future<Object> leaderResult = interceptAsync( leader );
+    awaitInFlightCall();
+    Future<Object> followerResult = interceptAsync( follower );
+    awaitCoalescedCalls( 1 );
+    release.countDown();
+    
+    assertSame( exception, getProblem( leaderResult ) );
+    assertSame( exception, getProblem( followerResult ) );
+  }
+  
+  @Test
+  public void testCallsWithDifferentArgumentsAreNotCoalesced()
+    throws Exception
+  {
+    Invocation first = mockBlockingInvocation( "first", "firstValue" );
+    Invocation second = mockBlockingInvocation( "second", "secondValue" );
+    
+    Future<Object> firstResult = interceptAsync( first );
+    Future<Object> secondResult = interceptAsync( second );
+    release.countDown();
+    
+    assertEquals( "firstValue", firstResult.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( "secondValue", secondResult.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( 0, interceptor.getCoalescedCount() );
+  }
+  
+  @Test
+  public void testCallsOnDifferentTargetsAreNotCoalesced() throws Exception {
+    Invocation first = mockBlockingInvocation( "key", "firstValue" );
+    Invocation second = mockBlockingInvocation( "key", "secondValue" );
+    when( first.getTarget() ).thenReturn( new String( "target" ) );
+    when( second.getTarget() ).thenReturn( new String( "target" ) );
+    
+    Future<Object> firstResult = interceptAsync( first );
+    awaitInFlightCall();
+    Future<Object> secondResult = interceptAsync( second );
+    awaitInFlightCalls( 2 );
+    release.countDown();
+    
+    assertEquals( "firstValue", firstResult.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( "secondValue", secondResult.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( 0, interceptor.getCoalescedCount() );
+  }
+  
+  @Test
+  public void testSubsequentCallsAreNotCoalesced() throws Exception {
+    release.countDown();
+    Invocation invocation = mockBlockingInvocation( "key", "value" );
+    
+    interceptor.intercept( invocation );
+    interceptor.intercept( invocation );
+    
+    verify( invocation, times( 2 ) ).proceed();
+    assertEquals( 0, interceptor.getCoalescedCount() );
+    assertEquals( 0, interceptor.getInFlightCount() );
+  }
+
+  private Future<Object> interceptAsync( final Invocation invocation ) {
+    return executor.submit( new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return interceptor.intercept( invocation );
+      }
+    } );
+  }
+
+  private void awaitInFlightCall() throws InterruptedException {
+    awaitInFlightCalls( 1 );
+  }
+
+  private void awaitInFlightCalls( int count ) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+    while(    interceptor.getInFlightCount() < count
+           && System.nanoTime() < deadline )
+    {
+      Thread.sleep( 1 );
+    }
+  }
+
+  private void awaitCoalescedCalls( int count ) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+    while(    interceptor.getCoalescedCount() < count
+           && System.nanoTime() < deadline )
+    {
+      Thread.sleep( 1 );
+    }
+  }
+
+  private static Throwable getProblem( Future<Object> future )
+    throws Exception
+  {
+    Throwable result = null;
+    try {
+      future.get( 5, TimeUnit.SECONDS );
+    } catch( ExecutionException expected ) {
+      result = expected.getCause();
+    }
+    return result;
+  }
+
+  private Answer<Object> createBlockingAnswer( final Object outcome ) {
+    return new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) throws Throwable {
+        release.await( 5, TimeUnit.SECONDS );
+        if( outcome instanceof Throwable ) {
+          throw ( Throwable )outcome;
+        }
+        return outcome;
+      }
+    };
+  }
+  
+  // blocks until released, then returns or throws the given outcome
+  private Invocation mockBlockingInvocation( String key, Object outcome )
+    throws Exception
+  {
+    Invocation result = mock( Invocation.class );
+    when( result.getMethod() ).thenReturn( method );
+    when( result.getArguments() ).thenReturn( new Object[] { key } );
+    when( result.proceed() ).thenAnswer( createBlockingAnswer( outcome ) );
+    return result;
+  }
+}
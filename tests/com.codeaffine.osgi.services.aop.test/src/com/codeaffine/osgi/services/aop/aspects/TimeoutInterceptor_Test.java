@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.codeaffine.osgi.services.aop.Invocation;
+
+
+public class TimeoutInterceptor_Test {
+  
+  private Method method;
+  private TimerWheel timerWheel;
+  private Executor executor;
+
+  interface Service {
+    Object serve();
+  }
+  
+  @Before
+  public void setUp() throws Exception {
+    method = Service.class.getMethod( "serve" );
+    timerWheel = new TimerWheel( 1, TimeUnit.MILLISECONDS );
+    executor = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+        new Thread( command ).start();
+      }
+    };
+  }
+  
+  @After
+  public void tearDown() {
+    timerWheel.stop();
+  }
+  
+  @Test
+  public void testReturnsResult() throws Exception {
+    TimeoutInterceptor interceptor = createInterceptor( 5, TimeUnit.SECONDS );
+    Object value = new Object();
+    Invocation invocation = mockInvocation();
+    when( invocation.proceed() ).thenReturn( value );
+    
+    Object result = interceptor.intercept( invocation );
+    
+    assertSame( value, result );
+  }
+  
+  @Test
+  public void testCompletedCallCancelsItsEntry() throws Exception {
+    final List<TimerWheel.Entry> entries = new ArrayList<TimerWheel.Entry>();
+    TimerWheel recordingWheel = new TimerWheel( 1, TimeUnit.MILLISECONDS ) {
+      @Override
+      Entry schedule( Timeout timeout, long deadline ) {
+        Entry result = super.schedule( timeout, deadline );
+        entries.add( result );
+        return result;
+      }
+    };
+    TimeoutInterceptor interceptor
+      = new TimeoutInterceptor( 5, TimeUnit.SECONDS, executor, recordingWheel );
+    Invocation invocation = mockInvocation();
+    when( invocation.proceed() ).thenReturn( "value" );
+    
+    try {
+      interceptor.intercept( invocation );
+    } finally {
+      recordingWheel.stop();
+    }
+    
+    assertEquals( 1, entries.size() );
+    assertTrue( entries.get( 0 ).isCancelled() );
+  }
+  
+  @Test
+  public void testRethrowsException() throws Exception {
+    TimeoutInterceptor interceptor = createInterceptor( 5, TimeUnit.SECONDS );
+    Exception exception = new IllegalStateException();
+    Invocation invocation = mockInvocation();
+    when( invocation.proceed() ).thenThrow( exception );
+    
+    try {
+      interceptor.intercept( invocation );
+      fail();
+    } catch( IllegalStateException expected ) {
+      assertSame( exception, expected );
+    }
+  }
+  
+  @Test
+  public void testTimesOut() throws Exception {
+    TimeoutInterceptor interceptor
+      = createInterceptor( 20, TimeUnit.MILLISECONDS );
+    CountDownLatch interrupted = new CountDownLatch( 1 );
+    Invocation invocation = mockBlockingInvocation( interrupted );
+    
+    try {
+      interceptor.intercept( invocation );
+      fail();
+    } catch( TimeoutException expected ) {
+      assertTrue( expected.getMessage().contains( "serve" ) );
+    }
+    
+    assertTrue( interrupted.await( 5, TimeUnit.SECONDS ) );
+  }
+  
+  @Test
+  public void testTimesOutWithStoppedTimerWheel() throws Exception {
+    timerWheel.stop();
+    TimeoutInterceptor interceptor
+      = createInterceptor( 20, TimeUnit.MILLISECONDS );
+    CountDownLatch interrupted = new CountDownLatch( 1 );
+    Invocation invocation = mockBlockingInvocation( interrupted );
+    
+    try {
+      interceptor.intercept( invocation );
+      fail();
+    } catch( TimeoutException expected ) {
+      assertTrue( interrupted.await( 5, TimeUnit.SECONDS ) );
+    }
+  }
+  
+  @Test
+  public void testSharedResourcesAreResolvedAfterRelease() throws Exception {
+    TimeoutInterceptor interceptor
+      = new TimeoutInterceptor( 5, TimeUnit.SECONDS );
+    Invocation invocation = mockInvocation();
+    when( invocation.proceed() ).thenReturn( "value" );
+    interceptor.intercept( invocation );
+    
+    AspectExecutors.release();
+    Object result = interceptor.intercept( invocation );
+    
+    assertEquals( "value", result );
+    AspectExecutors.release();
+  }
+  
+  @Test
+  public void testGetTimeout() {
+    TimeoutInterceptor interceptor = createInterceptor( 2, TimeUnit.SECONDS );
+    
+    assertEquals( 2000, interceptor.getTimeout( TimeUnit.MILLISECONDS ) );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonPositiveTimeout() {
+    new TimeoutInterceptor( 0, TimeUnit.SECONDS );
+  }
+
+  private TimeoutInterceptor createInterceptor( long timeout, TimeUnit unit ) {
+    return new TimeoutInterceptor( timeout, unit, executor, timerWheel );
+  }
+
+  private Invocation mockBlockingInvocation( final CountDownLatch interrupted )
+    throws Exception
+  {
+    Invocation result = mockInvocation();
+    when( result.proceed() ).thenAnswer( new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) {
+        try {
+          Thread.sleep( TimeUnit.SECONDS.toMillis( 5 ) );
+        } catch( InterruptedException expected ) {
+          interrupted.countDown();
+        }
+        return null;
+      }
+    } );
+    return result;
+  }
+  
+  private Invocation mockInvocation() {
+    Invocation result = mock( Invocation.class );
+    when( result.getMethod() ).thenReturn( method );
+    return result;
+  }
+}
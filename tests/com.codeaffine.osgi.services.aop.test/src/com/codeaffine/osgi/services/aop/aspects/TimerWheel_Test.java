@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.aspects;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TimerWheel_Test {
+  
+  private TimerWheel timerWheel;
+
+  @Before
+  public void setUp() {
+    timerWheel = new TimerWheel( 1, TimeUnit.MILLISECONDS );
+  }
+  
+  @After
+  public void tearDown() {
+    timerWheel.stop();
+  }
+  
+  @Test
+  public void testExpiresAfterDeadline() throws InterruptedException {
+    FakeTimeout timeout = new FakeTimeout();
+    long delay = TimeUnit.MILLISECONDS.toNanos( 20 );
+    long scheduled = System.nanoTime();
+    
+    timerWheel.schedule( timeout, scheduled + delay );
+    
+    assertTrue( timeout.expiration.await( 5, TimeUnit.SECONDS ) );
+    assertTrue( timeout.expirationTime - scheduled >= delay );
+  }
+  
+  @Test
+  public void testExpiresPassedDeadline() throws InterruptedException {
+    FakeTimeout timeout = new FakeTimeout();
+    
+    timerWheel.schedule( timeout, System.nanoTime() - 1 );
+    
+    assertTrue( timeout.expiration.await( 5, TimeUnit.SECONDS ) );
+  }
+  
+  @Test
+  public void testExpiresDeadlineBeyondOneTurn() throws InterruptedException {
+    FakeTimeout timeout = new FakeTimeout();
+    long delay = TimeUnit.MILLISECONDS.toNanos( 530 );
+    long scheduled = System.nanoTime();
+    
+    timerWheel.schedule( timeout, scheduled + delay );
+    
+    assertTrue( timeout.expiration.await( 5, TimeUnit.SECONDS ) );
+    assertTrue( timeout.expirationTime - scheduled >= delay );
+  }
+  
+  @Test
+  public void testDoesNotExpireDoneTimeout() throws InterruptedException {
+    FakeTimeout timeout = new FakeTimeout();
+    timeout.done = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( 5 );
+    
+    timerWheel.schedule( timeout, deadline );
+    
+    assertFalse( timeout.expiration.await( 50, TimeUnit.MILLISECONDS ) );
+  }
+  
+  @Test
+  public void testDoesNotExpireCancelledEntry() throws InterruptedException {
+    FakeTimeout timeout = new FakeTimeout();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( 5 );
+    
+    TimerWheel.Entry entry = timerWheel.schedule( timeout, deadline );
+    entry.cancel();
+    
+    assertTrue( entry.isCancelled() );
+    assertFalse( timeout.expiration.await( 50, TimeUnit.MILLISECONDS ) );
+  }
+  
+  @Test
+  public void testStopCancelsRemainingEntries() throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+    TimerWheel.Entry slotted
+      = timerWheel.schedule( new FakeTimeout(), deadline );
+    Thread.sleep( 10 );
+    TimerWheel.Entry pending
+      = timerWheel.schedule( new FakeTimeout(), deadline );
+    
+    timerWheel.stop();
+    
+    assertTrue( awaitCancellation( slotted ) );
+    assertTrue( awaitCancellation( pending ) );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testNonPositiveTick() {
+    new TimerWheel( 0, TimeUnit.MILLISECONDS );
+  }
+
+  private static boolean awaitCancellation( TimerWheel.Entry entry )
+    throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 );
+    while( !entry.isCancelled() && System.nanoTime() < deadline ) {
+      Thread.sleep( 1 );
+    }
+    return entry.isCancelled();
+  }
+
+  private static class FakeTimeout implements TimerWheel.Timeout {
+    final CountDownLatch expiration = new CountDownLatch( 1 );
+    volatile boolean done;
+    volatile long expirationTime;
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public void expire() {
+      expirationTime = System.nanoTime();
+      expiration.countDown();
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class GeneratedProxyFactory_Test {
+  
+  private GeneratedProxyFactory proxyFactory;
+  private Service service;
+
+  public interface Service {
+    void serve();
+    int serve( int value, long other );
+    double serve( double value, boolean flag, char character );
+    String serve( String value, byte[] bytes );
+    void serveChecked() throws IOException;
+  }
+  
+  interface HiddenService {
+    void serve();
+  }
+  
+  public interface Advice {
+    void beforeServe( int value, long other );
+  }
+  
+  @Before
+  public void setUp() {
+    proxyFactory = new GeneratedProxyFactory( new ReflectiveProxyFactory() );
+    service = mock( Service.class );
+  }
+  
+  @Test
+  public void testCreateProxy() {
+    Object proxy = createProxy( service );
+    
+    assertTrue( proxy instanceof Service );
+    assertTrue( proxy instanceof GeneratedProxy );
+    assertFalse( Proxy.isProxyClass( proxy.getClass() ) );
+  }
+  
+  @Test
+  public void testProxyClassIsSharedPerServiceType() {
+    Object first = createProxy( service );
+    Object second = createProxy( mock( Service.class ) );
+    
+    assertSame( first.getClass(), second.getClass() );
+  }
+  
+  @Test
+  public void testVoidMethod() {
+    createProxy( service ).serve();
+    
+    verify( service ).serve();
+  }
+  
+  @Test
+  public void testPrimitiveParametersAndResults() {
+    when( service.serve( 1, 2L ) ).thenReturn( Integer.valueOf( 3 ) );
+    when( service.serve( 1.5D, true, 'c' ) )
+      .thenReturn( Double.valueOf( 2.5D ) );
+    Service proxy = createProxy( service );
+    
+    int intResult = proxy.serve( 1, 2L );
+    double doubleResult = proxy.serve( 1.5D, true, 'c' );
+    
+    assertEquals( 3, intResult );
+    assertEquals( 2.5D, doubleResult, 0D );
+  }
+  
+  @Test
+  public void testReferenceParametersAndResults() {
+    byte[] bytes = new byte[] { 1, 2 };
+    when( service.serve( "value", bytes ) ).thenReturn( "result" );
+    
+    String result = createProxy( service ).serve( "value", bytes );
+    
+    assertEquals( "result", result );
+  }
+  
+  @Test
+  public void testObjectMethods() {
+    Service proxy = createProxy( service );
+    
+    String result = proxy.toString();
+    
+    assertEquals( service.toString(), result );
+  }
+  
+  @Test
+  public void testDeclaredCheckedException() throws Throwable {
+    IOException exception = new IOException();
+    ProxyInvocationHandler handler = mockFailingHandler( exception );
+    Service proxy = createProxy( handler );
+    
+    try {
+      proxy.serveChecked();
+      fail();
+    } catch( IOException expected ) {
+      assertSame( exception, expected );
+    }
+  }
+  
+  @Test
+  public void testUndeclaredCheckedException() throws Throwable {
+    IOException exception = new IOException();
+    ProxyInvocationHandler handler = mockFailingHandler( exception );
+    Service proxy = createProxy( handler );
+    
+    try {
+      proxy.serve();
+      fail();
+    } catch( UndeclaredThrowableException expected ) {
+      assertSame( exception, expected.getUndeclaredThrowable() );
+    }
+  }
+  
+  @Test
+  public void testRuntimeException() throws Throwable {
+    RuntimeException exception = new IllegalStateException();
+    ProxyInvocationHandler handler = mockFailingHandler( exception );
+    Service proxy = createProxy( handler );
+    
+    try {
+      proxy.serve();
+      fail();
+    } catch( IllegalStateException expected ) {
+      assertSame( exception, expected );
+    }
+  }
+  
+  @Test
+  public void testUnadvisedMethodIsNotDispatched() throws Throwable {
+    ProxyInvocationHandler handler = mock( ProxyInvocationHandler.class );
+    when( handler.getService() ).thenReturn( service );
+    Service proxy = createProxy( handler );
+    
+    proxy.serve( 1, 2L );
+    
+    verify( service ).serve( 1, 2L );
+    verify( handler, never() ).dispatch( anyInt(), any( Object[].class ) );
+  }
+  
+  @Test
+  public void testAdviceScheduledAfterProxyCreation() {
+    JoinPointImpl<Service> joinPoint
+      = new JoinPointImpl<Service>( Service.class );
+    ProxyInvocationHandler handler
+      = new ProxyInvocationHandler( Service.class, service );
+    handler.setJoinPoint( joinPoint );
+    Service proxy = createProxy( handler );
+    Advice advice = mock( Advice.class );
+    proxy.serve( 1, 2L );
+    
+    joinPoint.scheduleBefore( advice ).serve( 0, 0L );
+    proxy.serve( 3, 4L );
+    
+    verify( advice, never() ).beforeServe( 1, 2L );
+    verify( advice ).beforeServe( 3, 4L );
+    verify( service ).serve( 3, 4L );
+  }
+  
+  @Test
+  public void testDispatchWithArguments() throws Throwable {
+    ProxyInvocationHandler handler = mock( ProxyInvocationHandler.class );
+    when( handler.isAdvised( anyInt() ) ).thenReturn( true );
+    Service proxy = createProxy( handler );
+    byte[] bytes = new byte[ 0 ];
+    Method method
+      = Service.class.getMethod( "serve", String.class, byte[].class );
+    int index = MethodIndex.of( Service.class ).indexOf( method );
+    
+    proxy.serve( "value", bytes );
+    
+    verify( handler ).dispatch( index, new Object[] { "value", bytes } );
+  }
+  
+  @Test
+  public void testFallbackForInaccessibleServiceType() {
+    HiddenService hiddenService = mock( HiddenService.class );
+    ProxyInvocationHandler handler
+      = new ProxyInvocationHandler( HiddenService.class, hiddenService );
+    
+    Object proxy = proxyFactory.createProxy( HiddenService.class, handler );
+    
+    assertTrue( Proxy.isProxyClass( proxy.getClass() ) );
+  }
+  
+  @Test
+  public void testCanGenerate() {
+    assertTrue( GeneratedProxyFactory.canGenerate( Service.class ) );
+    assertFalse( GeneratedProxyFactory.canGenerate( HiddenService.class ) );
+    assertFalse( GeneratedProxyFactory.canGenerate( Object.class ) );
+  }
+
+  private ProxyInvocationHandler mockFailingHandler( Throwable problem )
+    throws Throwable
+  {
+    ProxyInvocationHandler result = mock( ProxyInvocationHandler.class );
+    when( result.isAdvised( anyInt() ) ).thenReturn( true );
+    when( result.dispatch( anyInt(), any( Object[].class ) ) )
+      .thenThrow( problem );
+    return result;
+  }
+  
+  private Service createProxy( Service service ) {
+    ProxyInvocationHandler handler
+      = new ProxyInvocationHandler( Service.class, service );
+    return createProxy( handler );
+  }
+
+  private Service createProxy( ProxyInvocationHandler handler ) {
+    return ( Service )proxyFactory.createProxy( Service.class, handler );
+  }
+}
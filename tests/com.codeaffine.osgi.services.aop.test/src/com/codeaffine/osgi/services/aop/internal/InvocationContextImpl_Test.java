@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+
+public class InvocationContextImpl_Test {
+
+  @Test
+  public void testEnter() throws Exception {
+    Method method = Object.class.getMethod( "toString" );
+    Object target = new Object();
+    Object[] args = new Object[ 0 ];
+    long before = System.nanoTime();
+    
+    InvocationContextImpl context
+      = InvocationContextImpl.enter( method, target, args );
+    context.exit();
+    
+    assertTrue( context.getStartTime() >= before );
+  }
+
+  @Test
+  public void testAccessors() throws Exception {
+    Method method = Object.class.getMethod( "toString" );
+    Object target = new Object();
+    Object[] args = new Object[ 0 ];
+
+    InvocationContextImpl context
+      = InvocationContextImpl.enter( method, target, args );
+    try {
+      assertSame( method, context.getMethod() );
+      assertSame( target, context.getTarget() );
+      assertSame( args, context.getArguments() );
+    } finally {
+      context.exit();
+    }
+  }
+
+  @Test
+  public void testExitReleasesReferences() {
+    InvocationContextImpl context
+      = InvocationContextImpl.enter( null, new Object(), null );
+    context.setAttribute( "key", "value" );
+    
+    context.exit();
+    
+    assertNull( context.getTarget() );
+    assertNull( context.getAttribute( "key" ) );
+  }
+
+  @Test
+  public void testContextIsReused() {
+    InvocationContextImpl first = enter();
+    first.exit();
+    
+    InvocationContextImpl second = enter();
+    second.exit();
+    
+    assertSame( first, second );
+  }
+
+  @Test
+  public void testNestedContexts() {
+    InvocationContextImpl outer = enter();
+    outer.setAttribute( "key", "outer" );
+    
+    InvocationContextImpl inner = enter();
+    inner.setAttribute( "key", "inner" );
+    inner.exit();
+    Object outerValue = outer.getAttribute( "key" );
+    outer.exit();
+    
+    assertNotSame( outer, inner );
+    assertEquals( "outer", outerValue );
+  }
+
+  @Test
+  public void testDeepNesting() {
+    InvocationContextImpl[] contexts = new InvocationContextImpl[ 10 ];
+    for( int i = 0; i < contexts.length; i++ ) {
+      contexts[ i ] = enter();
+    }
+    for( int i = contexts.length - 1; i >= 0; i-- ) {
+      contexts[ i ].exit();
+    }
+    
+    assertNotSame( contexts[ 0 ], contexts[ 9 ] );
+    assertSame( contexts[ 0 ], enter() );
+    contexts[ 0 ].exit();
+  }
+
+  @Test
+  public void testAttributes() {
+    InvocationContextImpl context = enter();
+    try {
+      for( int i = 0; i < 10; i++ ) {
+        context.setAttribute( Integer.valueOf( i ), "value" + i );
+      }
+      context.setAttribute( Integer.valueOf( 3 ), "replaced" );
+      
+      assertEquals( "value9", context.getAttribute( Integer.valueOf( 9 ) ) );
+      assertEquals( "replaced", context.getAttribute( Integer.valueOf( 3 ) ) );
+      assertNull( context.getAttribute( "unknown" ) );
+    } finally {
+      context.exit();
+    }
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testSetAttributeWithNullKey() {
+    InvocationContextImpl context = enter();
+    try {
+      context.setAttribute( null, "value" );
+    } finally {
+      context.exit();
+    }
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testGetAttributeWithNullKey() {
+    InvocationContextImpl context = enter();
+    try {
+      context.getAttribute( null );
+    } finally {
+      context.exit();
+    }
+  }
+
+  private static InvocationContextImpl enter() {
+    return InvocationContextImpl.enter( null, null, null );
+  }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codeaffine.osgi.services.aop.MethodStatistics;
+
+
+public class InvocationStatisticsImpl_Test {
+  
+  private InvocationStatisticsImpl statistics;
+
+  public interface Service {
+    void serve( String value );
+  }
+
+  @Before
+  public void setUp() {
+    statistics = new InvocationStatisticsImpl();
+  }
+  
+  @Test
+  public void testServiceMetricsAreSharedPerType() {
+    ServiceMetrics first = statistics.getServiceMetrics( Service.class );
+    ServiceMetrics second = statistics.getServiceMetrics( Service.class );
+    
+    assertSame( first, second );
+  }
+  
+  @Test
+  public void testReleasedServiceMetricsAreDropped() throws Exception {
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    metrics.record( indexOfServe(), 100, false );
+    
+    statistics.releaseServiceMetrics( metrics );
+    
+    assertTrue( statistics.getStatistics().isEmpty() );
+    assertNotSame( metrics, statistics.getServiceMetrics( Service.class ) );
+  }
+  
+  @Test
+  public void testServiceMetricsAreKeptWhileInUse() throws Exception {
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    statistics.getServiceMetrics( Service.class );
+    metrics.record( indexOfServe(), 100, false );
+    
+    statistics.releaseServiceMetrics( metrics );
+    
+    assertEquals( 1, statistics.getStatistics().size() );
+    assertSame( metrics, statistics.getServiceMetrics( Service.class ) );
+  }
+  
+  @Test
+  public void testNoStatisticsWithoutCalls() {
+    statistics.getServiceMetrics( Service.class );
+    
+    assertTrue( statistics.getStatistics().isEmpty() );
+  }
+  
+  @Test
+  public void testCallAndErrorCount() throws Exception {
+    int index = indexOfServe();
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    
+    metrics.record( index, 100, false );
+    metrics.record( index, 100, true );
+    
+    MethodStatistics methodStatistics = statistics.getStatistics().get( 0 );
+    assertEquals( Service.class.getName(), methodStatistics.getServiceType() );
+    assertEquals( "serve(java.lang.String)", methodStatistics.getMethod() );
+    assertEquals( 2, methodStatistics.getCallCount() );
+    assertEquals( 1, methodStatistics.getErrorCount() );
+  }
+  
+  @Test
+  public void testPercentiles() throws Exception {
+    int index = indexOfServe();
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    
+    for( int i = 0; i < 998; i++ ) {
+      metrics.record( index, 100, false );
+    }
+    metrics.record( index, 10000, false );
+    metrics.record( index, 1000000, false );
+    
+    MethodStatistics methodStatistics = statistics.getStatistics().get( 0 );
+    assertEquals( upperBoundOf( 100 ), methodStatistics.getP50Latency() );
+    assertEquals( upperBoundOf( 100 ), methodStatistics.getP99Latency() );
+    assertEquals( upperBoundOf( 10000 ), methodStatistics.getP999Latency() );
+    assertEquals( upperBoundOf( 1000000 ), methodStatistics.getLatency( 1 ) );
+  }
+  
+  @Test
+  public void testGetStatisticsByServiceType() throws Exception {
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    metrics.record( indexOfServe(), 100, false );
+    
+    List<MethodStatistics> byName
+      = statistics.getStatistics( Service.class.getName() );
+    List<MethodStatistics> unknown = statistics.getStatistics( "unknown" );
+    
+    assertEquals( 1, byName.size() );
+    assertTrue( unknown.isEmpty() );
+  }
+  
+  @Test
+  public void testStatisticsOfSeveralServiceTypes() throws Exception {
+    Class<?>[] serviceTypes = new Class<?>[] { Service.class, Runnable.class };
+    ServiceMetrics metrics = statistics.getServiceMetrics( serviceTypes );
+    Method method = Runnable.class.getMethod( "run" );
+    
+    metrics.record( metrics.getMethodIndex().indexOf( method ), 100, false );
+    
+    List<MethodStatistics> byName
+      = statistics.getStatistics( Runnable.class.getName() );
+    assertSame( metrics, statistics.getServiceMetrics( serviceTypes ) );
+    assertEquals( 1, byName.size() );
+    assertEquals( "run()", byName.get( 0 ).getMethod() );
+    assertTrue( statistics.getStatistics( Service.class.getName() ).isEmpty() );
+  }
+  
+  @Test( expected = IllegalArgumentException.class )
+  public void testIllegalPercentile() throws Exception {
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    metrics.record( indexOfServe(), 100, false );
+    
+    statistics.getStatistics().get( 0 ).getLatency( 2 );
+  }
+
+  private static int indexOfServe() throws NoSuchMethodException {
+    Method method = Service.class.getMethod( "serve", String.class );
+    return MethodIndex.of( Service.class ).indexOf( method );
+  }
+
+  private static long upperBoundOf( long latency ) {
+    int bucket = LatencyHistogram.bucketOf( latency );
+    return LatencyHistogram.upperBoundOf( bucket );
+  }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import com.codeaffine.osgi.services.aop.JoinPointDefinition;
+import com.codeaffine.osgi.services.aop.JoinPointFactory;
+
+
+public class JoinPointDefinitionIndex_Test {
+  private static final String NAME = Runnable.class.getName();
+  
+  private JoinPointDefinitionIndex index;
+
+  @Before
+  public void setUp() {
+    index = new JoinPointDefinitionIndex();
+  }
+  
+  @Test
+  public void testAdd() {
+    JoinPointDefinition<?> definition = mockDefinition( Runnable.class );
+    
+    index.add( definition );
+    
+    assertTrue( index.contains( NAME ) );
+    assertArrayEquals( new Object[] { definition }, index.get( NAME ) );
+  }
+  
+  @Test
+  public void testAddMultipleDefinitionsForServiceType() {
+    JoinPointDefinition<?> first = mockDefinition( Runnable.class );
+    JoinPointDefinition<?> second = mockDefinition( Runnable.class );
+    
+    index.add( first );
+    index.add( second );
+    
+    assertArrayEquals( new Object[] { first, second }, index.get( NAME ) );
+  }
+  
+  @Test
+  public void testRemove() {
+    JoinPointDefinition<?> first = mockDefinition( Runnable.class );
+    JoinPointDefinition<?> second = mockDefinition( Runnable.class );
+    index.add( first );
+    index.add( second );
+    
+    index.remove( first );
+    
+    assertArrayEquals( new Object[] { second }, index.get( NAME ) );
+  }
+  
+  @Test
+  public void testRemoveLastDefinition() {
+    JoinPointDefinition<?> definition = mockDefinition( Runnable.class );
+    index.add( definition );
+    
+    index.remove( definition );
+    
+    assertFalse( index.contains( NAME ) );
+    assertNull( index.get( NAME ) );
+  }
+  
+  @Test
+  public void testRemoveUnknownDefinition() {
+    index.remove( mockDefinition( Runnable.class ) );
+    
+    assertFalse( index.contains( NAME ) );
+  }
+  
+  @Test
+  public void testNullName() {
+    index.add( mockDefinition( Runnable.class ) );
+    
+    assertFalse( index.contains( null ) );
+    assertNull( index.get( null ) );
+  }
+
+  @Test
+  public void testIsAdvisedWithoutFilter() {
+    index.add( mockDefinition( Runnable.class ) );
+    
+    assertTrue( index.isAdvised( NAME, mockReference( "a" ) ) );
+    assertFalse( index.isAdvised( "unknown", mockReference( "a" ) ) );
+  }
+  
+  @Test
+  public void testIsAdvisedWithFilter() throws InvalidSyntaxException {
+    JoinPointDefinition<?> definition = mockDefinition( Runnable.class );
+    when( definition.getJoinPointFactory().getFilter() )
+      .thenReturn( FrameworkUtil.createFilter( "(tenant=a)" ) );
+    index.add( definition );
+    
+    assertTrue( index.isAdvised( NAME, mockReference( "a" ) ) );
+    assertFalse( index.isAdvised( NAME, mockReference( "b" ) ) );
+  }
+
+  private static ServiceReference<?> mockReference( String tenant ) {
+    ServiceReference<?> result = mock( ServiceReference.class );
+    when( result.getProperty( "tenant" ) ).thenReturn( tenant );
+    when( result.getPropertyKeys() ).thenReturn( new String[] { "tenant" } );
+    return result;
+  }
+
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private static JoinPointDefinition<?> mockDefinition( Class serviceType ) {
+    JoinPointDefinition result = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( result.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    when( joinPointFactory.getServiceType() ).thenReturn( serviceType );
+    return result;
+  }
+}
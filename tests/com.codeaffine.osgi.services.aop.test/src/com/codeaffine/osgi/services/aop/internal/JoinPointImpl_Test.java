@@ -10,16 +10,38 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.codeaffine.osgi.services.aop.AdviceSampler;
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor;
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor.OverflowPolicy;
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Pointcut;
+import com.codeaffine.osgi.services.aop.RestrictedInterceptor;
+
 
 public class JoinPointImpl_Test {
   
@@ -29,6 +51,7 @@ public class JoinPointImpl_Test {
   interface Service {
     void serve();
     void serve( String parameter );
+    int count( int parameter );
   }
   
   interface Advice {
@@ -39,6 +62,16 @@ public class JoinPointImpl_Test {
     void beforeServe( String parameter );
     void afterServe( String parameter );
     void onExceptionServe( String parameter, Exception exception );
+    
+    void beforeCount( int parameter );
+  }
+  
+  public static class CountingAdvice {
+    static final AtomicInteger counter = new AtomicInteger();
+    
+    public void beforeServe() {
+      counter.incrementAndGet();
+    }
   }
   
   @Before
@@ -82,6 +115,92 @@ public class JoinPointImpl_Test {
     verify( advice ).onExceptionServe( parameter, error );
   }
   
+  @Test
+  public void testAdvicesAreDispatchedPerMethod() throws Exception {
+    joinPoint.scheduleBefore( advice ).serve( joinPoint.any( String.class ) );
+    joinPoint.scheduleAfter( advice ).serve();
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    
+    joinPoint.excuteBefore( serveMethod, null );
+    joinPoint.excuteAfter( serveMethod, null );
+    
+    verify( advice, never() ).beforeServe( anyString() );
+    verify( advice ).afterServe();
+  }
+  
+  @Test
+  public void testScheduleWithPrimitiveReturnType() throws Exception {
+    joinPoint.scheduleBefore( advice ).count( 0 );
+    Method countMethod = Service.class.getMethod( "count", int.class );
+    Object[] args = new Object[] { Integer.valueOf( 1 ) };
+    
+    joinPoint.excuteBefore( countMethod, args );
+    
+    verify( advice ).beforeCount( 1 );
+  }
+  
+  @Test
+  public void testSchedulingDoesNotChangePublishedChain() throws Exception {
+    joinPoint.scheduleBefore( advice ).serve();
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    AdviceChain published = joinPoint.getAdviceChain( serveMethod );
+    
+    joinPoint.scheduleBefore( advice ).serve();
+    published.executeBefore( null );
+    
+    assertNotSame( published, joinPoint.getAdviceChain( serveMethod ) );
+    verify( advice ).beforeServe();
+  }
+  
+  @Test
+  public void testConcurrentScheduling() throws Exception {
+    CountingAdvice.counter.set( 0 );
+    Thread[] threads = new Thread[ 8 ];
+    final CountDownLatch start = new CountDownLatch( 1 );
+    for( int i = 0; i < threads.length; i++ ) {
+      threads[ i ] = new Thread() {
+        @Override
+        public void run() {
+          awaitQuietly( start );
+          for( int j = 0; j < 25; j++ ) {
+            joinPoint.scheduleBefore( new CountingAdvice() ).serve();
+          }
+        }
+      };
+      threads[ i ].start();
+    }
+    start.countDown();
+    for( int i = 0; i < threads.length; i++ ) {
+      threads[ i ].join();
+    }
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    
+    joinPoint.excuteBefore( serveMethod, null );
+    
+    assertEquals( 200, CountingAdvice.counter.get() );
+  }
+  
+  @Test
+  public void testScheduleAfterAsync() throws Exception {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute( Runnable command ) {
+        tasks.add( command );
+      }
+    };
+    AsyncAdviceExecutor asyncExecutor
+      = new AsyncAdviceExecutor( executor, 1, 1, OverflowPolicy.DISCARD );
+    joinPoint.scheduleAfterAsync( advice, asyncExecutor ).serve();
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    
+    joinPoint.excuteAfter( serveMethod, null );
+    verify( advice, never() ).afterServe();
+    tasks.get( 0 ).run();
+    
+    verify( advice ).afterServe();
+  }
+  
   @Test
   public void testHasExceptionAdvice() {
     joinPoint.scheduleOnException( advice ).serve( joinPoint.any( String.class ) );
@@ -93,14 +212,123 @@ public class JoinPointImpl_Test {
   
 
   @Test
-  public void testOnlyOneExceptionAdviceAllowed() {
+  public void testExceptionAdvicesOnDifferentMethods() throws Exception {
+    joinPoint.scheduleOnException( advice ).serve( joinPoint.any( String.class ) );
+    joinPoint.scheduleOnException( advice ).serve();
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    Exception error = new RuntimeException();
+    
+    joinPoint.executeOnException( serveMethod, null, error );
+    
+    verify( advice ).onExceptionServe( error );
+    verify( advice, never() )
+      .onExceptionServe( anyString(), any( Exception.class ) );
+  }
+
+  @Test
+  public void testOnlyOneExceptionAdvicePerExceptionTypeAllowed() {
     joinPoint.scheduleOnException( advice ).serve( joinPoint.any( String.class ) );
+    Advice other = mock( Advice.class );
     
     try {
-      joinPoint.scheduleOnException( new Object() );
+      joinPoint.scheduleOnException( other )
+        .serve( joinPoint.any( String.class ) );
       fail();
     } catch( IllegalStateException expected ) {
       // expected
     }
   }
+  
+  @Test
+  public void testScheduleSampled() throws Exception {
+    joinPoint.scheduleBefore( advice, AdviceSampler.everyNth( 2 ) ).serve();
+    joinPoint.scheduleAfter( advice, AdviceSampler.withProbability( 0 ) )
+      .serve();
+    Method serveMethod = Service.class.getMethod( "serve", ( Class<?>[])null );
+    
+    for( int i = 0; i < 4; i++ ) {
+      joinPoint.excuteBefore( serveMethod, null );
+      joinPoint.excuteAfter( serveMethod, null );
+    }
+    
+    verify( advice, times( 2 ) ).beforeServe();
+    verify( advice, never() ).afterServe();
+  }
+  
+  @Test
+  public void testResolvePointcut() throws Exception {
+    Method serveMethod = Service.class.getMethod( "serve" );
+    Method countMethod = Service.class.getMethod( "count", int.class );
+    int serve = joinPoint.methodIndex.indexOf( serveMethod );
+    int count = joinPoint.methodIndex.indexOf( countMethod );
+    
+    BitSet methods = joinPoint.resolve( Pointcut.all() );
+    BitSet servers = joinPoint.resolve( Pointcut.named( "serve" ) );
+    
+    assertEquals( 3, methods.cardinality() );
+    assertTrue( methods.get( count ) );
+    assertEquals( 2, servers.cardinality() );
+    assertTrue( servers.get( serve ) );
+  }
+  
+  @Test
+  public void testScheduleAroundWithPointcut() throws Exception {
+    Method serve = Service.class.getMethod( "serve" );
+    Method serveString = Service.class.getMethod( "serve", String.class );
+    Method count = Service.class.getMethod( "count", int.class );
+    Method toString = Object.class.getMethod( "toString" );
+    Interceptor interceptor = mock( Interceptor.class );
+    
+    joinPoint.scheduleAround( Pointcut.named( "serve" ), interceptor );
+    
+    assertNotNull( joinPoint.getAdviceChain( serve ) );
+    assertNotNull( joinPoint.getAdviceChain( serveString ) );
+    assertNull( joinPoint.getAdviceChain( count ) );
+    assertNull( joinPoint.getAdviceChain( toString ) );
+  }
+  
+  @Test
+  public void testRestrictedInterceptorChecksMatchingMethods()
+    throws Exception
+  {
+    RestrictedInterceptor interceptor = mockRestrictedInterceptor();
+    Method count = Service.class.getMethod( "count", int.class );
+    
+    try {
+      joinPoint.scheduleAround( Pointcut.all(), interceptor );
+      fail();
+    } catch( IllegalStateException expected ) {
+    }
+    joinPoint.scheduleAround( Pointcut.named( "serve" ), interceptor );
+    
+    Method serve = Service.class.getMethod( "serve" );
+    assertNull( joinPoint.getAdviceChain( count ) );
+    assertNotNull( joinPoint.getAdviceChain( serve ) );
+  }
+  
+  @Test( expected = IllegalStateException.class )
+  public void testRestrictedInterceptorIsCheckedOnProxyScheduling()
+    throws Exception
+  {
+    RestrictedInterceptor interceptor = mockRestrictedInterceptor();
+    
+    joinPoint.scheduleAround( interceptor ).count( 0 );
+  }
+  
+  private static RestrictedInterceptor mockRestrictedInterceptor()
+    throws NoSuchMethodException
+  {
+    RestrictedInterceptor result = mock( RestrictedInterceptor.class );
+    Method count = Service.class.getMethod( "count", int.class );
+    doThrow( new IllegalStateException() ).when( result ).checkMethod( count );
+    return result;
+  }
+
+  private static void awaitQuietly( CountDownLatch latch ) {
+    try {
+      latch.await();
+    } catch( InterruptedException shouldNotHappen ) {
+      throw new IllegalStateException( shouldNotHappen );
+    }
+  }
 }
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class LatencyHistogram_Test {
+  
+  @Test
+  public void testSmallValuesHaveOwnBuckets() {
+    for( int i = 0; i < 4; i++ ) {
+      assertEquals( i, LatencyHistogram.bucketOf( i ) );
+      assertEquals( i, LatencyHistogram.upperBoundOf( i ) );
+    }
+  }
+  
+  @Test
+  public void testNegativeValue() {
+    assertEquals( 0, LatencyHistogram.bucketOf( -1 ) );
+  }
+  
+  @Test
+  public void testValueIsWithinBucketBounds() {
+    long[] values = new long[] { 4, 7, 8, 9, 1000, 123456789L, Long.MAX_VALUE };
+    for( long value : values ) {
+      int bucket = LatencyHistogram.bucketOf( value );
+      assertTrue( value <= LatencyHistogram.upperBoundOf( bucket ) );
+      assertTrue( value > LatencyHistogram.upperBoundOf( bucket - 1 ) );
+    }
+  }
+  
+  @Test
+  public void testRelativeErrorIsBounded() {
+    long value = 1000000;
+    
+    int bucket = LatencyHistogram.bucketOf( value );
+    long upperBound = LatencyHistogram.upperBoundOf( bucket );
+    
+    assertTrue( upperBound - value <= value / 4 );
+  }
+  
+  @Test
+  public void testLastBucket() {
+    int lastBucket = LatencyHistogram.BUCKET_COUNT - 1;
+    
+    assertEquals( lastBucket, LatencyHistogram.bucketOf( Long.MAX_VALUE ) );
+    assertEquals( Long.MAX_VALUE, LatencyHistogram.upperBoundOf( lastBucket ) );
+  }
+  
+  @Test
+  public void testRecord() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    
+    histogram.record( 1000 );
+    histogram.record( 1000 );
+    histogram.record( 5 );
+    
+    long[] counts = histogram.getCounts();
+    assertEquals( 2, counts[ LatencyHistogram.bucketOf( 1000 ) ] );
+    assertEquals( 1, counts[ LatencyHistogram.bucketOf( 5 ) ] );
+  }
+}
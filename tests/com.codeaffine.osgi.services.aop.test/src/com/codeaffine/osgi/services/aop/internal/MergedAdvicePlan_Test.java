@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MergedAdvicePlan_Test {
+  
+  private JoinPointImpl<Service> joinPoint;
+  private JoinPointImpl<OtherService> otherJoinPoint;
+  private MethodIndex methodIndex;
+  private MergedAdvicePlan advicePlan;
+
+  interface Service {
+    void serve();
+  }
+  
+  interface OtherService {
+    void serve();
+    void other();
+  }
+  
+  interface Advice {
+    void beforeServe();
+    void beforeOther();
+  }
+  
+  @Before
+  public void setUp() {
+    joinPoint = new JoinPointImpl<Service>( Service.class );
+    otherJoinPoint = new JoinPointImpl<OtherService>( OtherService.class );
+    Class<?>[] types = new Class<?>[] { Service.class, OtherService.class };
+    methodIndex = MethodIndex.of( types );
+    JoinPointImpl<?>[] joinPoints
+      = new JoinPointImpl<?>[] { joinPoint, otherJoinPoint };
+    advicePlan = new MergedAdvicePlan( methodIndex, joinPoints );
+  }
+  
+  @Test
+  public void testMethodWithoutAdvice() throws Exception {
+    assertNull( getAdviceChain( Service.class, "serve" ) );
+  }
+  
+  @Test
+  public void testAdviceOfSingleJoinPoint() throws Exception {
+    Advice advice = mock( Advice.class );
+    otherJoinPoint.scheduleBefore( advice ).other();
+    
+    getAdviceChain( OtherService.class, "other" ).executeBefore( null );
+    
+    verify( advice ).beforeOther();
+  }
+  
+  @Test
+  public void testAdvicesOfSameMethodAreMerged() throws Exception {
+    Advice advice = mock( Advice.class );
+    Advice otherAdvice = mock( Advice.class );
+    joinPoint.scheduleBefore( advice ).serve();
+    otherJoinPoint.scheduleBefore( otherAdvice ).serve();
+    
+    getAdviceChain( Service.class, "serve" ).executeBefore( null );
+    
+    verify( advice ).beforeServe();
+    verify( otherAdvice ).beforeServe();
+  }
+  
+  @Test
+  public void testMergedChainIsReused() throws Exception {
+    joinPoint.scheduleBefore( mock( Advice.class ) ).serve();
+    otherJoinPoint.scheduleBefore( mock( Advice.class ) ).serve();
+    int index = indexOf( Service.class, "serve" );
+    
+    AdviceChain first = advicePlan.getAdviceChain( index );
+    AdviceChain second = advicePlan.getAdviceChain( index );
+    
+    assertSame( first, second );
+  }
+  
+  @Test
+  public void testMergedChainIsRebuiltOnChange() throws Exception {
+    joinPoint.scheduleBefore( mock( Advice.class ) ).serve();
+    otherJoinPoint.scheduleBefore( mock( Advice.class ) ).serve();
+    int index = indexOf( Service.class, "serve" );
+    AdviceChain first = advicePlan.getAdviceChain( index );
+    Advice advice = mock( Advice.class );
+    
+    joinPoint.scheduleBefore( advice ).serve();
+    AdviceChain second = advicePlan.getAdviceChain( index );
+    second.executeBefore( null );
+    
+    assertNotSame( first, second );
+    verify( advice ).beforeServe();
+  }
+  
+  @Test
+  public void testMissingJoinPoint() throws Exception {
+    Advice advice = mock( Advice.class );
+    joinPoint.scheduleBefore( advice ).serve();
+    
+    JoinPointImpl<?>[] joinPoints = new JoinPointImpl<?>[] { joinPoint, null };
+    MergedAdvicePlan plan = new MergedAdvicePlan( methodIndex, joinPoints );
+    int index = indexOf( Service.class, "serve" );
+    plan.getAdviceChain( index ).executeBefore( null );
+    
+    verify( advice ).beforeServe();
+  }
+
+  private AdviceChain getAdviceChain( Class<?> type, String name )
+    throws NoSuchMethodException
+  {
+    return advicePlan.getAdviceChain( indexOf( type, name ) );
+  }
+
+  private int indexOf( Class<?> type, String name )
+    throws NoSuchMethodException
+  {
+    return methodIndex.indexOf( type.getMethod( name ) );
+  }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MethodIndex_Test {
+  
+  private MethodIndex methodIndex;
+
+  interface Service {
+    void serve();
+    void serve( String parameter );
+  }
+  
+  interface OtherService {
+    void serve();
+  }
+  
+  interface CombinedService extends Service, OtherService {
+  }
+  
+  @Before
+  public void setUp() {
+    methodIndex = new MethodIndex( CombinedService.class );
+  }
+  
+  @Test
+  public void testSize() {
+    assertEquals( 5, methodIndex.size() );
+  }
+  
+  @Test
+  public void testIndexOf() throws Exception {
+    Method serve = Service.class.getMethod( "serve", String.class );
+    
+    int index = methodIndex.indexOf( serve );
+    
+    assertEquals( serve, methodIndex.getMethod( index ) );
+  }
+  
+  @Test
+  public void testIndexOfMethodsWithSameSignature() throws Exception {
+    Method serve = Service.class.getMethod( "serve" );
+    Method otherServe = OtherService.class.getMethod( "serve" );
+    
+    int index = methodIndex.indexOf( serve );
+    int otherIndex = methodIndex.indexOf( otherServe );
+    
+    assertTrue( index >= 0 );
+    assertEquals( index, otherIndex );
+  }
+  
+  @Test
+  public void testIndexOfObjectMethod() throws Exception {
+    Method toString = Object.class.getMethod( "toString" );
+    
+    int index = methodIndex.indexOf( toString );
+    
+    assertEquals( toString, methodIndex.getMethod( index ) );
+  }
+  
+  @Test
+  public void testIndexOfUnknownMethod() throws Exception {
+    Method run = Runnable.class.getMethod( "run" );
+    
+    int index = methodIndex.indexOf( run );
+    
+    assertEquals( -1, index );
+  }
+  
+  @Test
+  public void testGetInvoker() throws Throwable {
+    Service service = mock( Service.class );
+    Method method = Service.class.getMethod( "serve", String.class );
+    int index = methodIndex.indexOf( method );
+    MethodHandle invoker = methodIndex.getInvoker( index );
+    Object[] args = new Object[] { "param" };
+    
+    Object result = ( Object )invoker.invokeExact( ( Object )service, args );
+    
+    assertNull( result );
+    verify( service ).serve( "param" );
+  }
+  
+  @Test
+  public void testOf() {
+    MethodIndex first = MethodIndex.of( Service.class );
+    MethodIndex second = MethodIndex.of( Service.class );
+    
+    assertSame( first, second );
+  }
+  
+  @Test
+  public void testOfSingleType() {
+    MethodIndex index = MethodIndex.of( new Class<?>[] { Service.class } );
+    
+    assertSame( MethodIndex.of( Service.class ), index );
+  }
+  
+  @Test
+  public void testOfSeveralTypes() throws Exception {
+    Class<?>[] types = new Class<?>[] { Service.class, OtherService.class };
+    MethodIndex index = MethodIndex.of( types );
+    
+    int serve = index.indexOf( Service.class.getMethod( "serve" ) );
+    int otherServe = index.indexOf( OtherService.class.getMethod( "serve" ) );
+    
+    assertEquals( 5, index.size() );
+    assertEquals( serve, otherServe );
+  }
+  
+  @Test
+  public void testIndexOfSignature() throws Exception {
+    MethodIndex serviceIndex = MethodIndex.of( Service.class );
+    
+    Method method = OtherService.class.getMethod( "serve" );
+    
+    int index = serviceIndex.indexOfSignature( method );
+    
+    assertEquals( Service.class.getMethod( "serve" ),
+                  serviceIndex.getMethod( index ) );
+  }
+}
@@ -11,19 +11,37 @@
 package com.codeaffine.osgi.services.aop.internal;
 
 import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.codeaffine.osgi.services.aop.Interceptor;
+import com.codeaffine.osgi.services.aop.Invocation;
+import com.codeaffine.osgi.services.aop.InvocationContext;
+import com.codeaffine.osgi.services.aop.aspects.TimeoutInterceptor;
 
 
 @RunWith( MockitoJUnitRunner.class )
@@ -39,6 +57,27 @@ public class ProxyInvocationHandler_Test {
     Object onExceptionServe( Object param, Exception exception );
   }
   
+  interface TypedAdvise {
+    Object onExceptionServe( Object param, IllegalArgumentException exception );
+    Object onExceptionServe( Object param, IllegalStateException exception );
+  }
+  
+  public static class ContextAdvise {
+    final List<Object> attributes = new ArrayList<Object>();
+    InvocationContext context;
+
+    public void beforeServe( Object param, InvocationContext context ) {
+      this.context = context;
+      context.setAttribute( "param", param );
+    }
+
+    public void afterServe( Object param, InvocationContext context ) {
+      attributes.add( context.getAttribute( "param" ) );
+      attributes.add( context.getTarget() );
+      attributes.add( context.getMethod() );
+    }
+  }
+  
   private JoinPointImpl<Service> joinPoint;
   private ProxyInvocationHandler invocationHandler;
   private Method method;
@@ -53,7 +92,7 @@ public class ProxyInvocationHandler_Test {
   @Before
   public void setUp() {
     joinPoint = new JoinPointImpl<Service>( Service.class );
-    invocationHandler = new ProxyInvocationHandler( service );
+    invocationHandler = new ProxyInvocationHandler( Service.class, service );
     invocationHandler.setJoinPoint( joinPoint );
     initializeMethod();
   }
@@ -66,6 +105,120 @@ public class ProxyInvocationHandler_Test {
     }
   }
   
+  @Test
+  public void testIsAdvised() {
+    int index = MethodIndex.of( Service.class ).indexOf( method );
+    boolean advisedBeforeScheduling = invocationHandler.isAdvised( index );
+    
+    scheduleBeforeAdvice();
+    
+    assertFalse( advisedBeforeScheduling );
+    assertTrue( invocationHandler.isAdvised( index ) );
+  }
+  
+  @Test
+  public void testInterceptorReplacesResult() throws Throwable {
+    final Object replacement = new Object();
+    joinPoint.scheduleAround( new Interceptor() {
+      @Override
+      public Object intercept( Invocation invocation ) {
+        return replacement;
+      }
+    } ).serve( joinPoint.any( Object.class ) );
+    
+    Object result = invoke();
+    
+    assertSame( replacement, result );
+    verify( service, never() ).serve( any( Object.class ) );
+  }
+  
+  @Test
+  public void testInterceptorSeesTarget() throws Throwable {
+    final Object[] target = new Object[ 1 ];
+    joinPoint.scheduleAround( new Interceptor() {
+      @Override
+      public Object intercept( Invocation invocation ) {
+        target[ 0 ] = invocation.getTarget();
+        return null;
+      }
+    } ).serve( joinPoint.any( Object.class ) );
+    
+    invoke();
+    
+    assertSame( service, target[ 0 ] );
+  }
+  
+  @Test
+  public void testInterceptorsAreNested() throws Throwable {
+    when( service.serve( param ) ).thenReturn( "result" );
+    joinPoint.scheduleAround( new SuffixInterceptor( "-outer" ) )
+      .serve( joinPoint.any( Object.class ) );
+    joinPoint.scheduleAround( new SuffixInterceptor( "-inner" ) )
+      .serve( joinPoint.any( Object.class ) );
+    scheduleBeforeAdvice();
+    
+    Object result = invoke();
+    
+    assertEquals( "result-inner-outer", result );
+    verify( advise ).beforeServe( param );
+  }
+  
+  @Test
+  public void testExceptionInInterceptorWithExceptionAdvice() throws Throwable {
+    final Exception exception = new RuntimeException();
+    joinPoint.scheduleAround( new Interceptor() {
+      @Override
+      public Object intercept( Invocation invocation ) throws Exception {
+        throw exception;
+      }
+    } ).serve( joinPoint.any( Object.class ) );
+    scheduleExceptionAdvice();
+    
+    invoke();
+    
+    verify( advise ).onExceptionServe( param, exception );
+  }
+  
+  @Test
+  public void testTimeoutIsHandledByExceptionAdvice() throws Throwable {
+    when( service.serve( param ) ).thenAnswer( new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation )
+        throws InterruptedException
+      {
+        Thread.sleep( TimeUnit.SECONDS.toMillis( 5 ) );
+        return null;
+      }
+    } );
+    TimeoutInterceptor interceptor
+      = new TimeoutInterceptor( 20, TimeUnit.MILLISECONDS );
+    joinPoint.scheduleAround( interceptor )
+      .serve( joinPoint.any( Object.class ) );
+    scheduleExceptionAdvice();
+    
+    invoke();
+    
+    ArgumentCaptor<Exception> exception
+      = ArgumentCaptor.forClass( Exception.class );
+    verify( advise ).onExceptionServe( eq( param ), exception.capture() );
+    assertSame( TimeoutException.class, exception.getValue().getClass() );
+  }
+  
+  @Test
+  public void testStatistics() throws Throwable {
+    InvocationStatisticsImpl statistics = new InvocationStatisticsImpl();
+    ServiceMetrics metrics = statistics.getServiceMetrics( Service.class );
+    invocationHandler.setServiceMetrics( metrics );
+    fakeExceptionInServe();
+    
+    invoke();
+    
+    int index = MethodIndex.of( Service.class ).indexOf( method );
+    assertTrue( invocationHandler.isAdvised( index ) );
+    assertEquals( 1, statistics.getStatistics().get( 0 ).getCallCount() );
+    assertEquals( 1, statistics.getStatistics().get( 0 ).getErrorCount() );
+  }
+  
   @Test
   public void testExceptionWithoutAnExceptionAdvice() throws Throwable {
     Exception exception = fakeExceptionInServe();
@@ -98,6 +251,45 @@ public class ProxyInvocationHandler_Test {
     verify( advise ).onExceptionServe( param, exception );
   }
   
+  @Test
+  public void testExceptionAdviceOfMostSpecificTypeIsUsed() throws Throwable {
+    IllegalStateException exception = new IllegalStateException();
+    when( service.serve( param ) ).thenThrow( exception );
+    scheduleExceptionAdvice();
+    TypedAdvise typedAdvise = scheduleTypedExceptionAdvices();
+    
+    invoke();
+    
+    verify( typedAdvise ).onExceptionServe( param, exception );
+    verify( advise, never() ).onExceptionServe( any( Object.class ), any( Exception.class ) );
+  }
+  
+  @Test
+  public void testExceptionAdviceOfSuperTypeIsUsed() throws Throwable {
+    NumberFormatException exception = new NumberFormatException();
+    when( service.serve( param ) ).thenThrow( exception );
+    TypedAdvise typedAdvise = scheduleTypedExceptionAdvices();
+    
+    invoke();
+    
+    verify( typedAdvise )
+      .onExceptionServe( param, ( IllegalArgumentException )exception );
+  }
+  
+  @Test
+  public void testExceptionWithoutMatchingExceptionAdvice() throws Throwable {
+    Exception exception = new UnsupportedOperationException();
+    when( service.serve( param ) ).thenThrow( exception );
+    TypedAdvise typedAdvise = scheduleTypedExceptionAdvices();
+    
+    Object thrown = invoke();
+    
+    assertSame( exception, thrown );
+    verify( typedAdvise, never() )
+      .onExceptionServe( any( Object.class ),
+                         any( IllegalStateException.class ) );
+  }
+  
   @Test
   public void testExceptionInBeforeAdviceWithoutExceptionAdvice() throws Throwable {
     Exception exception = fakeExceptionInBeforeAdvice();
@@ -167,6 +359,34 @@ public class ProxyInvocationHandler_Test {
     assertSame( error, thrown );
   }
   
+  @Test
+  public void testInvocationContext() throws Throwable {
+    ContextAdvise contextAdvise = new ContextAdvise();
+    joinPoint.scheduleBefore( contextAdvise )
+      .serve( joinPoint.any( Object.class ) );
+    joinPoint.scheduleAfter( contextAdvise )
+      .serve( joinPoint.any( Object.class ) );
+    
+    invoke();
+    
+    assertEquals( Arrays.asList( param, service, method ),
+                  contextAdvise.attributes );
+    assertNull( contextAdvise.context.getAttribute( "param" ) );
+  }
+  
+  @Test
+  public void testInvocationContextIsReused() throws Throwable {
+    ContextAdvise contextAdvise = new ContextAdvise();
+    joinPoint.scheduleBefore( contextAdvise )
+      .serve( joinPoint.any( Object.class ) );
+    invoke();
+    InvocationContext first = contextAdvise.context;
+    
+    invoke();
+    
+    assertSame( first, contextAdvise.context );
+  }
+  
   @Test
   public void testErrorInAfterAdvice() throws Throwable {
     Error error = fakeErrorInAfterAdvice();
@@ -176,6 +396,19 @@ public class ProxyInvocationHandler_Test {
     assertSame( error, thrown );
   }
 
+  private static class SuffixInterceptor implements Interceptor {
+    private final String suffix;
+
+    SuffixInterceptor( String suffix ) {
+      this.suffix = suffix;
+    }
+
+    @Override
+    public Object intercept( Invocation invocation ) throws Exception {
+      return invocation.proceed() + suffix;
+    }
+  }
+
   private Error fakeErrorInAfterAdvice() {
     scheduleAfterAdvice();
     Error error = new Error( "Error in after" );
@@ -231,6 +464,13 @@ public class ProxyInvocationHandler_Test {
     when( advise.onExceptionServe( param, exception ) ).thenReturn( resultOnException );
   }
 
+  private TypedAdvise scheduleTypedExceptionAdvices() {
+    TypedAdvise result = mock( TypedAdvise.class );
+    joinPoint.scheduleOnException( result )
+      .serve( joinPoint.any( Object.class ) );
+    return result;
+  }
+
   private void scheduleExceptionAdvice() {
     joinPoint.scheduleOnException( advise ).serve( joinPoint.any( Object.class ) );
   }
@@ -10,33 +10,56 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.ListenerHook.ListenerInfo;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
 
+import com.codeaffine.osgi.services.aop.InvocationStatistics;
 import com.codeaffine.osgi.services.aop.JoinPointDefinition;
 import com.codeaffine.osgi.services.aop.JoinPointFactory;
 import com.codeaffine.osgi.services.aop.internal.ProxyProvider;
+import com.codeaffine.osgi.services.aop.internal.concurrent.BundleResources;
 
 
 public class ProxyProvider_Test {
   private ProxyProvider proxyProvider;
   private Bundle proxyProviderBundle;
   private BundleContext proxyProviderBundleContext;
+  private ComponentContext componentContext;
 
   public interface TestService {
     public void doIt();
@@ -49,7 +72,7 @@ public class ProxyProvider_Test {
 
   private void initializeProxyProvider() {
     proxyProvider = new ProxyProvider();
-    ComponentContext componentContext = mock( ComponentContext.class );
+    componentContext = mock( ComponentContext.class );
     proxyProviderBundleContext = mock( BundleContext.class );
     proxyProviderBundle = mock( Bundle.class );
     when( proxyProviderBundleContext.getBundle() ).thenReturn( proxyProviderBundle );
@@ -79,6 +102,57 @@ public class ProxyProvider_Test {
     verify( references.iterator(), never() ).remove();
   }
   
+  @Test
+  public void testFindWithoutServiceName() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    Collection<ServiceReference<?>> references = mockOriginReferences();
+    
+    proxyProvider.find( null, null, null, false, references );
+    
+    verify( references.iterator(), never() ).remove();
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testFindAfterRemovingProxyDefinition() {
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    proxyProvider.addJoinPointDefinition( proxyDefinition );
+    String name = TestService.class.getName();
+    Collection<ServiceReference<?>> references = mockOriginReferences();
+    
+    proxyProvider.removeJoinPointDefinition( proxyDefinition );
+    proxyProvider.find( null, name, null, false, references );
+    
+    verify( references.iterator(), never() ).remove();
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testFindWithNonMatchingFilter() throws InvalidSyntaxException {
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    Filter filter = FrameworkUtil.createFilter( "(tenant=a)" );
+    when( proxyDefinition.getJoinPointFactory().getFilter() )
+      .thenReturn( filter );
+    proxyProvider.addJoinPointDefinition( proxyDefinition );
+    String name = TestService.class.getName();
+    Collection<ServiceReference<?>> references = mockOriginReferences();
+    
+    proxyProvider.find( null, name, null, false, references );
+    
+    verify( references.iterator(), never() ).remove();
+  }
+  
+  @Test
+  public void testFindWithUnregisteredReference() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String name = TestService.class.getName();
+    Collection<ServiceReference<?>> references = mockReferencesFor( null );
+    
+    proxyProvider.find( null, name, null, false, references );
+    
+    verify( references.iterator(), never() ).remove();
+  }
+  
   @Test
   public void testFindInCaseOfProxyService() {
     proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
@@ -90,6 +164,155 @@ public class ProxyProvider_Test {
     verify( references.iterator(), never() ).remove();
   }
 
+  @Test
+  public void testEventOfOriginIsHiddenFromListenersOfAdvisedType() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(objectClass=" + TestService.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertTrue( listeners.values().iterator().next().isEmpty() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsDeliveredToOtherListeners() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(objectClass=" + Runnable.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsHiddenFromListenersWithoutFilter() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( null );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertTrue( listeners.values().iterator().next().isEmpty() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsHiddenFromListenersWithWildcardFilter() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String type = TestService.class.getName().replace( "TestService", "*" );
+    String filter = "(objectclass=" + type + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertTrue( listeners.values().iterator().next().isEmpty() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsHiddenFromListenersOfProperty() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( "(tenant=a)" );
+    ServiceEvent event = mockServiceEvent( mock( Bundle.class ) );
+    when( event.getServiceReference().getPropertyKeys() )
+      .thenReturn( new String[] { Constants.OBJECTCLASS, "tenant" } );
+    when( event.getServiceReference().getProperty( "tenant" ) )
+      .thenReturn( "a" );
+    
+    proxyProvider.event( event, listeners );
+    
+    assertTrue( listeners.values().iterator().next().isEmpty() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsDeliveredToListenersOfServiceId() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( "(service.id=1)" );
+    ServiceEvent event = mockServiceEvent( mock( Bundle.class ) );
+    String[] keys
+      = new String[] { Constants.OBJECTCLASS, Constants.SERVICE_ID };
+    when( event.getServiceReference().getPropertyKeys() ).thenReturn( keys );
+    when( event.getServiceReference().getProperty( Constants.SERVICE_ID ) )
+      .thenReturn( Long.valueOf( 1 ) );
+    
+    proxyProvider.event( event, listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsDeliveredToListenersOfNegatedType() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(!(objectClass=" + TestService.class.getName() + "))";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsDeliveredToListenersOfUnadvisedType() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(objectClass=" + Runnable.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    ServiceEvent event = mockServiceEvent( mock( Bundle.class ) );
+    String[] objectClass
+      = new String[] { TestService.class.getName(), Runnable.class.getName() };
+    when( event.getServiceReference().getProperty( Constants.OBJECTCLASS ) )
+      .thenReturn( objectClass );
+    
+    proxyProvider.event( event, listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @Test
+  public void testEventOfOriginIsDeliveredToProxyProvider() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(objectClass=" + TestService.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( proxyProviderBundle, filter );
+    
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @Test
+  public void testEventOfProxyIsDelivered() {
+    proxyProvider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    String filter = "(objectClass=" + TestService.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.event( mockServiceEvent( proxyProviderBundle ), listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testEventAfterRemovingProxyDefinition() {
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    proxyProvider.addJoinPointDefinition( proxyDefinition );
+    String filter = "(objectClass=" + TestService.class.getName() + ")";
+    Map<BundleContext, Collection<ListenerInfo>> listeners
+      = mockListeners( filter );
+    
+    proxyProvider.removeJoinPointDefinition( proxyDefinition );
+    proxyProvider.event( mockServiceEvent( mock( Bundle.class ) ), listeners );
+    
+    assertEquals( 1, listeners.values().iterator().next().size() );
+  }
+
   @SuppressWarnings( "rawtypes" )
   @Test
   public void testAddProxyDefinition() throws InvalidSyntaxException {
@@ -101,6 +324,165 @@ public class ProxyProvider_Test {
                                                              any( String.class ) );
   }
   
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testActivationOpensBufferedDefinitions()
+    throws InvalidSyntaxException
+  {
+    ProxyProvider provider = new ProxyProvider();
+    LogService logService = mock( LogService.class );
+    provider.setLogService( logService );
+    provider.addJoinPointDefinition( mockProxyDefintion( TestService.class ) );
+    provider.addJoinPointDefinition( mockProxyDefintion( Runnable.class ) );
+    
+    provider.activate( componentContext );
+    
+    verify( proxyProviderBundleContext, times( 2 ) )
+      .addServiceListener( any( ServiceListener.class ), any( String.class ) );
+    verify( logService, times( 2 ) )
+      .log( eq( LogService.LOG_DEBUG ), any( String.class ) );
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testFindDoesNotWaitForOpeningRegistrar() throws Exception {
+    CountDownLatch opening = new CountDownLatch( 1 );
+    CountDownLatch release = new CountDownLatch( 1 );
+    blockServiceListenerRegistration( opening, release );
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    Thread adder = addJoinPointDefinitionAsync( proxyDefinition );
+    opening.await( 5, TimeUnit.SECONDS );
+    Collection<ServiceReference<?>> references = mockOriginReferences();
+    String name = TestService.class.getName();
+    
+    proxyProvider.find( null, name, null, false, references );
+    release.countDown();
+    adder.join();
+    
+    verify( references.iterator() ).remove();
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testRemoveProxyDefinitionWhileOpening() throws Exception {
+    CountDownLatch opening = new CountDownLatch( 1 );
+    CountDownLatch release = new CountDownLatch( 1 );
+    blockServiceListenerRegistration( opening, release );
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    Thread adder = addJoinPointDefinitionAsync( proxyDefinition );
+    opening.await( 5, TimeUnit.SECONDS );
+    
+    Thread remover = removeJoinPointDefinitionAsync( proxyDefinition );
+    release.countDown();
+    adder.join();
+    remover.join();
+    
+    verify( proxyProviderBundleContext )
+      .removeServiceListener( any( ServiceListener.class ) );
+  }
+  
+  @Test
+  public void testStatisticsAreNotRegisteredByDefault() {
+    verify( proxyProviderBundleContext, never() )
+      .registerService( any( String.class ), any(), anyProperties() );
+  }
+  
+  @Test
+  public void testDeactivateReleasesBundleResources() {
+    Runnable release = mock( Runnable.class );
+    BundleResources.register( release );
+    
+    proxyProvider.deactivate();
+    proxyProvider.deactivate();
+    
+    verify( release ).run();
+  }
+  
+  @Test
+  public void testStatisticsRegistration() {
+    ServiceRegistration<?> registration = mock( ServiceRegistration.class );
+    String name = InvocationStatistics.class.getName();
+    String key = ProxyProvider.STATISTICS_PROPERTY;
+    when( proxyProviderBundleContext.getProperty( key ) ).thenReturn( "true" );
+    stubRegistration( name, registration );
+    
+    proxyProvider.activate( componentContext );
+    proxyProvider.deactivate();
+    
+    verify( proxyProviderBundleContext )
+      .registerService( eq( name ),
+                        any( InvocationStatisticsImpl.class ),
+                        anyProperties() );
+    verify( registration ).unregister();
+  }
+  
+  @SuppressWarnings( "rawtypes" )
+  @Test
+  public void testRemoveProxyDefinition() {
+    JoinPointDefinition proxyDefinition = mockProxyDefintion( TestService.class );
+    proxyProvider.addJoinPointDefinition( proxyDefinition );
+    
+    proxyProvider.removeJoinPointDefinition( proxyDefinition );
+    
+    verify( proxyProviderBundleContext )
+      .removeServiceListener( any( ServiceListener.class ) );
+  }
+  
+  private Thread addJoinPointDefinitionAsync(
+    final JoinPointDefinition<?> proxyDefinition )
+  {
+    Thread result = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        proxyProvider.addJoinPointDefinition( proxyDefinition );
+      }
+    } );
+    result.start();
+    return result;
+  }
+
+  private Thread removeJoinPointDefinitionAsync(
+    final JoinPointDefinition<?> proxyDefinition )
+  {
+    Thread result = new Thread( new Runnable() {
+      @Override
+      public void run() {
+        proxyProvider.removeJoinPointDefinition( proxyDefinition );
+      }
+    } );
+    result.start();
+    return result;
+  }
+
+  private void blockServiceListenerRegistration( final CountDownLatch opening,
+                                                 final CountDownLatch release )
+    throws InvalidSyntaxException
+  {
+    doAnswer( new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) throws Throwable {
+        opening.countDown();
+        release.await( 5, TimeUnit.SECONDS );
+        return null;
+      }
+    } ).when( proxyProviderBundleContext )
+      .addServiceListener( any( ServiceListener.class ), any( String.class ) );
+  }
+
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private void stubRegistration( String name,
+                                 ServiceRegistration registration )
+  {
+    when( proxyProviderBundleContext.registerService( eq( name ),
+                                                      any(),
+                                                      anyProperties() ) )
+      .thenReturn( registration );
+  }
+
+  private static Dictionary<String,?> anyProperties() {
+    return any();
+  }
+
   private Collection<ServiceReference<?>> mockReferencesWithProxyReference() {
     return mockReferencesFor( proxyProviderBundle );
   }
@@ -128,6 +510,40 @@ public class ProxyProvider_Test {
     return result;
   }
 
+  private static Map<BundleContext, Collection<ListenerInfo>> mockListeners(
+    String filter )
+  {
+    return mockListeners( mock( Bundle.class ), filter );
+  }
+
+  private static Map<BundleContext, Collection<ListenerInfo>> mockListeners(
+    Bundle bundle,
+    String filter )
+  {
+    BundleContext bundleContext = mock( BundleContext.class );
+    when( bundleContext.getBundle() ).thenReturn( bundle );
+    ListenerInfo listenerInfo = mock( ListenerInfo.class );
+    when( listenerInfo.getFilter() ).thenReturn( filter );
+    Collection<ListenerInfo> listenerInfos = new ArrayList<ListenerInfo>();
+    listenerInfos.add( listenerInfo );
+    Map<BundleContext, Collection<ListenerInfo>> result
+      = new HashMap<BundleContext, Collection<ListenerInfo>>();
+    result.put( bundleContext, listenerInfos );
+    return result;
+  }
+
+  @SuppressWarnings( "rawtypes" )
+  private static ServiceEvent mockServiceEvent( Bundle bundle ) {
+    ServiceReference reference = mock( ServiceReference.class );
+    when( reference.getBundle() ).thenReturn( bundle );
+    String[] objectClass = new String[] { TestService.class.getName() };
+    String[] keys = new String[] { Constants.OBJECTCLASS };
+    when( reference.getProperty( Constants.OBJECTCLASS ) )
+      .thenReturn( objectClass );
+    when( reference.getPropertyKeys() ).thenReturn( keys );
+    return new ServiceEvent( ServiceEvent.REGISTERED, reference );
+  }
+
   @SuppressWarnings( "rawtypes" )
   private JoinPointDefinition mockProxyDefintion( Class serviceType ) {
     JoinPointDefinition result = mock( JoinPointDefinition.class );
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.osgi.service.log.LogService;
+
+
+public class ProxyRegistrarActivation_Test {
+  private static final int REGISTRAR_COUNT = 8;
+
+  @Test
+  public void testOpen() {
+    List<ProxyRegistrar> registrars = mockRegistrars();
+    
+    new ProxyRegistrarActivation( registrars, null ).open();
+    
+    for( ProxyRegistrar registrar : registrars ) {
+      verify( registrar ).open();
+    }
+  }
+  
+  @Test
+  public void testOpenReportsDurationPerRegistrar() {
+    LogService logService = mock( LogService.class );
+    
+    new ProxyRegistrarActivation( mockRegistrars(), logService ).open();
+    
+    verify( logService, times( REGISTRAR_COUNT ) )
+      .log( eq( LogService.LOG_DEBUG ), anyString() );
+  }
+  
+  @Test
+  public void testOpenWithoutRegistrars() {
+    LogService logService = mock( LogService.class );
+    List<ProxyRegistrar> registrars = new ArrayList<ProxyRegistrar>();
+    
+    new ProxyRegistrarActivation( registrars, logService ).open();
+    
+    verify( logService, never() )
+      .log( eq( LogService.LOG_DEBUG ), anyString() );
+  }
+  
+  @Test
+  public void testProblemOnOpenIsPropagated() {
+    List<ProxyRegistrar> registrars = mockRegistrars();
+    IllegalStateException problem = new IllegalStateException();
+    doThrow( problem ).when( registrars.get( 1 ) ).open();
+    
+    try {
+      new ProxyRegistrarActivation( registrars, null ).open();
+      fail();
+    } catch( IllegalStateException expected ) {
+      assertSame( problem, expected );
+    }
+  }
+
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private static List<ProxyRegistrar> mockRegistrars() {
+    List<ProxyRegistrar> result = new ArrayList<ProxyRegistrar>();
+    for( int i = 0; i < REGISTRAR_COUNT; i++ ) {
+      ProxyRegistrar registrar = mock( ProxyRegistrar.class );
+      when( ( Class )registrar.getServiceType() ).thenReturn( Runnable.class );
+      result.add( registrar );
+    }
+    return result;
+  }
+}
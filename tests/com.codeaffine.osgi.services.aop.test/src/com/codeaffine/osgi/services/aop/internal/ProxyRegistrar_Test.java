@@ -10,25 +10,40 @@
  ******************************************************************************/
 package com.codeaffine.osgi.services.aop.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.MockSettings;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 
 import com.codeaffine.osgi.services.aop.JoinPointDefinition;
 import com.codeaffine.osgi.services.aop.JoinPointFactory;
@@ -47,21 +62,38 @@ public class ProxyRegistrar_Test {
   private Dictionary<String,Object> properties;
 
   private static class ProxyInterceptor implements Answer<Object> {
-    private Runnable proxy;
+    private final List<ServiceRegistration<?>> registrations;
+    private ServiceFactory<Object> serviceFactory;
 
     ProxyInterceptor() {
+      registrations = new ArrayList<ServiceRegistration<?>>();
     }
 
     @Override
+    @SuppressWarnings( "unchecked" )
     public Object answer( InvocationOnMock invocation )
       throws Throwable
     {
-      proxy = ( Runnable )invocation.getArguments()[ 1 ];
-      return null;
+      serviceFactory = ( ServiceFactory<Object> )invocation.getArguments()[ 1 ];
+      ServiceRegistration<?> result = mock( ServiceRegistration.class );
+      registrations.add( result );
+      return result;
+    }
+
+    ServiceFactory<Object> getServiceFactory() {
+      return serviceFactory;
+    }
+
+    List<ServiceRegistration<?>> getRegistrations() {
+      return registrations;
     }
 
     Runnable getProxy() {
-      return proxy;
+      Runnable result = null;
+      if( serviceFactory != null ) {
+        result = ( Runnable )serviceFactory.getService( null, null );
+      }
+      return result;
     }
   }
   
@@ -69,6 +101,8 @@ public class ProxyRegistrar_Test {
   @Before
   public void setUp() {
     bundleContext = mock( BundleContext.class );
+    Bundle bundle = mock( Bundle.class );
+    when( bundleContext.getBundle() ).thenReturn( bundle );
     service = mock( SERVICE_TYPE );
     mockServiceReference();
   }
@@ -76,6 +110,8 @@ public class ProxyRegistrar_Test {
   @SuppressWarnings( "unchecked" )
   private void mockServiceReference() {
     serviceReference = mock( ServiceReference.class );
+    Bundle bundle = mock( Bundle.class );
+    when( serviceReference.getBundle() ).thenReturn( bundle );
     when( bundleContext.getService( serviceReference ) ).thenReturn( service );
     properties = new Hashtable<String,Object>();
     properties.put( PROP_NAME, PROP_VALUE );
@@ -103,40 +139,345 @@ public class ProxyRegistrar_Test {
     proxyInterceptor.getProxy().run();
     assertNotSame( service, proxyInterceptor.getProxy() );
     verify( service ).run();
-    verify( bundleContext ).registerService( eq( SERVICE_TYPE.getName() ),
-                                             any( SERVICE_TYPE ), 
+    String[] names = new String[] { SERVICE_TYPE.getName() };
+    verify( bundleContext ).registerService( aryEq( names ),
+                                             any( ServiceFactory.class ), 
                                              eq( properties ) );
   }
 
+  @SuppressWarnings( "unchecked" )
   private ProxyInterceptor registerProxyInterceptor() {
     ProxyInterceptor result = new ProxyInterceptor();
-    when( bundleContext.registerService( eq( SERVICE_TYPE.getName() ),
-                                         any( SERVICE_TYPE ), 
+    when( bundleContext.registerService( any( String[].class ),
+                                         any( ServiceFactory.class ), 
                                          eq( properties ) ) ).thenAnswer( result );
     return result;
   }
   
+  @SuppressWarnings( {
+    "unchecked", "rawtypes"
+  } )
+  @Test
+  public void testServiceIsObtainedLazily() {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    
+    proxyRegistrar.addingService( serviceReference );
+    
+    verify( bundleContext, never() ).getService( serviceReference );
+    verify( joinPointFactory, never() ).getJoinPoint();
+    proxyInterceptor.getProxy();
+    verify( bundleContext ).getService( serviceReference );
+    verify( joinPointFactory ).getJoinPoint();
+  }
+  
+  @SuppressWarnings( {
+    "unchecked", "rawtypes"
+  } )
+  @Test
+  public void testProxyIsSharedAndReleasedWithLastConsumer() {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    proxyRegistrar.addingService( serviceReference );
+    ServiceFactory<Object> serviceFactory
+      = proxyInterceptor.getServiceFactory();
+    
+    Object first = serviceFactory.getService( mock( Bundle.class ), null );
+    Object second = serviceFactory.getService( mock( Bundle.class ), null );
+    serviceFactory.ungetService( null, null, first );
+    verify( bundleContext, never() ).ungetService( serviceReference );
+    serviceFactory.ungetService( null, null, second );
+    
+    assertSame( first, second );
+    verify( bundleContext ).ungetService( serviceReference );
+  }
+  
+  @SuppressWarnings( {
+    "unchecked", "rawtypes"
+  } )
+  @Test
+  public void testServiceIsObtainedOutsideOfServiceFactoryMonitor() {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    final ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    proxyRegistrar.addingService( serviceReference );
+    final List<Boolean> monitorHeld = new ArrayList<Boolean>();
+    Answer<Object> answer = new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) {
+        Object factory = proxyInterceptor.getServiceFactory();
+        monitorHeld.add( Boolean.valueOf( Thread.holdsLock( factory ) ) );
+        return service;
+      }
+    };
+    when( bundleContext.getService( serviceReference ) ).thenAnswer( answer );
+    
+    proxyInterceptor.getProxy();
+    
+    assertEquals( 1, monitorHeld.size() );
+    assertTrue( !monitorHeld.get( 0 ).booleanValue() );
+  }
+  
+  @SuppressWarnings( {
+    "unchecked", "rawtypes"
+  } )
+  @Test
+  public void testServiceOfConcurrentlyCreatedProxyIsReleased() {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    final ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    proxyRegistrar.addingService( serviceReference );
+    final List<Object> concurrentProxies = new ArrayList<Object>();
+    Answer<Object> answer = new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) {
+        if( concurrentProxies.isEmpty() ) {
+          concurrentProxies.add( null );
+          concurrentProxies.set( 0, proxyInterceptor.getProxy() );
+        }
+        return service;
+      }
+    };
+    when( bundleContext.getService( serviceReference ) ).thenAnswer( answer );
+    
+    Object proxy = proxyInterceptor.getProxy();
+    
+    assertSame( concurrentProxies.get( 0 ), proxy );
+    verify( bundleContext ).ungetService( serviceReference );
+    ServiceFactory<Object> serviceFactory
+      = proxyInterceptor.getServiceFactory();
+    serviceFactory.ungetService( null, null, proxy );
+    serviceFactory.ungetService( null, null, proxy );
+    verify( bundleContext, times( 2 ) ).ungetService( serviceReference );
+  }
+  
+  @SuppressWarnings( {
+    "unchecked", "rawtypes"
+  } )
+  @Test
+  public void testRemovedService() {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    AdvisedService advisedService
+      = proxyRegistrar.addingService( serviceReference );
+    proxyInterceptor.getProxy();
+    
+    proxyRegistrar.removedService( serviceReference, advisedService );
+    
+    verify( proxyInterceptor.getRegistrations().get( 0 ) ).unregister();
+    verify( bundleContext ).ungetService( serviceReference );
+  }
+  
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  @Test
+  public void testTrackingFilter() throws Exception {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    when( joinPointFactory.getFilter() )
+      .thenReturn( FrameworkUtil.createFilter( "(tenant=a)" ) );
+    ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
+    
+    proxyRegistrar.open();
+    
+    String filter = "(&(objectClass=" + SERVICE_TYPE.getName() + ")(tenant=a))";
+    verify( bundleContext )
+      .addServiceListener( any( ServiceListener.class ), eq( filter ) );
+  }
+  
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testServiceWithSeveralAdvisedTypesGetsSingleProxy()
+    throws Exception
+  {
+    MockSettings settings = withSettings().extraInterfaces( Callable.class );
+    Runnable combinedService = mock( Runnable.class, settings );
+    when( bundleContext.getService( serviceReference ) )
+      .thenReturn( combinedService );
+    String[] names
+      = new String[] { Callable.class.getName(), SERVICE_TYPE.getName() };
+    when( serviceReference.getProperty( Constants.OBJECTCLASS ) )
+      .thenReturn( names );
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    AdvisedServices advisedServices
+      = new AdvisedServices( bundleContext, proxyFactory, null );
+    ProxyRegistrar runnableRegistrar
+      = createRegistrar( SERVICE_TYPE, advisedServices );
+    ProxyRegistrar callableRegistrar
+      = createRegistrar( Callable.class, advisedServices );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    
+    AdvisedService first = runnableRegistrar.addingService( serviceReference );
+    AdvisedService second = callableRegistrar.addingService( serviceReference );
+    Object proxy
+      = proxyInterceptor.getServiceFactory().getService( null, null );
+    ( ( Runnable )proxy ).run();
+    ( ( Callable<?> )proxy ).call();
+    
+    assertSame( first, second );
+    assertEquals( 2, proxyInterceptor.getRegistrations().size() );
+    verify( proxyInterceptor.getRegistrations().get( 0 ) ).unregister();
+    verify( proxyInterceptor.getRegistrations().get( 1 ), never() )
+      .unregister();
+    verify( bundleContext ).registerService( aryEq( names ),
+                                             any( ServiceFactory.class ), 
+                                             eq( properties ) );
+    verify( combinedService ).run();
+    verify( ( Callable<?> )combinedService ).call();
+  }
+  
+  @Test
+  public void testAddingReplacesDisposedAdvisedService() {
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    AdvisedServices advisedServices
+      = new AdvisedServices( bundleContext, proxyFactory, null );
+    ProxyRegistrar first = createRegistrar( SERVICE_TYPE, advisedServices );
+    ProxyRegistrar second = createRegistrar( SERVICE_TYPE, advisedServices );
+    registerProxyInterceptor();
+    AdvisedService disposed = first.addingService( serviceReference );
+    disposed.remove( first );
+    
+    AdvisedService advisedService = second.addingService( serviceReference );
+    
+    assertNotSame( disposed, advisedService );
+  }
+  
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testRemovingOneOfSeveralAdvisedTypes() {
+    MockSettings settings = withSettings().extraInterfaces( Callable.class );
+    Runnable combinedService = mock( Runnable.class, settings );
+    when( bundleContext.getService( serviceReference ) )
+      .thenReturn( combinedService );
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    AdvisedServices advisedServices
+      = new AdvisedServices( bundleContext, proxyFactory, null );
+    ProxyRegistrar runnableRegistrar
+      = createRegistrar( SERVICE_TYPE, advisedServices );
+    ProxyRegistrar callableRegistrar
+      = createRegistrar( Callable.class, advisedServices );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    runnableRegistrar.addingService( serviceReference );
+    AdvisedService advisedService
+      = callableRegistrar.addingService( serviceReference );
+    
+    callableRegistrar.removedService( serviceReference, advisedService );
+    Object proxy
+      = proxyInterceptor.getServiceFactory().getService( null, null );
+    
+    assertTrue( proxy instanceof Runnable );
+    assertTrue( !( proxy instanceof Callable ) );
+    assertEquals( 3, proxyInterceptor.getRegistrations().size() );
+    verify( proxyInterceptor.getRegistrations().get( 1 ) ).unregister();
+    verify( proxyInterceptor.getRegistrations().get( 2 ), never() )
+      .unregister();
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testSuspendedPublishingRegistersSingleProxy() {
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    AdvisedServices advisedServices
+      = new AdvisedServices( bundleContext, proxyFactory, null );
+    ProxyRegistrar runnableRegistrar
+      = createRegistrar( SERVICE_TYPE, advisedServices );
+    ProxyRegistrar callableRegistrar
+      = createRegistrar( Callable.class, advisedServices );
+    ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
+    
+    advisedServices.suspendPublishing();
+    runnableRegistrar.addingService( serviceReference );
+    callableRegistrar.addingService( serviceReference );
+    assertEquals( 0, proxyInterceptor.getRegistrations().size() );
+    advisedServices.resumePublishing();
+    
+    assertEquals( 1, proxyInterceptor.getRegistrations().size() );
+    String[] names
+      = new String[] { SERVICE_TYPE.getName(), Callable.class.getName() };
+    verify( bundleContext ).registerService( aryEq( names ),
+                                             any( ServiceFactory.class ), 
+                                             eq( properties ) );
+  }
+  
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testProxyIsRegisteredOutsideOfAdvisedServiceMonitor() {
+    ProxyFactory proxyFactory = new ReflectiveProxyFactory();
+    AdvisedServices advisedServices
+      = new AdvisedServices( bundleContext, proxyFactory, null );
+    ProxyRegistrar proxyRegistrar
+      = createRegistrar( SERVICE_TYPE, advisedServices );
+    advisedServices.suspendPublishing();
+    final AdvisedService advisedService
+      = proxyRegistrar.addingService( serviceReference );
+    final List<Boolean> monitorHeld = new ArrayList<Boolean>();
+    Answer<Object> answer = new Answer<Object>() {
+      @Override
+      public Object answer( InvocationOnMock invocation ) {
+        boolean held = Thread.holdsLock( advisedService );
+        monitorHeld.add( Boolean.valueOf( held ) );
+        return mock( ServiceRegistration.class );
+      }
+    };
+    when( bundleContext.registerService( any( String[].class ),
+                                         any( ServiceFactory.class ), 
+                                         eq( properties ) ) )
+      .thenAnswer( answer );
+    
+    advisedServices.resumePublishing();
+    
+    assertEquals( 1, monitorHeld.size() );
+    assertTrue( !monitorHeld.get( 0 ).booleanValue() );
+  }
+
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  private ProxyRegistrar createRegistrar( Class<?> serviceType,
+                                          AdvisedServices advisedServices )
+  {
+    JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
+    return new ProxyRegistrar( bundleContext,
+                               serviceType,
+                               definition,
+                               advisedServices );
+  }
+  
   @SuppressWarnings( {
     "unchecked", "rawtypes"
   } )
   @Test
   public void testIgnoreAddingServiceWithProxyReferences() {
     JoinPointDefinition definition = mock( JoinPointDefinition.class );
+    JoinPointFactory joinPointFactory = mock( JoinPointFactory.class );
+    when( definition.getJoinPointFactory() ).thenReturn( joinPointFactory );
     ProxyRegistrar proxyRegistrar = new ProxyRegistrar( bundleContext, SERVICE_TYPE, definition );
     ProxyInterceptor proxyInterceptor = registerProxyInterceptor();
     createServiceProxy();
     
-    proxyRegistrar.addingService( serviceReference );
+    AdvisedService advisedService
+      = proxyRegistrar.addingService( serviceReference );
     
+    assertNull( advisedService );
     assertNull( proxyInterceptor.getProxy() );
   }
 
-  @SuppressWarnings( "unchecked" )
+  // proxies are registered by the bundle of the proxy registrar
   private void createServiceProxy() {
-    ClassLoader loader = this.getClass().getClassLoader();
-    Class<?>[] interfaces = new Class<?>[] { SERVICE_TYPE };
-    InvocationHandler invocationHandler = mock( InvocationHandler.class );
-    Object proxy = Proxy.newProxyInstance( loader, interfaces, invocationHandler );
-    when( bundleContext.getService( serviceReference ) ).thenReturn( proxy );
+    Bundle bundle = bundleContext.getBundle();
+    when( serviceReference.getBundle() ).thenReturn( bundle );
   }
 }
\ No newline at end of file
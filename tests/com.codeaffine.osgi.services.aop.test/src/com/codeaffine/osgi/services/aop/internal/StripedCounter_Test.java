@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class StripedCounter_Test {
+  
+  @Test
+  public void testStripeCountIsPowerOfTwo() {
+    assertTrue( Integer.bitCount( StripedCounter.STRIPE_COUNT ) == 1 );
+  }
+  
+  @Test
+  public void testIncrementFromSeveralThreads() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    Thread[] threads = new Thread[ 4 ];
+    for( int i = 0; i < threads.length; i++ ) {
+      threads[ i ] = new Thread() {
+        @Override
+        public void run() {
+          for( int j = 0; j < 1000; j++ ) {
+            counter.increment();
+          }
+        }
+      };
+      threads[ i ].start();
+    }
+    for( Thread thread : threads ) {
+      thread.join();
+    }
+    
+    assertEquals( 4000, counter.sum() );
+  }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Frank Appel and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Frank Appel - initial API and implementation
+ ******************************************************************************/
+package com.codeaffine.osgi.services.aop.internal.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class Stripes_Test {
+  
+  @Test
+  public void testCountIsPowerOfTwo() {
+    int count = Stripes.count( Stripes.MAX_COUNT );
+    
+    assertEquals( 1, Integer.bitCount( count ) );
+    assertTrue( count <= Stripes.MAX_COUNT );
+  }
+  
+  @Test
+  public void testCountDoesNotExceedLimit() {
+    for( int limit = 1; limit <= Stripes.MAX_COUNT; limit++ ) {
+      int count = Stripes.count( limit );
+      
+      assertEquals( 1, Integer.bitCount( count ) );
+      assertTrue( count <= limit );
+    }
+  }
+}
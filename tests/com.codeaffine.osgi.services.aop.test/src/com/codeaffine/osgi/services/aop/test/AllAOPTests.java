@@ -13,17 +13,59 @@ package com.codeaffine.osgi.services.aop.test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import com.codeaffine.osgi.services.aop.AdviceSampler_Test;
+import com.codeaffine.osgi.services.aop.AsyncAdviceExecutor_Test;
+import com.codeaffine.osgi.services.aop.JoinPointFactory_Test;
+import com.codeaffine.osgi.services.aop.Pointcut_Test;
+import com.codeaffine.osgi.services.aop.aspects.AspectExecutors_Test;
+import com.codeaffine.osgi.services.aop.aspects.BatchingInterceptor_Test;
+import com.codeaffine.osgi.services.aop.aspects.BulkheadInterceptor_Test;
+import com.codeaffine.osgi.services.aop.aspects.CachingInterceptor_Test;
+import com.codeaffine.osgi.services.aop.aspects.CoalescingInterceptor_Test;
+import com.codeaffine.osgi.services.aop.aspects.TimeoutInterceptor_Test;
+import com.codeaffine.osgi.services.aop.aspects.TimerWheel_Test;
+import com.codeaffine.osgi.services.aop.internal.GeneratedProxyFactory_Test;
+import com.codeaffine.osgi.services.aop.internal.InvocationContextImpl_Test;
+import com.codeaffine.osgi.services.aop.internal.InvocationStatisticsImpl_Test;
+import com.codeaffine.osgi.services.aop.internal.JoinPointDefinitionIndex_Test;
 import com.codeaffine.osgi.services.aop.internal.JoinPointImpl_Test;
+import com.codeaffine.osgi.services.aop.internal.LatencyHistogram_Test;
+import com.codeaffine.osgi.services.aop.internal.MergedAdvicePlan_Test;
+import com.codeaffine.osgi.services.aop.internal.MethodIndex_Test;
 import com.codeaffine.osgi.services.aop.internal.ProxyInvocationHandler_Test;
 import com.codeaffine.osgi.services.aop.internal.ProxyProvider_Test;
+import com.codeaffine.osgi.services.aop.internal.ProxyRegistrarActivation_Test;
 import com.codeaffine.osgi.services.aop.internal.ProxyRegistrar_Test;
+import com.codeaffine.osgi.services.aop.internal.StripedCounter_Test;
+import com.codeaffine.osgi.services.aop.internal.concurrent.Stripes_Test;
 
 @RunWith( Suite.class )
 @Suite.SuiteClasses( {
   ProxyProvider_Test.class,
   ProxyRegistrar_Test.class,
   JoinPointImpl_Test.class,
-  ProxyInvocationHandler_Test.class
+  ProxyInvocationHandler_Test.class,
+  MethodIndex_Test.class,
+  GeneratedProxyFactory_Test.class,
+  JoinPointDefinitionIndex_Test.class,
+  CachingInterceptor_Test.class,
+  AsyncAdviceExecutor_Test.class,
+  LatencyHistogram_Test.class,
+  StripedCounter_Test.class,
+  Stripes_Test.class,
+  InvocationStatisticsImpl_Test.class,
+  JoinPointFactory_Test.class,
+  ProxyRegistrarActivation_Test.class,
+  MergedAdvicePlan_Test.class,
+  Pointcut_Test.class,
+  AdviceSampler_Test.class,
+  InvocationContextImpl_Test.class,
+  BulkheadInterceptor_Test.class,
+  TimerWheel_Test.class,
+  TimeoutInterceptor_Test.class,
+  AspectExecutors_Test.class,
+  CoalescingInterceptor_Test.class,
+  BatchingInterceptor_Test.class
 } )
 public class AllAOPTests {
   // no content